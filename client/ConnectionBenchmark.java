@@ -0,0 +1,382 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.*;
+
+/**
+ * Connection Benchmark
+ *
+ * Opens a number of concurrent client connections against the server, each
+ * issuing a sequence of GET requests, and reports throughput and latency
+ * percentiles. Run the server once per dispatch mode (e.g.
+ * -Dserver.dispatch=pool, -Dserver.dispatch=virtual) and compare the
+ * summaries.
+ *
+ * A read delay makes every client read the response slowly, in 8 KB steps,
+ * which simulates slow mobile clients holding a server connection open for
+ * the whole transfer.
+ *
+ * The mode selects how requests use connections:
+ *   close       - a new connection per request (HTTP/1.0, the default)
+ *   keepalive   - one persistent connection per client, one request at a time
+ *   pipeline:N  - one persistent connection per client, N requests sent
+ *                 back to back before the responses are read; the latency of
+ *                 a request is measured from the moment its batch was sent
+ *
+ * The transport is tls (the default) or plain, for the plaintext listener.
+ * The server certificate is self-signed, so this benchmark trusts any
+ * certificate; do not reuse it against production hosts.
+ *
+ * Usage: ConnectionBenchmark host port clients requests path [readDelayMs] [mode] [tls|plain]
+ *
+ * Created: 2013.11.03
+ *
+ * @author haijunq
+ */
+public class ConnectionBenchmark {
+
+	// read step used to simulate slow clients
+	private static final int READ_STEP = 8192;
+
+	// benchmark parameters
+	private final String host;
+	private final int port;
+	private final int clients;
+	private final int requests;
+	private final String path;
+	private final long readDelay;
+	private final int pipelineDepth; 	// 0 closes after every request
+
+	// results, latencies in microseconds
+	private final long[] latencies;
+	private final AtomicInteger latencyCount = new AtomicInteger();
+	private final AtomicInteger failureCount = new AtomicInteger();
+	private final AtomicLong byteCount = new AtomicLong();
+
+	// the connection factory
+	private final SocketFactory socketFactory;
+
+	/**
+	 * Constructs the benchmark
+	 *
+	 * @param host
+	 *            is the address of the server
+	 * @param port
+	 *            is the server port
+	 * @param clients
+	 *            is the number of concurrent client connections
+	 * @param requests
+	 *            is the number of requests each client sends
+	 * @param path
+	 *            is the requested resource
+	 * @param readDelay
+	 *            is the pause, in milliseconds, between two reads of 8 KB
+	 * @param pipelineDepth
+	 *            is the number of requests sent back to back on a persistent
+	 *            connection, or 0 for a new connection per request
+	 * @param tls
+	 *            is true to connect with TLS, false for plaintext
+	 */
+	public ConnectionBenchmark(String host, int port, int clients,
+			int requests, String path, long readDelay, int pipelineDepth, boolean tls) throws Exception {
+		this.host = host;
+		this.port = port;
+		this.clients = clients;
+		this.requests = requests;
+		this.path = path;
+		this.readDelay = readDelay;
+		this.pipelineDepth = pipelineDepth;
+		this.latencies = new long[clients * requests];
+		this.socketFactory = tls ? trustingSocketFactory() : SocketFactory.getDefault();
+	}
+
+	/**
+	 * Runs all clients to completion and prints the summary.
+	 */
+	public void run() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] threads = new Thread[clients];
+		for (int i = 0; i < clients; i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					if (pipelineDepth == 0) {
+						for (int r = 0; r < requests; r++)
+							sendRequest();
+					} else {
+						sendPersistentRequests();
+					}
+				}
+			}, "benchmark-client-" + i);
+			threads[i].start();
+		}
+
+		long begin = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+			thread.join();
+		long elapsed = System.nanoTime() - begin;
+
+		displayStats(elapsed);
+	}
+
+	// Sends one request on a fresh connection and records its latency.
+	//
+	private void sendRequest() {
+		long begin = System.nanoTime();
+		Socket socket = null;
+		try {
+			socket = socketFactory.createSocket(host, port);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + path + " HTTP/1.0\r\nHost: " + host + "\r\n\r\n")
+					.getBytes("US-ASCII"));
+			out.flush();
+
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[READ_STEP];
+			long total = 0;
+			int read;
+			String statusLine = null;
+			while ((read = in.read(buffer)) != -1) {
+				if (statusLine == null)
+					statusLine = new String(buffer, 0, Math.min(read, 16), "US-ASCII");
+				total += read;
+				if (readDelay > 0)
+					Thread.sleep(readDelay);
+			}
+			byteCount.addAndGet(total);
+
+			if (statusLine == null || !statusLine.startsWith("HTTP/") || !statusLine.contains("200")) {
+				failureCount.incrementAndGet();
+				return;
+			}
+			latencies[latencyCount.getAndIncrement()] = (System.nanoTime() - begin) / 1000;
+		} catch (Exception e) {
+			failureCount.incrementAndGet();
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to do
+				}
+			}
+		}
+	}
+
+	// Sends all requests of a client over persistent connections, in batches
+	// of pipelineDepth requests, reconnecting when the server closes.
+	//
+	private void sendPersistentRequests() {
+		byte[] request;
+		try {
+			request = ("GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\n\r\n")
+					.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+
+		Socket socket = null;
+		InputStream in = null;
+		int sent = 0;
+		int done = 0;
+		try {
+			while (sent < requests) {
+				if (socket == null) {
+					socket = socketFactory.createSocket(host, port);
+					in = new BufferedInputStream(socket.getInputStream(), READ_STEP);
+				}
+
+				// send a batch of requests back to back
+				int batch = Math.min(pipelineDepth, requests - sent);
+				long begin = System.nanoTime();
+				OutputStream out = socket.getOutputStream();
+				for (int i = 0; i < batch; i++)
+					out.write(request);
+				out.flush();
+				sent += batch;
+
+				// read the responses in order
+				boolean open = true;
+				for (int i = 0; i < batch; i++) {
+					int status = readResponse(in);
+					if (status < 0) {
+						failureCount.addAndGet(batch - i);
+						done += batch - i;
+						open = false;
+						break;
+					}
+					done++;
+					if (status == 200 || status == 0)
+						latencies[latencyCount.getAndIncrement()] = (System.nanoTime() - begin) / 1000;
+					else
+						failureCount.incrementAndGet();
+					if (status == 0)
+						open = false;
+				}
+				if (!open) {
+					socket.close();
+					socket = null;
+				}
+			}
+		} catch (Exception e) {
+			failureCount.addAndGet(requests - done);
+		} finally {
+			if (socket != null) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing left to do
+				}
+			}
+		}
+	}
+
+	// Reads one response with a Content-Length body. Returns its status
+	// code, 0 for a 200 response after which the server closes the
+	// connection, or -1 if the connection ended early.
+	//
+	private int readResponse(InputStream in) throws IOException, InterruptedException {
+		String statusLine = readLine(in);
+		if (statusLine == null || !statusLine.startsWith("HTTP/") || statusLine.length() < 12)
+			return -1;
+		int status = Integer.parseInt(statusLine.substring(9, 12));
+
+		long length = 0;
+		boolean close = false;
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+			String lower = line.toLowerCase();
+			if (lower.startsWith("content-length:"))
+				length = Long.parseLong(line.substring(15).trim());
+			else if (lower.startsWith("connection:") && lower.contains("close"))
+				close = true;
+		}
+		if (line == null)
+			return -1;
+
+		// read the body
+		byte[] buffer = new byte[READ_STEP];
+		long remaining = length;
+		while (remaining > 0) {
+			int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (read < 0)
+				return -1;
+			remaining -= read;
+			if (readDelay > 0)
+				Thread.sleep(readDelay);
+		}
+		byteCount.addAndGet(length);
+		return (close && status == 200) ? 0 : status;
+	}
+
+	// Reads a CRLF terminated line, or returns null at the end of the stream.
+	//
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return null;
+	}
+
+	// Prints the benchmark summary.
+	//
+	private void displayStats(long elapsedNanos) {
+		int count = latencyCount.get();
+		long[] sorted = Arrays.copyOf(latencies, count);
+		Arrays.sort(sorted);
+		double seconds = elapsedNanos / 1e9;
+
+		System.out.println();
+		System.out.println("--- Benchmark Summary ---");
+		System.out.println("Clients: " + clients + ", requests per client: " + requests
+				+ ", mode: " + (pipelineDepth == 0 ? "close" : pipelineDepth == 1 ? "keepalive" : "pipeline:" + pipelineDepth));
+		System.out.println("Successful requests: " + count);
+		System.out.println("Failed requests: " + failureCount.get());
+		System.out.println("Elapsed: " + String.format("%.2f", seconds) + " s");
+		System.out.println("Throughput: " + String.format("%.1f", count / seconds) + " req/s, "
+				+ String.format("%.2f", byteCount.get() / seconds / (1024 * 1024)) + " MB/s");
+		if (count > 0) {
+			System.out.println("Latency p50: " + percentile(sorted, 50) / 1000.0 + " ms");
+			System.out.println("Latency p90: " + percentile(sorted, 90) / 1000.0 + " ms");
+			System.out.println("Latency p99: " + percentile(sorted, 99) / 1000.0 + " ms");
+			System.out.println("Latency max: " + sorted[count - 1] / 1000.0 + " ms");
+		}
+	}
+
+	// Returns the specified percentile of a sorted array.
+	//
+	private static long percentile(long[] sorted, int percentile) {
+		int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+		return sorted[Math.max(0, index)];
+	}
+
+	// Returns an SSL socket factory accepting the self-signed test certificate.
+	//
+	private static SocketFactory trustingSocketFactory() throws Exception {
+		TrustManager[] trustAll = { new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType) {
+			}
+		} };
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustAll, null);
+		return context.getSocketFactory();
+	}
+
+	// driver
+	public static void main(String args[]) throws Exception {
+		if (args.length < 5) {
+			System.out.println("usage: ConnectionBenchmark host port clients requests path [readDelayMs] [close|keepalive|pipeline:N] [tls|plain]");
+			return;
+		}
+
+		// get the parameters from the command line
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		int clients = Integer.parseInt(args[2]);
+		int requests = Integer.parseInt(args[3]);
+		String path = args[4];
+		long readDelay = (args.length > 5) ? Long.parseLong(args[5]) : 0;
+		String mode = (args.length > 6) ? args[6] : "close";
+		boolean tls = (args.length > 7) ? !args[7].equals("plain") : true;
+
+		int pipelineDepth = 0;
+		if (mode.equals("keepalive"))
+			pipelineDepth = 1;
+		else if (mode.startsWith("pipeline:"))
+			pipelineDepth = Integer.parseInt(mode.substring(9));
+
+		new ConnectionBenchmark(host, port, clients, requests, path, readDelay, pipelineDepth, tls).run();
+	}
+}// end class
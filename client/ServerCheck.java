@@ -0,0 +1,525 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package client;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.security.cert.X509Certificate;
+
+import javax.net.SocketFactory;
+import javax.net.ssl.*;
+
+import server.handlers.connection.ClientConnection;
+import server.handlers.resource.*;
+import server.parse.ResourceParser;
+import util.*;
+
+/**
+ * Server Check
+ *
+ * Runs regression checks of the protocol handling against a running server
+ * and prints PASS or FAIL for each; the exit status is the number of checks
+ * that failed. The checks:
+ *
+ *   pipeline  - sends many more requests back to back than the server
+ *               pipelines (server.pipeline.depth) and does not read the
+ *               responses for a while. Another connection must be served
+  *               meanwhile, and every response must arrive once the client
+ *               reads. The file should be a few MB, so the unread responses
+ *               of a full pipeline are more than the socket buffers hold.
+ *               The server should stay idle during the stall, which top -H
+ *               shows for its event loop threads.
+ *
+ * With local, the checks serve requests through the resource parser in
+ * this process instead, from a temporary directory, to look at the caches:
+ *
+ *   not-modified-uncompressed - a conditional request for a text file
+ *               that was never sent is answered with 304 without compressing
+ *               the file; a full request compresses it.
+ *   compressed-once - a file named through a dot segment is found in the
+ *               compression cache under the variant of its plain name.
+ *   listing-page-bounds - a streamed directory listing with a limit below
+ *               1 or a bad offset is answered with 400, and a paginated one
+ *               links to the page after it.
+ *   listing-unwatched - a cached directory listing dropped because a file
+ *               in the directory changed no longer holds a watch.
+ *
+ * The transport is tls (the default) or plain, for the plaintext listener.
+ * Like the benchmark, this check trusts any server certificate.
+ *
+ * Usage: ServerCheck host port file [tls|plain]
+ *        ServerCheck local
+ *
+ * Created: 2013.11.26
+ *
+ * @author haijunq
+ */
+public class ServerCheck {
+
+	// requests sent back to back by the pipeline check, below the default
+	// server.keepalive.max so the connection is not closed after them
+	private static final int PIPELINED_REQUESTS = 64;
+
+	// milliseconds the pipeline check leaves the responses unread
+	private static final long STALL_MILLIS = 2000;
+
+	// read timeout of a check, in milliseconds
+	private static final int TIMEOUT = 10000;
+
+	// check parameters
+	private final String host;
+	private final int port;
+	private final String file;
+	private final SocketFactory socketFactory;
+
+	private int failureCount = 0;
+
+	/**
+	 * Constructs the check of requests served in this process
+	 */
+	public ServerCheck() {
+		this.host = null;
+		this.port = 0;
+		this.file = null;
+		this.socketFactory = null;
+	}
+
+	/**
+	 * Constructs the check
+	 *
+	 * @param host
+	 *            is the address of the server
+	 * @param port
+	 *            is the server port
+	 * @param file
+	 *            is the path of a file of a few MB
+	 * @param tls
+	 *            is true to connect with TLS, false for plaintext
+	 */
+	public ServerCheck(String host, int port, String file, boolean tls) throws Exception {
+		this.host = host;
+		this.port = port;
+		this.file = file;
+		this.socketFactory = tls ? trustingSocketFactory() : SocketFactory.getDefault();
+	}
+
+	/**
+	 * Runs all checks against the server; returns the number that failed.
+	 */
+	public int run() {
+		check("pipeline", new Check() {
+			public String run() throws Exception {
+				return checkPipeline();
+			}
+		});
+		return this.failureCount;
+	}
+
+	/**
+	 * Runs the checks served in this process; returns the number that
+	 * failed.
+	 */
+	public int runLocal() throws IOException {
+		File directory = Files.createTempDirectory("server-check").toFile();
+		Constants.DEFAULT_DIRECTORY = directory.getCanonicalPath();
+		ResourceRegistry.getReference().load();
+		try {
+			check("not-modified-uncompressed", new Check() {
+				public String run() throws Exception {
+					return checkNotModifiedUncompressed();
+				}
+			});
+			check("compressed-once", new Check() {
+				public String run() throws Exception {
+					return checkCompressedOnce();
+				}
+			});
+			check("listing-page-bounds", new Check() {
+				public String run() throws Exception {
+					return checkListingPageBounds();
+				}
+			});
+			check("listing-unwatched", new Check() {
+				public String run() throws Exception {
+					return checkListingUnwatched();
+				}
+			});
+		} finally {
+			delete(directory);
+		}
+		return this.failureCount;
+	}
+
+	// Deletes a file, or a directory with its contents.
+	//
+	private static void delete(File file) {
+		File[] files = file.listFiles();
+		if (files != null)
+			for (File child : files)
+				delete(child);
+		file.delete();
+	}
+
+	// Runs one check and prints its result.
+	//
+	private void check(String name, Check check) {
+		String failure;
+		try {
+			failure = check.run();
+		} catch (Exception e) {
+			failure = e.toString();
+		}
+		if (failure != null)
+			this.failureCount++;
+		System.out.println((failure == null ? "PASS " : "FAIL ") + name
+				+ (failure == null ? "" : ": " + failure));
+	}
+
+	// Pipelines more requests than the server serves ahead without reading
+	// the responses; returns null if another client is served meanwhile and
+	// all responses arrive afterwards.
+	//
+	private String checkPipeline() throws Exception {
+		// padded, so the requests are more than the server buffers
+		StringBuilder padding = new StringBuilder();
+		while (padding.length() < 1000)
+			padding.append("0123456789");
+		final byte[] request = ("GET " + this.file + " HTTP/1.1\r\nHost: " + this.host
+				+ "\r\nX-Padding: " + padding + "\r\n\r\n").getBytes("US-ASCII");
+
+		final Socket socket = this.socketFactory.createSocket(this.host, this.port);
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			final IOException[] writeFailure = new IOException[1];
+			Thread writer = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						OutputStream out = socket.getOutputStream();
+						for (int i = 0; i < PIPELINED_REQUESTS; i++)
+							out.write(request);
+						out.flush();
+					} catch (IOException e) {
+						writeFailure[0] = e;
+					}
+				}
+			}, "check-pipeline-writer");
+			writer.start();
+			Thread.sleep(STALL_MILLIS);
+
+			// the stalled client must not hold up the others
+			int status = get(this.file);
+			if (status != 200)
+				return "another client got " + status + " while the pipeline stalled";
+
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			for (int i = 0; i < PIPELINED_REQUESTS; i++) {
+				status = readResponse(in);
+				if (status != 200)
+					return "response " + (i + 1) + " of " + PIPELINED_REQUESTS
+							+ (status < 0 ? " missing" : " has status " + status);
+			}
+			writer.join(TIMEOUT);
+			if (writeFailure[0] != null)
+				return "sending the requests failed: " + writeFailure[0];
+			return null;
+		} finally {
+			socket.close();
+		}
+	}
+
+	// Answers a conditional request for a text file that was never sent;
+	// returns null if the 304 leaves the compression cache alone and a full
+	// response then fills it.
+	//
+	private String checkNotModifiedUncompressed() throws Exception {
+		File file = new File(Constants.DEFAULT_DIRECTORY + "/page.html");
+		PrintWriter writer = new PrintWriter(file, "US-ASCII");
+		for (int i = 0; i < 4096; i++)
+			writer.println("<p>line " + i + " of a page that compresses well</p>");
+		writer.close();
+		String since = Utilities.formatHttpDate(System.currentTimeMillis());
+		CompressionCache cache = CompressionCache.getReference();
+
+		String response = serveLocally("GET /page.html HTTP/1.1\r\nAccept-Encoding: gzip\r\n"
+				+ "If-Modified-Since: " + since + "\r\n\r\n");
+		if (!response.startsWith("HTTP/1.1 304"))
+			return "conditional request answered with " + statusLine(response);
+		if (cache.isCompressed(file, file.lastModified(), file.length(), CompressionCache.GZIP))
+			return "the 304 compressed the file";
+
+		response = serveLocally("GET /page.html HTTP/1.1\r\nAccept-Encoding: gzip\r\n\r\n");
+		if (!response.startsWith("HTTP/1.1 200") || !response.contains("Content-Encoding: gzip"))
+			return "full request answered with " + statusLine(response) + ", not compressed";
+		if (!cache.isCompressed(file, file.lastModified(), file.length(), CompressionCache.GZIP))
+			return "the full response did not compress the file";
+		return null;
+	}
+
+	// Compresses a file by its plain name; returns null if the variant is
+	// found under another name of the same file.
+	//
+	private String checkCompressedOnce() throws Exception {
+		File file = new File(Constants.DEFAULT_DIRECTORY, "once.html");
+		PrintWriter writer = new PrintWriter(file, "US-ASCII");
+		for (int i = 0; i < 1024; i++)
+			writer.println("<p>line " + i + " of a page compressed once</p>");
+		writer.close();
+		CompressionCache cache = CompressionCache.getReference();
+
+		if (cache.get(file, file.lastModified(), file.length(), CompressionCache.GZIP) == null)
+			return "the file was not compressed";
+		File alias = new File(Constants.DEFAULT_DIRECTORY + "/./once.html");
+		if (!cache.isCompressed(alias, alias.lastModified(), alias.length(), CompressionCache.GZIP))
+			return "the variant is not found as " + alias.getPath();
+		return null;
+	}
+
+	// Requests pages of the directory listing; returns null if the bounds
+	// that cannot make progress are refused and a valid page links forward.
+	//
+	private String checkListingPageBounds() throws Exception {
+		File listed = new File(Constants.DEFAULT_DIRECTORY, "listed");
+		listed.mkdir();
+		for (String name : new String[] { "a.txt", "b.txt" })
+			new FileOutputStream(new File(listed, name)).close();
+
+		String[] refused = { "limit=0", "limit=-5", "limit=x", "offset=-1", "offset=x" };
+		for (String query : refused) {
+			String response = serveLocally("GET /listed/?" + query + " HTTP/1.1\r\n\r\n");
+			if (!response.startsWith("HTTP/1.1 400"))
+				return "?" + query + " answered with " + statusLine(response);
+		}
+
+		String response = serveLocally("GET /listed/?offset=0&limit=1&format=json HTTP/1.1\r\n\r\n");
+		if (!response.startsWith("HTTP/1.1 200"))
+			return "first page answered with " + statusLine(response);
+		if (!response.contains("\"next\":\"/listed/?offset=1&limit=1&format=json\""))
+			return "first page does not link to the second";
+		return null;
+	}
+
+	// Caches the listing of a directory, then changes a file in it; returns
+	// null if the watch of the directory is cancelled with the listing.
+	//
+	private String checkListingUnwatched() throws Exception {
+		File watched = new File(Constants.DEFAULT_DIRECTORY, "watched");
+		watched.mkdir();
+		DirectoryListingCache cache = DirectoryListingCache.getReference();
+		if (!cache.toString().contains("mode=watch"))
+			return "the listings are polled, no watches to check";
+		int before = statistic(cache.toString(), "watched");
+
+		String response = serveLocally("GET /watched/ HTTP/1.1\r\n\r\n");
+		if (!response.startsWith("HTTP/1.1 200"))
+			return "listing answered with " + statusLine(response);
+		if (statistic(cache.toString(), "watched") != before + 1)
+			return "the listed directory is not watched: " + cache;
+
+		new FileOutputStream(new File(watched, "new.txt")).close();
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (statistic(cache.toString(), "watched") != before) {
+			if (System.currentTimeMillis() > deadline)
+				return "the watch outlived the dropped listing: " + cache;
+			Thread.sleep(50);
+		}
+		return null;
+	}
+
+	// Returns a number of a one line statistics summary, as in "name=12".
+	//
+	private static int statistic(String summary, String name) {
+		int start = summary.indexOf(name + "=") + name.length() + 1;
+		int end = start;
+		while (end < summary.length() && Character.isDigit(summary.charAt(end)))
+			end++;
+		return Integer.parseInt(summary.substring(start, end));
+	}
+
+	// Serves a request through the resource parser; returns the response.
+	//
+	private static String serveLocally(String request) throws Exception {
+		LocalConnection connection = new LocalConnection(request);
+		new ResourceParser().parse(connection, false);
+		return connection.getResponse();
+	}
+
+	// Returns the status line of a response.
+	//
+	private static String statusLine(String response) {
+		int end = response.indexOf('\r');
+		return (end < 0) ? response : response.substring(0, end);
+	}
+
+	// Sends a GET on a new connection and returns the status of the
+	// response, -1 if there was none.
+	//
+	private int get(String path) throws IOException {
+		Socket socket = this.socketFactory.createSocket(this.host, this.port);
+		try {
+			socket.setSoTimeout(TIMEOUT);
+			OutputStream out = socket.getOutputStream();
+			out.write(("GET " + path + " HTTP/1.1\r\nHost: " + this.host
+					+ "\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.flush();
+			return readResponse(new BufferedInputStream(socket.getInputStream()));
+		} finally {
+			socket.close();
+		}
+	}
+
+	// Reads one response with a Content-Length body; returns its status
+	// code, or -1 if the connection ended early.
+	//
+	private static int readResponse(InputStream in) throws IOException {
+		String statusLine = readLine(in);
+		if (statusLine == null || !statusLine.startsWith("HTTP/") || statusLine.length() < 12)
+			return -1;
+		int status = Integer.parseInt(statusLine.substring(9, 12));
+
+		long length = 0;
+		String line;
+		while ((line = readLine(in)) != null && !line.isEmpty()) {
+			if (line.toLowerCase().startsWith("content-length:"))
+				length = Long.parseLong(line.substring(15).trim());
+		}
+		if (line == null)
+			return -1;
+
+		// skip the body
+		while (length > 0) {
+			long skipped = in.skip(length);
+			if (skipped <= 0) {
+				if (in.read() < 0)
+					return -1;
+				skipped = 1;
+			}
+			length -= skipped;
+		}
+		return status;
+	}
+
+	// Reads a CRLF terminated line, or returns null at the end of the stream.
+	//
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r')
+					line.setLength(length - 1);
+				return line.toString();
+			}
+			line.append((char) c);
+		}
+		return null;
+	}
+
+	// Returns an SSL socket factory accepting the self-signed test certificate.
+	//
+	private static SocketFactory trustingSocketFactory() throws Exception {
+		TrustManager[] trustAll = { new X509TrustManager() {
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+
+			public void checkClientTrusted(X509Certificate[] certs, String authType) {
+			}
+
+			public void checkServerTrusted(X509Certificate[] certs, String authType) {
+			}
+		} };
+		SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, trustAll, null);
+		return context.getSocketFactory();
+	}
+
+	// A check; returns null if it passed, otherwise the reason it failed.
+	//
+	private interface Check {
+		String run() throws Exception;
+	}
+
+	// A connection of a local check, which reads the request from a string
+	// and keeps the response in memory.
+	//
+	private static class LocalConnection extends ClientConnection {
+		private final InputStream input;
+		private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+		LocalConnection(String request) throws IOException {
+			this.input = new ByteArrayInputStream(request.getBytes("US-ASCII"));
+		}
+
+		String getResponse() throws IOException {
+			return this.output.toString("ISO-8859-1");
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return this.input;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return this.output;
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return InetAddress.getLoopbackAddress();
+		}
+
+		@Override
+		public void transferFile(File file, long position, long count) throws IOException {
+			RandomAccessFile input = new RandomAccessFile(file, "r");
+			try {
+				byte[] bytes = new byte[(int) count];
+				input.seek(position);
+				input.readFully(bytes);
+				this.output.write(bytes);
+			} finally {
+				input.close();
+			}
+		}
+
+		@Override
+		public void transferBuffer(ByteBuffer buffer, Closeable release) throws IOException {
+			try {
+				byte[] bytes = new byte[buffer.remaining()];
+				buffer.get(bytes);
+				this.output.write(bytes);
+			} finally {
+				release.close();
+			}
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	// driver
+	public static void main(String args[]) throws Exception {
+		if (args.length == 1 && args[0].equals("local")) {
+			System.exit(new ServerCheck().runLocal());
+		}
+		if (args.length < 3) {
+			System.out.println("usage: ServerCheck host port file [tls|plain] | ServerCheck local");
+			return;
+		}
+
+		// get the parameters from the command line
+		String host = args[0];
+		int port = Integer.parseInt(args[1]);
+		String file = args[2];
+		boolean tls = (args.length > 3) ? !args[3].equals("plain") : true;
+
+		System.exit(new ServerCheck(host, port, file, tls).run());
+	}
+}// end class
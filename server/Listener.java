@@ -0,0 +1,186 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.channels.ServerSocketChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Listener - an address the server accepts connections on, TLS or
+ * plaintext, with its listen backlog and the number of threads accepting
+ * on it.
+ *
+ * Listeners are configured as a comma separated list of specifications,
+ * each the kind followed by the port and optionally the address, e.g.
+ * "tls:8443,plain:8080,plain:127.0.0.1:8081". Without an address the
+ * listener is bound to all interfaces.
+ *
+ * Several acceptor threads on one socket take turns in accept(). Where the
+ * operating system supports SO_REUSEPORT, each acceptor gets its own socket
+ * bound to the same address instead, and the kernel spreads the incoming
+ * connections over them.
+ *
+ * Created: 2013.11.25
+ *
+ * @author haijunq
+ */
+public class Listener {
+	public static final String TLS = "tls";
+	public static final String PLAIN = "plain";
+
+	// true if sockets may share their address, checked once
+	private static final boolean REUSE_PORT_SUPPORTED = isReusePortSupported();
+
+	private final boolean tls; 										// TLS or plaintext
+	private final InetSocketAddress address; 						// the address to bind
+	private final int backlog; 										// pending connections the kernel queues
+	private final int acceptors; 									// threads accepting on the listener
+	private final boolean reusePort; 								// one socket per acceptor
+	private final AtomicLong acceptedCount = new AtomicLong(); 		// accepted connections
+
+	/**
+	 * Constructs the listener
+	 *
+	 * @param tls
+	 *            is true for a TLS listener
+	 * @param address
+	 *            is the address to bind
+	 * @param backlog
+	 *            is the listen backlog of each socket
+	 * @param acceptors
+	 *            is the number of acceptor threads
+	 * @param reusePort
+	 *            asks for a socket per acceptor, if the platform supports it
+	 */
+	public Listener(boolean tls, InetSocketAddress address, int backlog, int acceptors,
+			boolean reusePort) {
+		if (acceptors < 1) {
+			throw new IllegalArgumentException("at least one acceptor is needed");
+		}
+		this.tls = tls;
+		this.address = address;
+		this.backlog = backlog;
+		this.acceptors = acceptors;
+		this.reusePort = reusePort && acceptors > 1 && REUSE_PORT_SUPPORTED;
+	}
+
+	/**
+	 * Parses a comma separated list of listener specifications.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if a specification is malformed
+	 */
+	public static List<Listener> parseList(String list, int backlog, int acceptors,
+			boolean reusePort) {
+		List<Listener> listeners = new ArrayList<Listener>();
+		for (String spec : list.trim().split("\\s*,\\s*")) {
+			int colon = spec.indexOf(':');
+			String kind = (colon < 0) ? "" : spec.substring(0, colon);
+			if (!kind.equals(TLS) && !kind.equals(PLAIN))
+				throw new IllegalArgumentException("unknown listener: " + spec);
+
+			// the port follows the last colon, an IPv6 address is bracketed
+			String rest = spec.substring(colon + 1);
+			int last = rest.lastIndexOf(':');
+			InetSocketAddress address;
+			try {
+				int port = Integer.parseInt(rest.substring(last + 1));
+				if (last < 0) {
+					address = new InetSocketAddress(port);
+				} else {
+					String host = rest.substring(0, last);
+					if (host.startsWith("[") && host.endsWith("]"))
+						host = host.substring(1, host.length() - 1);
+					address = new InetSocketAddress(host, port);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("malformed listener: " + spec);
+			}
+			if (address.isUnresolved())
+				throw new IllegalArgumentException("unknown listener address: " + spec);
+			listeners.add(new Listener(kind.equals(TLS), address, backlog, acceptors, reusePort));
+		}
+		return listeners;
+	}
+
+	/** Returns true for a TLS listener */
+	public boolean isTls() {
+		return this.tls;
+	}
+
+	/** Returns the number of acceptor threads */
+	public int getAcceptorCount() {
+		return this.acceptors;
+	}
+
+	/**
+	 * Returns the number of sockets to bind: one per acceptor with
+	 * SO_REUSEPORT, otherwise one shared by the acceptors.
+	 */
+	public int getSocketCount() {
+		return this.reusePort ? this.acceptors : 1;
+	}
+
+	/**
+	 * Returns the name of the listener, e.g. "tls-8443", for thread names.
+	 */
+	public String getName() {
+		return (this.tls ? TLS : PLAIN) + "-" + this.address.getPort();
+	}
+
+	/**
+	 * Binds an unbound server socket to the listener address.
+	 */
+	public void bind(ServerSocket socket) throws IOException {
+		socket.setReuseAddress(true);
+		if (this.reusePort)
+			socket.setOption(StandardSocketOptions.SO_REUSEPORT, Boolean.TRUE);
+		socket.bind(this.address, this.backlog);
+	}
+
+	/**
+	 * Opens a listening channel bound to the listener address.
+	 */
+	public ServerSocketChannel openChannel() throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			bind(channel.socket());
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	/** Counts an accepted connection */
+	public void recordAccepted() {
+		this.acceptedCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns a one line summary of the listener.
+	 */
+	@Override
+	public String toString() {
+		return "listener " + (this.tls ? TLS : PLAIN) + " " + this.address.getAddress().getHostAddress()
+				+ ":" + this.address.getPort() + ": backlog=" + this.backlog + " acceptors="
+				+ this.acceptors + " sockets=" + getSocketCount() + " accepted="
+				+ this.acceptedCount.get();
+	}
+
+	// Returns true if server sockets support SO_REUSEPORT.
+	//
+	private static boolean isReusePortSupported() {
+		try (ServerSocket socket = new ServerSocket()) {
+			return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+}// end class
@@ -9,15 +9,28 @@ import java.net.*;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.lang.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSocket;
 import server.error.*;
 import server.handlers.connection.*;
+import server.handlers.resource.CompressionCache;
+import server.handlers.resource.ContentCache;
+import server.handlers.resource.DirectoryListingCache;
+import server.handlers.resource.MappedFileRegistry;
 import server.handlers.resource.ResourceRegistry;
 import server.log.*;
+import server.nio.NioServer;
 import server.parse.*;
 import util.*;
 
@@ -31,14 +44,20 @@ import util.*;
 public class WebServer {
 	private final String KEYSTORE = "./etc/haijun_key.store"; 		// keystore
 	private final String KEYSTOREPASS = "password"; 				// keystore password
-	private final String PROTOCOL = "SSLv3"; 						// protocol, ssl or tls
+	private final String PROTOCOL = "TLS"; 							// context protocol, the versions are configured
 	private final String KEYMANAGERFAC = "SunX509"; 				// keymanager protocol
 	private final String KEYSTORETYPE = "JKS"; 						// keystore type
 	private ConnectionHandler connectionHandler = null; 			// reference to the connection handler
+	private WorkerPool workerPool = null; 							// runs the connection handlers in pool mode
+	private ExecutorService virtualExecutor = null; 				// runs the connection handlers in virtual mode
+	private String dispatchMode = Constants.DISPATCH_POOL; 			// how accepted connections are run
 	private ResourceParser resourceParser = null; 					// reference to the HTTP request parser
-	private ServerSocket sslServerSocket = null; 					// reference to the server socket
-	private static int clientRequestCount = 0; 						// tracks the number of client connection requests
-	private int port = -1; 											// server port number
+	private List<Listener> listeners = null; 						// the addresses accepted on
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>(); // the listening sockets of the blocking engine
+	private SSLParameters sslParameters = null; 					// protocols and cipher suites of the TLS listeners
+	private NioServer nioServer = null; 							// the non-blocking engine, when selected
+	private static final AtomicInteger clientRequestCount = new AtomicInteger(); // tracks the number of client connection requests
+	private int port = -1; 											// default TLS port number
 	private int verbosity = 0; 										// stores the output verbosity level
 	private boolean initialized = false; 							// ensures proper initialization
 
@@ -84,14 +103,51 @@ public class WebServer {
 			if (port < 0)
 				port = Constants.DEFAULT_PORT;
 
-			this.sslServerSocket = this.initSSLServerSocket(this.port);
-
 			// store the web server identification footer in util.Constants
 			Constants.setFooterIdentification("Haijun's Server");
 
 			// instantiate the resource parser
 			this.resourceParser = new ResourceParser();
 
+			// read the content types
+			ResourceRegistry.getReference().load();
+
+			// the addresses to accept on
+			this.listeners = this.initListeners();
+
+			// start the selected engine
+			String engine = Configuration.getReference().getString("server.engine",
+					Constants.ENGINE_BLOCKING);
+			if (engine.equals(Constants.ENGINE_NIO)) {
+				this.initNioServer();
+			} else if (engine.equals(Constants.ENGINE_BLOCKING)) {
+				this.initServerSockets();
+				this.initDispatcher();
+			} else {
+				throw new IllegalArgumentException("unknown engine: " + engine);
+			}
+			System.out.println("- engine: " + engine);
+			for (Listener listener : this.listeners) {
+				System.out.println("- " + listener);
+				StatisticsReporter.getReference().register(listener);
+			}
+
+			// print the runtime statistics periodically
+			StatisticsReporter.getReference().register(TransferStatistics.getReference());
+			StatisticsReporter.getReference().register(TlsStatistics.getReference());
+			StatisticsReporter.getReference().register(AdmissionController.getReference());
+			StatisticsReporter.getReference().register(BandwidthShaper.getReference());
+			StatisticsReporter.getReference().register(MappedFileRegistry.getReference());
+			StatisticsReporter.getReference().register(ContentCache.getReference());
+			StatisticsReporter.getReference().register(CompressionCache.getReference());
+			StatisticsReporter.getReference().register(DirectoryListingCache.getReference());
+			StatisticsReporter.getReference().register(ResourceRegistry.getReference());
+			StatisticsReporter.getReference().register(LogManager.getReference().getAsyncWriter());
+			if (verbosity > 0) {
+				StatisticsReporter.getReference().start(Configuration.getReference()
+						.getLong("server.stats.interval", Constants.DEFAULT_STATS_INTERVAL));
+			}
+
 			// server successfully initialized
 			initialized = true;
 			System.out.println("- server is running");
@@ -117,25 +173,281 @@ public class WebServer {
 							+ ".acceptConnections(): server not properly initialized, terminate execution.");
 		}
 
-		Socket sslClientSocket = null;
+		// the non-blocking engine runs its own acceptors
+		if (this.nioServer != null) {
+			this.nioServer.acceptConnections();
+			return;
+		}
+
+		// start the acceptor threads of every listener and wait for them
+		List<Thread> acceptors = new ArrayList<Thread>();
+		int first = 0;
+		for (final Listener listener : this.listeners) {
+			int sockets = listener.getSocketCount();
+			for (int i = 0; i < listener.getAcceptorCount(); i++) {
+				final ServerSocket serverSocket = this.serverSockets.get(first + i % sockets);
+				Thread acceptor = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							acceptConnections(listener, serverSocket);
+						} catch (IOException e) {
+							if (!serverSocket.isClosed())
+								e.printStackTrace();
+						}
+					}
+				}, "acceptor-" + listener.getName() + "-" + (i + 1));
+				acceptor.start();
+				acceptors.add(acceptor);
+			}
+			first += sockets;
+		}
+		for (Thread acceptor : acceptors)
+			acceptor.join();
+	}
+
+	/**
+	 * Accepts connections on a listening socket and dispatches them.
+	 * 
+	 * @param listener
+	 *            is the listener the socket belongs to
+	 * @param serverSocket
+	 *            is the listening socket
+	 * @throws IOException
+	 */
+	private void acceptConnections(Listener listener, ServerSocket serverSocket) throws IOException {
+		Socket clientSocket = null;
 
 		// accept a socket, create a thread to run
 		while (true) {
-			sslClientSocket = this.sslServerSocket.accept();
-			this.clientRequestCount++;
-			this.connectionHandler = new ConnectionHandler(sslClientSocket, resourceParser);
-			new Thread(this.connectionHandler).start();
+			clientSocket = serverSocket.accept();
+			clientSocket.setTcpNoDelay(true);
+			clientRequestCount.incrementAndGet();
+			listener.recordAccepted();
+			ConnectionHandler connectionHandler = new ConnectionHandler(clientSocket, resourceParser);
+			this.dispatch(connectionHandler, clientSocket);
+		}
+	}
+
+	/**
+	 * Reads the listeners from server.listeners, e.g.
+	 * "tls:8443,plain:8080,plain:127.0.0.1:8081". Without it the server
+	 * listens for TLS on the port given on the command line, and for
+	 * plaintext on server.plaintext.port if that is set.
+	 * 
+	 * Configuration keys: server.listen.backlog, server.listen.acceptors
+	 * (acceptor threads per listener) and server.listen.reusePort (default
+	 * true), which gives each acceptor a socket of its own where the
+	 * platform supports SO_REUSEPORT.
+	 */
+	private List<Listener> initListeners() {
+		Configuration config = Configuration.getReference();
+		String list = Listener.TLS + ":" + this.port;
+		int plainPort = config.getInt("server.plaintext.port", -1);
+		if (plainPort >= 0)
+			list += "," + Listener.PLAIN + ":" + plainPort;
+
+		return Listener.parseList(config.getString("server.listeners", list),
+				config.getInt("server.listen.backlog", Constants.DEFAULT_LISTEN_BACKLOG),
+				config.getInt("server.listen.acceptors", Constants.DEFAULT_LISTEN_ACCEPTORS),
+				config.getBoolean("server.listen.reusePort", true));
+	}
+
+	/**
+	 * Opens the listening sockets of the blocking engine, in the order of
+	 * the listeners.
+	 */
+	private void initServerSockets() throws Exception {
+		SSLContext sslContext = this.hasTlsListener() ? this.initSSLContext() : null;
+		for (Listener listener : this.listeners) {
+			for (int i = 0; i < listener.getSocketCount(); i++) {
+				this.serverSockets.add(listener.isTls()
+						? this.initSSLServerSocket(sslContext, listener)
+						: this.initPlainServerSocket(listener));
+			}
+		}
+	}
+
+	/**
+	 * Returns true if any listener is a TLS listener.
+	 */
+	private boolean hasTlsListener() {
+		for (Listener listener : this.listeners) {
+			if (listener.isTls())
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Creates the worker pool when running in pool mode, or the virtual thread
+	 * executor in virtual mode. Virtual threads need Java 21; on an older
+	 * runtime the server falls back to pool mode.
+	 * 
+	 * Configuration keys: server.dispatch (pool, virtual or thread), server.pool.core,
+	 * server.pool.max, server.pool.queue and server.pool.keepalive (seconds).
+	 */
+	private void initDispatcher() {
+		Configuration config = Configuration.getReference();
+		this.dispatchMode = config.getString("server.dispatch", Constants.DISPATCH_POOL);
+
+		if (this.dispatchMode.equals(Constants.DISPATCH_VIRTUAL)) {
+			this.virtualExecutor = newVirtualThreadExecutor();
+			if (this.virtualExecutor == null) {
+				System.out.println("- virtual threads are not supported by this runtime");
+				this.dispatchMode = Constants.DISPATCH_POOL;
+			}
+		}
+
+		if (this.dispatchMode.equals(Constants.DISPATCH_POOL)) {
+			this.workerPool = newWorkerPool("connection");
+		} else if (!this.dispatchMode.equals(Constants.DISPATCH_THREAD)
+				&& !this.dispatchMode.equals(Constants.DISPATCH_VIRTUAL)) {
+			throw new IllegalArgumentException("unknown dispatch mode: " + this.dispatchMode);
+		}
+		System.out.println("- dispatch mode: " + this.dispatchMode);
+	}
+
+	/**
+	 * Creates a worker pool sized by the server.pool.* configuration keys and
+	 * registers it for the statistics report.
+	 */
+	private static WorkerPool newWorkerPool(String name) {
+		Configuration config = Configuration.getReference();
+		int core = config.getInt("server.pool.core", Constants.DEFAULT_POOL_CORE_THREADS);
+		int max = Math.max(core, config.getInt("server.pool.max", Constants.DEFAULT_POOL_MAX_THREADS));
+		WorkerPool pool = new WorkerPool(name, core, max,
+				config.getInt("server.pool.queue", Constants.DEFAULT_POOL_QUEUE_SIZE),
+				config.getLong("server.pool.keepalive", Constants.DEFAULT_POOL_KEEPALIVE));
+		StatisticsReporter.getReference().register(pool);
+		return pool;
+	}
+
+	/**
+	 * Starts the non-blocking engine, whose event loops serve all listeners.
+	 * Requests run on a worker pool sized by the server.pool.* keys;
+	 * server.nio.loops sets the number of event loop threads (default: one
+	 * per processor).
+	 * 
+	 * @throws Exception
+	 */
+	private void initNioServer() throws Exception {
+		int loops = Configuration.getReference().getInt("server.nio.loops",
+				Runtime.getRuntime().availableProcessors());
+		this.workerPool = newWorkerPool("request");
+		SSLContext sslContext = this.hasTlsListener() ? this.initSSLContext() : null;
+		this.nioServer = new NioServer(this.listeners, sslContext, this.sslParameters,
+				this.resourceParser, this.workerPool, loops);
+		this.nioServer.start();
+		StatisticsReporter.getReference().register(this.nioServer);
+	}
+
+	/**
+	 * Returns an executor starting a virtual thread per task, or null if the
+	 * runtime has no virtual threads. Looked up reflectively so the server
+	 * still compiles and runs on older JDKs.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the connection handler according to the dispatch mode. A plaintext
+	 * connection the saturated pool cannot take is answered with 503 by the
+	 * acceptor; a TLS connection is closed, as its handshake would hold up the
+	 * acceptor.
+	 * 
+	 * @param handler
+	 *            is the connection handler to run
+	 * @param clientSocket
+	 *            is the accepted socket served by the handler
+	 */
+	private void dispatch(ConnectionHandler handler, Socket clientSocket) {
+		if (this.virtualExecutor != null) {
+			this.virtualExecutor.execute(handler);
+			return;
+		}
+		if (this.workerPool == null) {
+			new Thread(handler).start();
+			return;
+		}
+
+		try {
+			this.workerPool.execute(handler);
+		} catch (RejectedExecutionException e) {
+			AdmissionController.getReference().recordShed();
+			try {
+				if (clientSocket instanceof SSLSocket) {
+					clientSocket.close();
+				} else {
+					SocketConnection connection = new SocketConnection(clientSocket);
+					ErrorModule.getReference().serviceUnavailable(connection, null);
+					connection.close();
+				}
+			} catch (IOException ioe) {
+				ioe.printStackTrace();
+			}
+			if (verbosity > 1)
+				System.out.println(this.workerPool);
 		}
 	}
 
 	/**
 	 * Initialize and return an SSLServerSocket.
 	 * (referred to https://forums.oracle.com/thread/1533716) 
-	 * @param port
+	 * @param sslContext
+	 * @param listener
 	 * @return
 	 * @throws Exception 
 	 */
-	private ServerSocket initSSLServerSocket(int port) throws Exception {
+	private ServerSocket initSSLServerSocket(SSLContext sslContext, Listener listener)
+			throws Exception {
+
+		// let the factory initialize an SSLServerSocket
+		SSLServerSocketFactory sslServerSocketFactory = sslContext.getServerSocketFactory();
+		SSLServerSocket sslServerSocket = (SSLServerSocket) sslServerSocketFactory
+				.createServerSocket();
+		sslServerSocket.setSSLParameters(this.sslParameters);
+		listener.bind(sslServerSocket);
+
+		return sslServerSocket;
+	}
+
+	/**
+	 * Initialize and return a plaintext server socket. It is opened from a
+	 * ServerSocketChannel, so the accepted sockets have a channel to send
+	 * files with transferTo.
+	 * @param listener
+	 * @return
+	 * @throws IOException 
+	 */
+	private ServerSocket initPlainServerSocket(Listener listener) throws IOException {
+		return listener.openChannel().socket();
+	}
+
+	/**
+	 * Initialize and return the SSLContext shared by both engines, and the
+	 * SSL parameters applied to its sockets and engines.
+	 * 
+	 * Configuration keys: server.tls.protocols (default TLSv1.3,TLSv1.2),
+	 * server.tls.ciphers (default: those of the runtime),
+	 * server.tls.sessionCacheSize, server.tls.sessionTimeout (seconds) and
+	 * server.tls.tickets (default true), which lets a client resume a
+	 * session from a ticket the server does not have to keep.
+	 * @return
+	 * @throws Exception 
+	 */
+	private SSLContext initSSLContext() throws Exception {
+		Configuration config = Configuration.getReference();
+
+		// read by the TLS implementation when it is first used
+		System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+				String.valueOf(config.getBoolean("server.tls.tickets", true)));
 
 		// set the keystore and password
 		System.setProperty("javax.net.ssl.keyStore", KEYSTORE);
@@ -152,13 +464,42 @@ public class WebServer {
 		SSLContext sslContext = SSLContext.getInstance(PROTOCOL);
 		sslContext.init(keyManagerFactory.getKeyManagers(), null, null);
 
-		// let the factory initialize an SSLServerSocket
-		SSLServerSocketFactory sslServerSocketFactory = sslContext
-				.getServerSocketFactory();
-		ServerSocket sslServerSocket = sslServerSocketFactory
-				.createServerSocket(port);
+		// the session cache lets a returning client skip the full handshake
+		sslContext.getServerSessionContext().setSessionCacheSize(config.getInt(
+				"server.tls.sessionCacheSize", Constants.DEFAULT_TLS_SESSION_CACHE_SIZE));
+		sslContext.getServerSessionContext().setSessionTimeout(config.getInt(
+				"server.tls.sessionTimeout", Constants.DEFAULT_TLS_SESSION_TIMEOUT));
 
-		return sslServerSocket;
+		// the enabled protocols and cipher suites, which must be supported
+		SSLParameters supported = sslContext.getSupportedSSLParameters();
+		this.sslParameters = sslContext.getDefaultSSLParameters();
+		this.sslParameters.setProtocols(selectSupported("protocol",
+				config.getString("server.tls.protocols", Constants.DEFAULT_TLS_PROTOCOLS),
+				supported.getProtocols()));
+		String ciphers = config.getString("server.tls.ciphers", "");
+		if (!ciphers.isEmpty())
+			this.sslParameters.setCipherSuites(selectSupported("cipher suite", ciphers,
+					supported.getCipherSuites()));
+		System.out.println("- tls protocols: " + String.join(",", this.sslParameters.getProtocols()));
+
+		return sslContext;
+	}
+
+	/**
+	 * Returns the names of a comma separated list, checking that each one is
+	 * supported.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a name is not supported
+	 */
+	private static String[] selectSupported(String kind, String list, String[] supported) {
+		List<String> known = Arrays.asList(supported);
+		String[] names = list.trim().split("\\s*,\\s*");
+		for (String name : names) {
+			if (!known.contains(name))
+				throw new IllegalArgumentException("unsupported TLS " + kind + ": " + name);
+		}
+		return names;
 	}
 
 	// driver
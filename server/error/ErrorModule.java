@@ -5,14 +5,24 @@
 package server.error;
 
 import java.io.*;
-import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 
+import server.handlers.connection.AdmissionController;
+import server.handlers.connection.ClientConnection;
+import server.handlers.connection.ResponseHeader;
 import server.log.LogManager;
+import server.parse.HttpRequest;
 import util.*;
 
 /**
  * Error Module - contains logic for outputting html-friendly error messages.
  * 
+ * The error pages are rendered once, on first use, into byte arrays
+ * together with their Content-Type and Content-Length lines; an error
+ * response only adds the status, Date and Connection lines and sends the
+ * page like a cached file.
+ * 
  * The singleton design pattern is implemented to ensure that only one instance
  * of this class is instantiated.
  * 
@@ -23,7 +33,14 @@ import util.*;
 public class ErrorModule {
 
 	// singleton reference to this class
-	private static ErrorModule singleton = null;
+	private static final ErrorModule singleton = new ErrorModule();
+
+	// the status codes with a rendered page
+	private static final int[] STATUS_CODES = { 400, 403, 404, 405, 413, 414,
+			431, 500, 501, 503 };
+
+	// the rendered pages by status code, null until first used
+	private volatile ErrorPage[] pages = null;
 
 	// constructor is private to guarantee a singleton instance
 	private ErrorModule() {
@@ -33,8 +50,6 @@ public class ErrorModule {
 	 * Returns a reference to this singleton class
 	 */
 	public static ErrorModule getReference() {
-		if (singleton == null)
-			singleton = new ErrorModule();
 		return singleton;
 	}
 
@@ -42,75 +57,124 @@ public class ErrorModule {
 	 * Outputs a friendly HTTP 404 Error to the client.
 	 * @throws IOException 
 	 */
-	public void fileNotFoundError(Socket clientSocket, String request, Exception e) throws IOException {
-		PrintWriter output = new PrintWriter(new BufferedOutputStream(clientSocket.getOutputStream(), Constants.DEFAULT_BUFFER_SIZE));
-		responseHeader(output, Utilities.getResponseMessage(404));
-		responseBody(output, Utilities.getResponseMessage(404));
-//		exceptionStackTrace(output, e);
-		versionFooter(output);
-		pageTerminator(output);
-		output.flush();
-		output.close();
-		
-		// log the 404 error
-		StringBuffer logEntry = LogManager.getReference().constructLogEntry(clientSocket, request);
-		logEntry.append("404 " + String.valueOf(Constants.FILE_SIZE_404 + request.length()));
-		LogManager.getReference().log(logEntry.toString());
+	public void fileNotFoundError(ClientConnection clientSocket, HttpRequest request, Exception e) throws IOException {
+		requestError(clientSocket, request, 404);
 	}
 
 	/**
-	 * Outputs a friendly HTTP 500 Error to the client.
+	 * Outputs a friendly HTTP error for a request that cannot be served: 405
+	 * or 501 for a method other than GET and HEAD, or 400, 414 or 431 for a
+	 * malformed header, which has no request and closes the connection.
 	 * @throws IOException 
 	 */
-	public void internalServerError(Socket clientSocket, Exception e) throws IOException {
-		PrintWriter output = new PrintWriter(new BufferedOutputStream(clientSocket.getOutputStream(), Constants.DEFAULT_BUFFER_SIZE));
-		responseHeader(output, Utilities.getResponseMessage(500));
-		responseBody(output, Utilities.getResponseMessage(500));
-//		exceptionStackTrace(output, e);
-//		versionFooter(output);
-		pageTerminator(output);
-		output.flush();
-		output.close();
+	public void requestError(ClientConnection clientSocket, HttpRequest request, int statusCode) throws IOException {
+		int length = sendResponse(clientSocket, request, statusCode);
+
+		// log the error with the bytes of the page
+		if (request != null)
+			LogManager.getReference().logRequest(clientSocket, request, statusCode, length);
 	}
 
-	// Outputs the response header.
-	//
-	private void responseHeader(PrintWriter output, String statusCode) {
-		output.println(Constants.HTTP_VERSION + " " + statusCode);
-		output.println("Content-Type: text/html");
-		output.println();
+	/**
+	 * Outputs a friendly HTTP 503 Error to a client turned away by the
+	 * admission control, asking it to retry later. The connection is closed
+	 * afterwards. The request is null if its header was not read, and then
+	 * not logged.
+	 * @throws IOException 
+	 */
+	public void serviceUnavailable(ClientConnection clientSocket, HttpRequest request) throws IOException {
+		if (request != null)
+			request.setKeepAlive(false);
+		requestError(clientSocket, request, 503);
 	}
 
-	// Outputs the response body.
+	/**
+	 * Outputs a friendly HTTP 500 Error to the client when the handler of
+	 * its request failed, unless the response has already started. The
+	 * connection is closed afterwards either way, so a failure to send the
+	 * page is ignored.
+	 */
+	public void internalServerError(ClientConnection clientSocket, Exception e) {
+		if (clientSocket.isResponseStarted())
+			return;
+		try {
+			sendResponse(clientSocket, null, 500);
+		} catch (IOException ioe) {
+			// the connection is closed anyway
+		}
+	}
+
+	// Outputs the response header and the rendered page; returns the length
+	// of the page.
 	//
-	private void responseBody(PrintWriter output, String statusCode) {
-		output.println("<html>");
-		output.println("<head><title>" + statusCode + "</title></head>");
-		output.println("<body>");
-		output.println("<h1>" + statusCode + "</h1>");
+	private int sendResponse(ClientConnection clientSocket, HttpRequest request,
+			int statusCode) throws IOException {
+		ErrorPage page = page(statusCode);
+		ResponseHeader.begin(statusCode)
+				.line(page.fields)
+				.connection(request)
+				.writeTo(clientSocket.getOutputStream());
+		clientSocket.transferBuffer(ByteBuffer.wrap(page.body), page);
+		return page.body.length;
 	}
 
-	// Outputs the specified exception's stack trace to the client.
+	// Returns the rendered page of the status code; a code without a page of
+	// its own is rendered on each use.
 	//
-	private void exceptionStackTrace(PrintWriter output, Exception e) {
-		output.println("<br>");
-		output.println("<strong>Exception Stack Trace</strong>");
-		output.println("<br>");
-		output.println(Utilities.getStackTraceAsStringForHTML(e));
+	private ErrorPage page(int statusCode) {
+		ErrorPage[] rendered = this.pages;
+		if (rendered == null) {
+			// rendering twice in a race is harmless, the pages are equal
+			rendered = new ErrorPage[600];
+			for (int code : STATUS_CODES)
+				rendered[code] = new ErrorPage(code);
+			this.pages = rendered;
+		}
+		ErrorPage page = (statusCode >= 0 && statusCode < rendered.length)
+				? rendered[statusCode] : null;
+		return (page != null) ? page : new ErrorPage(statusCode);
 	}
 
-	// Outputs the web server's version footer.
+	// Renders the page of the status code, with CRLF line ends. The 500 page
+	// does not name the server.
 	//
-	private void versionFooter(PrintWriter output) {
-		output.println("<hr width=100% align=left size=1>");
-		output.println(Utilities.versionFooter());
+	private static String render(int statusCode) {
+		String message = Utilities.getResponseMessage(statusCode);
+		StringBuilder str = new StringBuilder(256);
+		str.append("<html>").append(Constants.CRLF);
+		str.append("<head><title>").append(message).append("</title></head>").append(Constants.CRLF);
+		str.append("<body>").append(Constants.CRLF);
+		str.append("<h1>").append(message).append("</h1>").append(Constants.CRLF);
+		if (statusCode != 500) {
+			str.append("<hr width=100% align=left size=1>").append(Constants.CRLF);
+			str.append(Utilities.versionFooter()).append(Constants.CRLF);
+		}
+		str.append("</body>").append(Constants.CRLF);
+		str.append("</html>").append(Constants.CRLF);
+		return str.toString();
 	}
 
-	// Terminates the html listing.
+	// A rendered error page and its header fields. Closing it, once it is
+	// sent, releases nothing.
 	//
-	private void pageTerminator(PrintWriter output) {
-		output.println("</body>");
-		output.println("</html>");
+	private static class ErrorPage implements Closeable {
+		private final byte[] fields; 								// Content-Type, Content-Length, Allow, Retry-After
+		private final byte[] body; 								// the page
+
+		ErrorPage(int statusCode) {
+			this.body = render(statusCode).getBytes(StandardCharsets.ISO_8859_1);
+			String fields = "Content-Type: text/html" + Constants.CRLF
+					+ "Content-Length: " + this.body.length + Constants.CRLF;
+			if (statusCode == 405)
+				fields += "Allow: GET, HEAD" + Constants.CRLF;
+			if (statusCode == 503)
+				fields += "Retry-After: " + AdmissionController.RETRY_AFTER + Constants.CRLF;
+			this.fields = fields.getBytes(StandardCharsets.ISO_8859_1);
+		}
+
+		@Override
+		public void close() {
+		}
 	}
 
 }// end class
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive Limit - a concurrency limit that follows the request latency,
+ * with a gradient algorithm.
+ *
+ * The latency samples are averaged over windows of WINDOW_SAMPLES
+ * requests. The average of a window, the short term latency, is compared
+ * with a slowly moving average over many windows, the long term latency:
+ *
+ *   gradient = clamp(TOLERANCE * long / short, 0.5, 1)
+ *   limit    = limit * gradient + sqrt(limit)
+ *
+ * While the latency holds, the gradient is 1 and the limit grows by its
+ * square root each window, probing for more throughput; once requests
+ * queue for the disk or the processors and the latency rises beyond the
+ * tolerance, the limit shrinks in proportion. The new limit is smoothed
+ * with the old one and kept between the minimum and the maximum. A window
+ * in which less than half of the limit was in use says nothing about it,
+ * so the limit is kept.
+ *
+ * When the latency has risen for good, e.g. the files no longer fit the
+ * cache, the long term average is pulled towards the new level so the
+ * limit does not stay at its minimum.
+ *
+ * Created: 2013.11.25
+ *
+ * @author haijunq
+ */
+public class AdaptiveLimit {
+	private static final int WINDOW_SAMPLES = 50; 					// requests per latency window
+	private static final double LONG_WINDOWS = 20; 					// windows in the long term average
+	private static final double TOLERANCE = 1.5; 					// latency rise that is tolerated
+	private static final double SMOOTHING = 0.2; 					// weight of a new limit
+	private static final int HISTORY_SIZE = 32; 					// limits kept in the history
+
+	private final int minLimit;
+	private final int maxLimit;
+	private volatile int limit; 									// the current limit
+
+	private final ReentrantLock lock = new ReentrantLock(); 		// guards the fields below
+	private double estimate; 										// the limit before rounding
+	private double longLatency = 0; 								// long term average latency, ns
+	private long windowSum = 0; 									// latency sum of the window, ns
+	private int windowCount = 0; 									// samples in the window
+	private int windowInFlight = 0; 								// most requests in flight in the window
+	private long shortLatency = 0; 								// average latency of the last window, ns
+	private final int[] history = new int[HISTORY_SIZE]; 			// the limit after each window
+	private long windows = 0; 										// windows completed
+
+	/**
+	 * Constructs the limit
+	 *
+	 * @param initialLimit
+	 *            is the limit before the first window
+	 * @param minLimit
+	 *            is the lowest limit
+	 * @param maxLimit
+	 *            is the highest limit
+	 */
+	public AdaptiveLimit(int initialLimit, int minLimit, int maxLimit) {
+		if (minLimit < 1 || maxLimit < minLimit) {
+			throw new IllegalArgumentException("invalid limit range: " + minLimit + "-" + maxLimit);
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+		this.estimate = this.limit;
+	}
+
+	/** Returns the current limit */
+	public int getLimit() {
+		return this.limit;
+	}
+
+	/**
+	 * Records the latency of a request.
+	 *
+	 * @param nanos
+	 *            is the latency of the request
+	 * @param inFlight
+	 *            is the number of requests in flight when it ended,
+	 *            including itself
+	 */
+	public void record(long nanos, int inFlight) {
+		this.lock.lock();
+		try {
+			this.windowSum += nanos;
+			this.windowInFlight = Math.max(this.windowInFlight, inFlight);
+			if (++this.windowCount < WINDOW_SAMPLES)
+				return;
+			update(this.windowSum / this.windowCount, this.windowInFlight);
+			this.windowSum = 0;
+			this.windowCount = 0;
+			this.windowInFlight = 0;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the limit and its recent history, oldest
+	 * first.
+	 */
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			StringBuilder recent = new StringBuilder();
+			int count = (int) Math.min(this.windows, 8);
+			for (long i = this.windows - count; i < this.windows; i++) {
+				if (recent.length() > 0)
+					recent.append(',');
+				recent.append(this.history[(int) (i % HISTORY_SIZE)]);
+			}
+			return "limit=" + this.limit + " (" + this.minLimit + "-" + this.maxLimit + ") latency="
+					+ this.shortLatency / 1000 + "us long=" + (long) this.longLatency / 1000
+					+ "us history=[" + recent + "]";
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Adjusts the limit at the end of a window; runs under the lock.
+	//
+	private void update(long latency, int inFlight) {
+		this.shortLatency = latency;
+		if (this.longLatency == 0) {
+			this.longLatency = latency;
+		} else {
+			this.longLatency += (latency - this.longLatency) / LONG_WINDOWS;
+			// a lasting rise moves the baseline faster
+			if (this.longLatency > 2 * latency || latency > 2 * this.longLatency)
+				this.longLatency += (latency - this.longLatency) / LONG_WINDOWS;
+		}
+
+		if (2 * inFlight >= this.limit) {
+			double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * this.longLatency / latency));
+			double target = this.estimate * gradient + Math.sqrt(this.estimate);
+			this.estimate = this.estimate * (1 - SMOOTHING) + target * SMOOTHING;
+			this.estimate = Math.max(this.minLimit, Math.min(this.maxLimit, this.estimate));
+			this.limit = (int) this.estimate;
+		}
+		this.history[(int) (this.windows++ % HISTORY_SIZE)] = this.limit;
+	}
+
+}// end class
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import util.*;
+
+/**
+ * Admission Controller - caps the work in flight, so that under overload the
+ * excess is turned away with a fast 503 instead of slowing down everybody.
+ *
+ * Each request holds a slot while the resource parser serves it. With
+ * server.admission.limit=fixed at most server.admission.maxInFlight requests
+ * hold one; with adaptive, the default, the number of slots is an
+ * AdaptiveLimit between server.admission.minLimit and maxInFlight, which
+ * follows the latency of the requests and so keeps the server near the
+ * concurrency of its best throughput as the load changes. Up to
+ * server.admission.queue further callers wait for a slot, each for at most
+ * server.admission.queueTimeout milliseconds; a caller finding the queue
+ * full, or waiting too long, is rejected and answered with 503 and a
+ * Retry-After of server.admission.retryAfter seconds.
+ *
+ * A response of server.admission.largeThreshold bytes or more gives its slot
+ * back once its length is known and moves to the large lane, where at most
+ * server.admission.largeMaxInFlight responses are sent at a time. A few bulk
+ * downloads so cannot take every slot while small pages wait, and their
+ * latency, which follows their size, does not drive the adaptive limit.
+ *
+ * A slot is taken with one compare-and-set; the lock of a lane is only used
+ * by the waiting callers.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.24
+ *
+ * @author haijunq
+ */
+public class AdmissionController {
+
+	// seconds a rejected client is asked to wait before retrying
+	public static final int RETRY_AFTER = Configuration.getReference()
+			.getInt("server.admission.retryAfter", Constants.DEFAULT_ADMISSION_RETRY_AFTER);
+
+	// responses of this many bytes or more are sent in the large lane
+	public static final long LARGE_THRESHOLD = Configuration.getReference()
+			.getLong("server.admission.largeThreshold", Constants.DEFAULT_ADMISSION_LARGE_THRESHOLD);
+
+	// singleton reference to this class
+	private static final AdmissionController singleton = new AdmissionController();
+
+	// configuration
+	private final int maxInFlight;
+	private final int maxLarge;
+	private final AdaptiveLimit adaptiveLimit; 					// null with a fixed limit
+	private final int maxQueued;
+	private final long queueTimeoutNanos;
+
+	// the lanes
+	private final Lane general = new Lane("general");
+	private final Lane large = new Lane("large");
+
+	// statistics
+	private final AtomicLong shedCount = new AtomicLong(); 		// turned away by a saturated pool
+
+	// constructor is private to guarantee a singleton instance
+	private AdmissionController() {
+		Configuration config = Configuration.getReference();
+		this.maxInFlight = config.getInt("server.admission.maxInFlight",
+				Constants.DEFAULT_ADMISSION_MAX_IN_FLIGHT);
+		this.maxLarge = config.getInt("server.admission.largeMaxInFlight",
+				Constants.DEFAULT_ADMISSION_LARGE_MAX_IN_FLIGHT);
+		this.maxQueued = config.getInt("server.admission.queue",
+				Constants.DEFAULT_ADMISSION_QUEUE);
+		this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getLong(
+				"server.admission.queueTimeout", Constants.DEFAULT_ADMISSION_QUEUE_TIMEOUT));
+
+		String mode = config.getString("server.admission.limit", Constants.LIMIT_ADAPTIVE);
+		if (mode.equals(Constants.LIMIT_ADAPTIVE)) {
+			this.adaptiveLimit = new AdaptiveLimit(
+					config.getInt("server.admission.initialLimit", Constants.DEFAULT_ADMISSION_INITIAL_LIMIT),
+					Math.min(this.maxInFlight, config.getInt("server.admission.minLimit",
+							Constants.DEFAULT_ADMISSION_MIN_LIMIT)),
+					this.maxInFlight);
+		} else if (mode.equals(Constants.LIMIT_FIXED)) {
+			this.adaptiveLimit = null;
+		} else {
+			throw new IllegalArgumentException("unknown admission limit: " + mode);
+		}
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static AdmissionController getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Takes a slot, waiting in the queue if all are held. The ticket must be
+	 * given back with release(Ticket).
+	 *
+	 * @return the ticket holding the slot, or null if the caller is rejected:
+	 *         the queue is full, or no slot was released within the queue
+	 *         timeout
+	 */
+	public Ticket acquire() {
+		if (!this.general.acquire(getLimit()))
+			return null;
+		return new Ticket();
+	}
+
+	/**
+	 * Moves a request whose response is large from its slot to the large
+	 * lane, waiting there like in acquire(). The slot is given back first,
+	 * so the small requests behind it go ahead while it waits.
+	 *
+	 * @return false if the request is rejected; its ticket holds no slot any
+	 *         more
+	 */
+	public boolean enterLargeLane(Ticket ticket) {
+		if (ticket.lane != this.general)
+			return ticket.lane == this.large;
+		this.general.release();
+		ticket.lane = null;
+		if (!this.large.acquire(this.maxLarge))
+			return false;
+		ticket.lane = this.large;
+		return true;
+	}
+
+	/**
+	 * Gives back the slot of a ticket, recording the latency of a request
+	 * served in the general lane for the adaptive limit.
+	 */
+	public void release(Ticket ticket) {
+		Lane lane = ticket.lane;
+		if (lane == null)
+			return;
+		ticket.lane = null;
+		int held = lane.release();
+		if (lane == this.general && this.adaptiveLimit != null)
+			this.adaptiveLimit.record(System.nanoTime() - ticket.start, held);
+	}
+
+	/**
+	 * Records a caller turned away before reaching acquire(), because the
+	 * worker pool could not take it.
+	 */
+	public void recordShed() {
+		this.shedCount.incrementAndGet();
+	}
+
+	/** Returns the current number of slots of the general lane */
+	public int getLimit() {
+		return (this.adaptiveLimit == null) ? this.maxInFlight : this.adaptiveLimit.getLimit();
+	}
+
+	/** Returns the number of slots held in both lanes */
+	public int getInFlight() {
+		return this.general.inFlight.get() + this.large.inFlight.get();
+	}
+
+	/** Returns the number of callers rejected, shed or timed out */
+	public long getRejectedCount() {
+		return this.general.getRejectedCount() + this.large.getRejectedCount()
+				+ this.shedCount.get();
+	}
+
+	/**
+	 * Returns a one line summary of the admission statistics.
+	 */
+	@Override
+	public String toString() {
+		return "admission: " + this.general.toString(getLimit()) + " "
+				+ this.large.toString(this.maxLarge) + " shed=" + this.shedCount.get()
+				+ (this.adaptiveLimit == null ? "" : " adaptive " + this.adaptiveLimit);
+	}
+
+	/**
+	 * Ticket - the slot held by one request, and when it was taken.
+	 */
+	public final class Ticket {
+		private final long start = System.nanoTime(); 				// when the slot was taken
+		private Lane lane = general; 								// the lane of the slot, null if none
+
+		// constructed by acquire() only
+		private Ticket() {
+		}
+	}
+
+	// Lane - slots, their waiting callers and statistics.
+	//
+	private class Lane {
+		private final String name;
+		private final AtomicInteger inFlight = new AtomicInteger(); 	// slots held
+		private final AtomicInteger waiting = new AtomicInteger(); 	// callers waiting for a slot
+		private final ReentrantLock lock = new ReentrantLock(); 		// guards the released condition
+		private final Condition released = this.lock.newCondition(); 	// a slot was released
+
+		// statistics
+		private final AtomicLong admittedCount = new AtomicLong();
+		private final AtomicLong queuedCount = new AtomicLong();
+		private final AtomicLong rejectedCount = new AtomicLong();
+		private final AtomicLong timedOutCount = new AtomicLong();
+
+		Lane(String name) {
+			this.name = name;
+		}
+
+		// Takes a slot of at most limit, waiting in the queue if all are held;
+		// returns false if the caller is rejected.
+		//
+		boolean acquire(int limit) {
+			if (tryAcquire(limit)) {
+				this.admittedCount.incrementAndGet();
+				return true;
+			}
+
+			// the waiting count is raised before the slot is checked again, so
+			// a release in between is not missed
+			if (this.waiting.incrementAndGet() > maxQueued) {
+				this.waiting.decrementAndGet();
+				this.rejectedCount.incrementAndGet();
+				return false;
+			}
+			this.queuedCount.incrementAndGet();
+			this.lock.lock();
+			try {
+				long wait = queueTimeoutNanos;
+				while (!tryAcquire(limit)) {
+					if (wait <= 0) {
+						this.timedOutCount.incrementAndGet();
+						return false;
+					}
+					wait = this.released.awaitNanos(wait);
+				}
+				this.admittedCount.incrementAndGet();
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				this.rejectedCount.incrementAndGet();
+				return false;
+			} finally {
+				this.waiting.decrementAndGet();
+				this.lock.unlock();
+			}
+		}
+
+		// Gives back a slot; returns the number held before.
+		//
+		int release() {
+			int held = this.inFlight.getAndDecrement();
+			if (this.waiting.get() > 0) {
+				this.lock.lock();
+				try {
+					this.released.signal();
+				} finally {
+					this.lock.unlock();
+				}
+			}
+			return held;
+		}
+
+		long getRejectedCount() {
+			return this.rejectedCount.get() + this.timedOutCount.get();
+		}
+
+		String toString(int limit) {
+			return this.name + " in-flight=" + this.inFlight.get() + "/" + limit
+					+ " waiting=" + this.waiting.get() + "/" + maxQueued
+					+ " admitted=" + this.admittedCount.get() + " queued=" + this.queuedCount.get()
+					+ " rejected=" + this.rejectedCount.get() + " timed-out=" + this.timedOutCount.get();
+		}
+
+		// Takes a slot if one is free.
+		//
+		private boolean tryAcquire(int limit) {
+			int current;
+			do {
+				current = this.inFlight.get();
+				if (current >= limit)
+					return false;
+			} while (!this.inFlight.compareAndSet(current, current + 1));
+			return true;
+		}
+	}
+
+}// end class
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.*;
+
+/**
+ * Bandwidth Shaper - limits the byte rate of large response bodies, so a
+ * few bulk downloads cannot fill the uplink while pages load.
+ *
+ * A body of server.shaping.minSize bytes or more is shaped unless its path
+ * or content type is exempt. Each connection sends shaped bodies at no more
+ * than server.shaping.connectionRate bytes a second, and all of them
+ * together at no more than server.shaping.globalRate; a rate of 0 leaves
+ * that limit off. Both buckets allow bursts of server.shaping.burst bytes.
+ *
+ * server.shaping.exempt lists what is never shaped: an entry starting with
+ * "/" is a path prefix, one ending with "/" a content type prefix such as
+ * "image/", any other a content type.
+ *
+ * The blocking engine sleeps in the sending thread until the buckets have
+ * tokens; the non-blocking engine stops writing the connection and lets its
+ * event loop resume it, so a waiting transfer holds no thread.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.25
+ *
+ * @author haijunq
+ */
+public class BandwidthShaper {
+
+	// singleton reference to this class
+	private static final BandwidthShaper singleton = new BandwidthShaper();
+
+	// configuration
+	private final long connectionRate;
+	private final long burst;
+	private final long minSize;
+	private final TokenBucket global; 								// shared by all connections, or null
+	private final List<String> exemptPaths = new ArrayList<String>();
+	private final List<String> exemptTypes = new ArrayList<String>();
+
+	// statistics
+	private final AtomicLong shapedResponses = new AtomicLong();
+	private final AtomicLong shapedBytes = new AtomicLong();
+	private final AtomicLong waitCount = new AtomicLong(); 			// grants refused for lack of tokens
+
+	// constructor is private to guarantee a singleton instance
+	private BandwidthShaper() {
+		Configuration config = Configuration.getReference();
+		this.connectionRate = config.getLong("server.shaping.connectionRate", 0);
+		this.burst = config.getLong("server.shaping.burst", Constants.DEFAULT_SHAPING_BURST);
+		this.minSize = config.getLong("server.shaping.minSize", Constants.DEFAULT_SHAPING_MIN_SIZE);
+		long globalRate = config.getLong("server.shaping.globalRate", 0);
+		this.global = (globalRate > 0) ? new TokenBucket(globalRate, this.burst) : null;
+
+		for (String entry : config.getString("server.shaping.exempt", "").split(",")) {
+			entry = entry.trim().toLowerCase();
+			if (entry.startsWith("/"))
+				this.exemptPaths.add(entry);
+			else if (!entry.isEmpty())
+				this.exemptTypes.add(entry);
+		}
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static BandwidthShaper getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns true if a response body is shaped, and counts it.
+	 *
+	 * @param path
+	 *            is the requested resource
+	 * @param contentType
+	 *            is the content type of the body
+	 * @param length
+	 *            is the length of the body
+	 */
+	public boolean isShaped(String path, String contentType, long length) {
+		if ((this.connectionRate <= 0 && this.global == null) || length < this.minSize)
+			return false;
+
+		String lowerPath = path.toLowerCase();
+		for (String prefix : this.exemptPaths) {
+			if (lowerPath.startsWith(prefix))
+				return false;
+		}
+		String type = contentType.toLowerCase();
+		int parameters = type.indexOf(';');
+		if (parameters >= 0)
+			type = type.substring(0, parameters).trim();
+		for (String exempt : this.exemptTypes) {
+			if (exempt.endsWith("/") ? type.startsWith(exempt) : type.equals(exempt))
+				return false;
+		}
+		this.shapedResponses.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Returns a new throttle for a connection.
+	 */
+	public Throttle newThrottle() {
+		TokenBucket connection = (this.connectionRate > 0)
+				? new TokenBucket(this.connectionRate, this.burst) : null;
+		return new Throttle(connection, this.global);
+	}
+
+	/** Counts bytes granted to shaped bodies */
+	void recordShaped(long bytes) {
+		this.shapedBytes.addAndGet(bytes);
+	}
+
+	/** Counts a grant refused for lack of tokens */
+	void recordWait() {
+		this.waitCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns a one line summary of the shaping statistics.
+	 */
+	@Override
+	public String toString() {
+		return "shaping: connection=" + (this.connectionRate > 0 ? this.connectionRate + "B/s" : "off")
+				+ " global=" + (this.global != null ? this.global.toString() : "off")
+				+ " responses=" + this.shapedResponses.get() + " bytes=" + this.shapedBytes.get()
+				+ " waits=" + this.waitCount.get();
+	}
+
+}// end class
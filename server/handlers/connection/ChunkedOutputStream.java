@@ -0,0 +1,70 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.*;
+
+/**
+ * Chunked Output Stream - writes a response body of unknown length with the
+ * HTTP/1.1 chunked transfer coding, so the connection can stay open.
+ *
+ * Every write becomes one chunk, so the stream is usually wrapped in a
+ * BufferedOutputStream to send chunks of the buffer size. close() writes the
+ * last, empty chunk; it does not close the connection.
+ *
+ * Created: 2013.11.20
+ *
+ * @author haijunq
+ */
+public class ChunkedOutputStream extends FilterOutputStream {
+	private static final byte[] CRLF = { '\r', '\n' };
+	private static final byte[] LAST_CHUNK = { '0', '\r', '\n', '\r', '\n' };
+
+	private boolean finished = false; 								// the last chunk was written
+
+	/**
+	 * Constructs the stream
+	 *
+	 * @param out
+	 *            is the response stream of the connection
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.finished) {
+			throw new IOException("the chunked body is finished");
+		}
+		// an empty chunk would end the body
+		if (len == 0)
+			return;
+
+		this.out.write((Integer.toHexString(len)).getBytes("US-ASCII"));
+		this.out.write(CRLF);
+		this.out.write(b, off, len);
+		this.out.write(CRLF);
+	}
+
+	/**
+	 * Writes the last chunk and flushes the response; the connection stays
+	 * open.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (this.finished)
+			return;
+		this.finished = true;
+		this.out.write(LAST_CHUNK);
+		this.out.flush();
+	}
+
+}// end class
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+import server.parse.HttpRequestParser;
+
+/**
+ * Client Connection - the transport a request is read from and its response
+ * is written to.
+ * 
+ * The resource parser, resource handler and error module only talk to this
+ * class, so the same serving logic runs on top of a blocking socket
+ * (SocketConnection) or the non-blocking engine (server.nio.NioConnection).
+ * 
+ * Created: 2013.11.05
+ * 
+ * @author haijunq
+ */
+public abstract class ClientConnection {
+	private HttpRequestParser requestParser = null; 				// request parser, kept for the whole connection
+	private AdmissionController.Ticket admission = null; 			// admission slot of the request being served
+	private Throttle throttle = null; 								// bandwidth of the connection, made on first use
+	private boolean shaped = false; 								// the body being sent is shaped
+	private boolean responseStarted = false; 						// output written for the request being served
+
+	/**
+	 * Returns the stream the request is read from.
+	 */
+	public abstract InputStream getInputStream() throws IOException;
+
+	/**
+	 * Returns the parser the request headers are read with. It lives as long
+	 * as the connection, so the bytes of pipelined requests it has read
+	 * ahead are kept for the next request.
+	 */
+	public HttpRequestParser getRequestParser() throws IOException {
+		if (this.requestParser == null)
+			this.requestParser = new HttpRequestParser(getInputStream());
+		return this.requestParser;
+	}
+
+	/**
+	 * Returns the admission slot held by the request being served, or null
+	 * if its lane is not scheduled by the response size.
+	 */
+	public AdmissionController.Ticket getAdmission() {
+		return this.admission;
+	}
+
+	/**
+	 * Sets the admission slot held by the request being served.
+	 */
+	public void setAdmission(AdmissionController.Ticket admission) {
+		this.admission = admission;
+	}
+
+	/**
+	 * Called before a request is served; its response starts with the
+	 * first byte written to the output stream.
+	 */
+	public void beginRequest() {
+		this.responseStarted = false;
+	}
+
+	/**
+	 * Returns true if the response to the request being served has started,
+	 * so no error response can be sent for it any more.
+	 */
+	public boolean isResponseStarted() {
+		return this.responseStarted;
+	}
+
+	/**
+	 * Records that the response has started; called by the output stream.
+	 */
+	protected void responseStarted() {
+		this.responseStarted = true;
+	}
+
+	/**
+	 * Sets whether the body transfers that follow are shaped by the
+	 * BandwidthShaper.
+	 */
+	public void setShaped(boolean shaped) {
+		this.shaped = shaped;
+	}
+
+	/**
+	 * Returns the throttle a body transfer is sent through, or null if it is
+	 * not shaped.
+	 */
+	protected Throttle getThrottle() {
+		if (!this.shaped)
+			return null;
+		if (this.throttle == null)
+			this.throttle = BandwidthShaper.getReference().newThrottle();
+		return this.throttle;
+	}
+
+	/**
+	 * Called once a response is complete. Sends the buffered output unless
+	 * pipelined requests are already waiting, so their responses go out
+	 * together.
+	 */
+	public void endResponse() throws IOException {
+	}
+
+	/**
+	 * Returns the stream the response is written to.
+	 */
+	public abstract OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Returns the address of the client.
+	 */
+	public abstract InetAddress getInetAddress();
+
+	/**
+	 * Sends count bytes of the file, starting at position, after everything
+	 * written to the output stream so far. The output stream must be flushed
+	 * before calling this method.
+	 * 
+	 * A blocking connection copies the bytes before returning; a non-blocking
+	 * connection queues the file region and returns immediately.
+	 */
+	public abstract void transferFile(File file, long position, long count)
+			throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffer, after everything written to
+	 * the output stream so far, then closes the release handle. The output
+	 * stream must be flushed before calling this method.
+	 * 
+	 * The buffer is typically a memory-mapped file region; a non-blocking
+	 * connection sends it after this method returns, so the handle is only
+	 * closed, and the mapping only released, once the bytes are written.
+	 */
+	public abstract void transferBuffer(ByteBuffer buffer, Closeable release)
+			throws IOException;
+
+	/**
+	 * Closes the connection once the pending output has been sent.
+	 */
+	public abstract void close() throws IOException;
+
+}// end class
@@ -7,6 +7,8 @@ package server.handlers.connection;
 import java.io.*;
 import java.net.*;
 
+import javax.net.ssl.SSLSocket;
+
 import server.error.*;
 import server.parse.*;
 import util.*;
@@ -21,6 +23,18 @@ import util.*;
  * @author Peter Brandt-Erichsen
  */
 public class ConnectionHandler implements Runnable {
+	// requests served on one connection before it is closed (1 disables keep-alive)
+	public static final int KEEPALIVE_MAX_REQUESTS = Configuration.getReference()
+			.getInt("server.keepalive.max", Constants.DEFAULT_KEEPALIVE_MAX_REQUESTS);
+
+	// milliseconds a connection may wait for the next request
+	public static final int KEEPALIVE_TIMEOUT = Configuration.getReference()
+			.getInt("server.keepalive.timeout", Constants.DEFAULT_KEEPALIVE_TIMEOUT);
+
+	// responses that may be held back while pipelined requests are waiting
+	public static final int PIPELINE_DEPTH = Configuration.getReference()
+			.getInt("server.pipeline.depth", Constants.DEFAULT_PIPELINE_DEPTH);
+
 	ResourceParser parser = null;
 	Socket clientSocket = null; 
 	
@@ -36,7 +50,8 @@ public class ConnectionHandler implements Runnable {
 	}
 
 	/**
-	 * Handles a connection request from the client.
+	 * Handles a connection request from the client, serving requests until
+	 * the client or the keep-alive limits end the connection.
 	 * 
 	 * @param clientSocket
 	 *            is a reference to the client socket.
@@ -49,9 +64,91 @@ public class ConnectionHandler implements Runnable {
 			throw new IllegalArgumentException("the client socket is null");
 		}
 
-		this.parser.parse(clientSocket);
+		// an idle connection is dropped when the read times out
+		clientSocket.setSoTimeout(KEEPALIVE_TIMEOUT);
+
+		// the TLS handshake is run up front to record its kind and latency
+		if (clientSocket instanceof SSLSocket && !handshake((SSLSocket) clientSocket))
+			return;
+
+		// each request waits for a slot once it arrives, or is turned away;
+		// an idle connection holds none
+		AdmissionController admission = AdmissionController.getReference();
+		SocketConnection connection = new SocketConnection(clientSocket);
+		HttpRequestParser requests = connection.getRequestParser();
+		int served = 0;
+		boolean keepAlive = true;
+		while (keepAlive && awaitRequest(requests)) {
+			AdmissionController.Ticket ticket = admission.acquire();
+			if (ticket == null) {
+				reject(connection, requests);
+				break;
+			}
+
+			// the ticket lets a large response move to the large lane
+			connection.setAdmission(ticket);
+			connection.beginRequest();
+			try {
+				keepAlive = this.parser.parse(connection, ++served < KEEPALIVE_MAX_REQUESTS);
+			} catch (Exception e) {
+				// the handler failed: a 500 unless the response has started,
+				// and the connection is closed
+				ErrorModule.getReference().internalServerError(connection, e);
+				connection.close();
+				throw e;
+			} finally {
+				connection.setAdmission(null);
+				admission.release(ticket);
+			}
+			if (keepAlive)
+				connection.endResponse();
+		}
+
+		// send the last response before closing
+		connection.close();
+	}
+
+	// Waits for the next request; returns false if the connection ended or
+	// stayed idle too long.
+	//
+	private static boolean awaitRequest(HttpRequestParser requests) {
+		try {
+			return requests.awaitInput();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	// Answers a request turned away by the admission control with 503. The
+	// header is read first, so closing the connection does not reset it
+	// before the client has the response.
+	//
+	private static void reject(SocketConnection connection, HttpRequestParser requests)
+			throws IOException {
+		HttpRequest request = null;
+		try {
+			request = requests.parse();
+		} catch (IOException e) {
+			// the 503 is sent anyway
+		}
+		ErrorModule.getReference().serviceUnavailable(connection, request);
 	}
 	
+	// Runs the TLS handshake; returns false if it failed.
+	//
+	private static boolean handshake(SSLSocket socket) {
+		long startMillis = System.currentTimeMillis();
+		long start = System.nanoTime();
+		try {
+			socket.startHandshake();
+		} catch (IOException e) {
+			TlsStatistics.getReference().recordFailure();
+			return false;
+		}
+		TlsStatistics.getReference().recordHandshake(socket.getSession(), startMillis, start);
+		return true;
+	}
+
 	/**
 	 * Implement the run() method.
 	 */
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+
+import server.parse.HttpRequestParser;
+
+/**
+ * Head Connection - serves a HEAD request through the GET logic: the
+ * response header is passed to the connection, the body is dropped.
+ *
+ * The header ends with the first blank line written to the output; what
+ * follows it, and every file or buffer transfer, is the body.
+ *
+ * Created: 2013.11.23
+ *
+ * @author haijunq
+ */
+public class HeadConnection extends ClientConnection {
+	private final ClientConnection connection; 					// the client connection
+	private final OutputStream output = new HeaderOutputStream();
+
+	/**
+	 * Constructs the connection
+	 *
+	 * @param connection
+	 *            is the connection the HEAD request arrived on
+	 */
+	public HeadConnection(ClientConnection connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return this.connection.getInputStream();
+	}
+
+	@Override
+	public HttpRequestParser getRequestParser() throws IOException {
+		return this.connection.getRequestParser();
+	}
+
+	@Override
+	public void endResponse() throws IOException {
+		this.connection.endResponse();
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return this.output;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return this.connection.getInetAddress();
+	}
+
+	@Override
+	public void transferFile(File file, long position, long count) {
+	}
+
+	@Override
+	public void transferBuffer(ByteBuffer buffer, Closeable release)
+			throws IOException {
+		release.close();
+	}
+
+	@Override
+	public void close() throws IOException {
+		this.connection.close();
+	}
+
+	// Passes the bytes up to the end of the header, CR LF CR LF, to the
+	// connection output and drops the rest.
+	//
+	private class HeaderOutputStream extends OutputStream {
+		private int matched = 0; 									// bytes of CR LF CR LF seen
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			int header = 0;
+			while (header < len && this.matched < 4) {
+				byte next = b[off + header++];
+				if (next == ((this.matched % 2 == 0) ? '\r' : '\n'))
+					this.matched++;
+				else
+					this.matched = (next == '\r') ? 1 : 0;
+			}
+			if (header > 0)
+				connection.getOutputStream().write(b, off, header);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			connection.getOutputStream().flush();
+		}
+	}
+
+}// end class
@@ -0,0 +1,312 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.*;
+
+import server.parse.HttpRequest;
+import util.*;
+
+/**
+ * Response Header - encodes a response header as ASCII bytes straight into a
+ * pooled buffer, without building strings.
+ *
+ * The status lines, the Server line and the common field names and lines are
+ * encoded once; numbers and dates are written digit by digit. The Date line
+ * is formatted once per second and shared by every response of that second.
+ *
+ * Typical use:
+ *
+ *   ResponseHeader.begin(200).field(ResponseHeader.CONTENT_LENGTH, length)
+ *       .connection(request).writeTo(clientSocket.getOutputStream());
+ *
+ * writeTo() ends the header and returns the buffer to the pool; the header
+ * must not be used afterwards.
+ *
+ * Created: 2013.11.21
+ *
+ * @author haijunq
+ */
+public final class ResponseHeader {
+
+	// size of the pooled buffers, a larger header grows its own buffer
+	private static final int BUFFER_SIZE = 1024;
+
+	// pooled buffers, one per response being encoded
+	private static final BufferPool pool = new BufferPool(BUFFER_SIZE, 256);
+
+	// pre-encoded field names
+	public static final byte[] CONTENT_TYPE = encode("Content-Type: ");
+	public static final byte[] CONTENT_LENGTH = encode("Content-Length: ");
+	public static final byte[] CONTENT_ENCODING = encode("Content-Encoding: ");
+	public static final byte[] CONTENT_RANGE = encode("Content-Range: ");
+	public static final byte[] LAST_MODIFIED = encode("Last-Modified: ");
+	public static final byte[] ETAG = encode("ETag: ");
+
+	// pre-encoded lines
+	public static final byte[] ACCEPT_RANGES = encode("Accept-Ranges: bytes" + Constants.CRLF);
+	public static final byte[] VARY_ACCEPT_ENCODING = encode("Vary: Accept-Encoding" + Constants.CRLF);
+	public static final byte[] TRANSFER_ENCODING_CHUNKED = encode("Transfer-Encoding: chunked" + Constants.CRLF);
+	public static final byte[] CONTENT_TYPE_HTML = encode("Content-Type: text/html" + Constants.CRLF);
+	private static final byte[] CONNECTION_KEEP_ALIVE = encode("Connection: keep-alive" + Constants.CRLF);
+	private static final byte[] CONNECTION_CLOSE = encode("Connection: close" + Constants.CRLF);
+	private static final byte[] SERVER = encode("Server: " + Constants.SERVER_IDENTIFICATION + Constants.CRLF);
+	private static final byte[] CRLF = encode(Constants.CRLF);
+
+	// the status lines of the known status codes, by code
+	private static final byte[][] STATUS_LINES = new byte[600][];
+	static {
+		for (int code = 100; code < STATUS_LINES.length; code++) {
+			String message = Utilities.getResponseMessage(code);
+			if (message.startsWith(String.valueOf(code)))
+				STATUS_LINES[code] = encode(Constants.HTTP_VERSION + " " + message + Constants.CRLF);
+		}
+	}
+
+	// names of the days and months of an HTTP-date
+	private static final byte[] DAYS = encode("ThuFriSatSunMonTueWed");
+	private static final byte[] MONTHS = encode("JanFebMarAprMayJunJulAugSepOctNovDec");
+
+	// length of an HTTP-date, e.g. "Sun, 06 Nov 1994 08:49:37 GMT"
+	private static final int DATE_LENGTH = 29;
+
+	// the Date line of the current second
+	private static volatile DateLine dateLine = new DateLine(System.currentTimeMillis() / 1000);
+
+	private byte[] buffer; 										// the encoded header
+	private int count = 0; 										// bytes encoded
+
+	// constructed by begin()
+	private ResponseHeader(byte[] buffer) {
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Begins a header with the status line, the Date line and the Server
+	 * line.
+	 *
+	 * @param statusCode
+	 *            is the status code of the response
+	 */
+	public static ResponseHeader begin(int statusCode) {
+		ResponseHeader header = new ResponseHeader(pool.acquire());
+		byte[] status = (statusCode >= 0 && statusCode < STATUS_LINES.length)
+				? STATUS_LINES[statusCode] : null;
+		if (status != null) {
+			header.line(status);
+		} else {
+			header.append(Constants.HTTP_VERSION + " " + Utilities.getResponseMessage(statusCode));
+			header.line(CRLF);
+		}
+		return header.line(currentDateLine()).line(SERVER);
+	}
+
+	/**
+	 * Appends a pre-encoded line, which ends with CRLF.
+	 */
+	public ResponseHeader line(byte[] line) {
+		ensureCapacity(line.length);
+		System.arraycopy(line, 0, this.buffer, this.count, line.length);
+		this.count += line.length;
+		return this;
+	}
+
+	/**
+	 * Appends a field with a text value; characters outside ASCII are sent
+	 * as '?'.
+	 *
+	 * @param name
+	 *            is the pre-encoded field name with its colon and space
+	 * @param value
+	 *            is the field value
+	 */
+	public ResponseHeader field(byte[] name, String value) {
+		line(name);
+		append(value);
+		return line(CRLF);
+	}
+
+	/**
+	 * Appends a field with a numeric value.
+	 */
+	public ResponseHeader field(byte[] name, long value) {
+		line(name);
+		appendNumber(value);
+		return line(CRLF);
+	}
+
+	/**
+	 * Appends a field with an HTTP-date value.
+	 *
+	 * @param name
+	 *            is the pre-encoded field name with its colon and space
+	 * @param millis
+	 *            is the time in milliseconds
+	 */
+	public ResponseHeader dateField(byte[] name, long millis) {
+		line(name);
+		ensureCapacity(DATE_LENGTH);
+		formatDate(millis, this.buffer, this.count);
+		this.count += DATE_LENGTH;
+		return line(CRLF);
+	}
+
+	/**
+	 * Appends the Connection line announcing the keep-alive decision; a null
+	 * request closes the connection.
+	 */
+	public ResponseHeader connection(HttpRequest request) {
+		return line((request != null && request.isKeepAlive()) ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+	}
+
+	/**
+	 * Ends the header, writes it and returns the buffer to the pool.
+	 *
+	 * @param out
+	 *            is the response stream of the connection
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		line(CRLF);
+		try {
+			out.write(this.buffer, 0, this.count);
+		} finally {
+			pool.release(this.buffer);
+			this.buffer = null;
+		}
+	}
+
+	// Returns the Date line of the current second, formatting it when the
+	// second has changed.
+	//
+	private static byte[] currentDateLine() {
+		long second = System.currentTimeMillis() / 1000;
+		DateLine line = dateLine;
+		if (line.second != second) {
+			// racing threads format the same line, the last one is kept
+			line = new DateLine(second);
+			dateLine = line;
+		}
+		return line.bytes;
+	}
+
+	// Appends the characters of the text as ASCII bytes.
+	//
+	private void append(String text) {
+		int length = text.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = text.charAt(i);
+			this.buffer[this.count++] = (byte) (c < 0x80 ? c : '?');
+		}
+	}
+
+	// Appends the decimal digits of a number.
+	//
+	private void appendNumber(long value) {
+		if (value < 0) {
+			ensureCapacity(1);
+			this.buffer[this.count++] = '-';
+			if (value == Long.MIN_VALUE) {
+				append("9223372036854775808");
+				return;
+			}
+			value = -value;
+		}
+		int digits = 1;
+		for (long rest = value / 10; rest > 0; rest /= 10)
+			digits++;
+		ensureCapacity(digits);
+		for (int i = this.count + digits - 1; i >= this.count; i--) {
+			this.buffer[i] = (byte) ('0' + value % 10);
+			value /= 10;
+		}
+		this.count += digits;
+	}
+
+	// Grows the buffer of an unusually large header; the larger buffer is
+	// not pooled.
+	//
+	private void ensureCapacity(int length) {
+		if (this.count + length <= this.buffer.length)
+			return;
+		byte[] larger = new byte[Math.max(this.buffer.length * 2, this.count + length)];
+		System.arraycopy(this.buffer, 0, larger, 0, this.count);
+		pool.release(this.buffer);
+		this.buffer = larger;
+	}
+
+	// Formats the time as an HTTP-date into the array, without allocating.
+	//
+	private static void formatDate(long millis, byte[] dst, int off) {
+		long seconds = Math.floorDiv(millis, 1000);
+		long days = Math.floorDiv(seconds, 86400);
+		int secondOfDay = Math.floorMod(seconds, 86400);
+
+		// civil date of the day count, see H. Hinnant's chrono algorithms
+		long z = days + 719468;
+		long era = Math.floorDiv(z, 146097);
+		long dayOfEra = z - era * 146097;
+		long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+		long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+		long mp = (5 * dayOfYear + 2) / 153;
+		int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+		int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+		long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+		int weekday = Math.floorMod(days, 7); // 1970-01-01 was a Thursday
+		System.arraycopy(DAYS, weekday * 3, dst, off, 3);
+		dst[off + 3] = ',';
+		dst[off + 4] = ' ';
+		twoDigits(day, dst, off + 5);
+		dst[off + 7] = ' ';
+		System.arraycopy(MONTHS, (month - 1) * 3, dst, off + 8, 3);
+		dst[off + 11] = ' ';
+		twoDigits((int) (year / 100), dst, off + 12);
+		twoDigits((int) (year % 100), dst, off + 14);
+		dst[off + 16] = ' ';
+		twoDigits(secondOfDay / 3600, dst, off + 17);
+		dst[off + 19] = ':';
+		twoDigits(secondOfDay / 60 % 60, dst, off + 20);
+		dst[off + 22] = ':';
+		twoDigits(secondOfDay % 60, dst, off + 23);
+		dst[off + 25] = ' ';
+		dst[off + 26] = 'G';
+		dst[off + 27] = 'M';
+		dst[off + 28] = 'T';
+	}
+
+	private static void twoDigits(int value, byte[] dst, int off) {
+		dst[off] = (byte) ('0' + value / 10);
+		dst[off + 1] = (byte) ('0' + value % 10);
+	}
+
+	// Encodes a constant as ASCII bytes.
+	//
+	private static byte[] encode(String text) {
+		try {
+			return text.getBytes("US-ASCII");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// The Date line of one second.
+	//
+	private static class DateLine {
+		private final long second;
+		private final byte[] bytes;
+
+		DateLine(long second) {
+			byte[] name = encode("Date: ");
+			this.second = second;
+			this.bytes = new byte[name.length + DATE_LENGTH + 2];
+			System.arraycopy(name, 0, this.bytes, 0, name.length);
+			formatDate(second * 1000, this.bytes, name.length);
+			this.bytes[this.bytes.length - 2] = '\r';
+			this.bytes[this.bytes.length - 1] = '\n';
+		}
+	}
+
+}// end class
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+
+import server.handlers.resource.MappedFileRegistry;
+import util.BufferPool;
+import util.Constants;
+
+/**
+ * Socket Connection - a client connection on a blocking socket.
+ * 
+ * A plaintext socket accepted from a ServerSocketChannel sends files with
+ * FileChannel.transferTo, so the bytes go from the page cache to the socket
+ * without passing through the Java heap. A TLS socket has to encrypt them,
+ * so files are copied through large pooled buffers. Memory-mapped files are
+ * written from the mapping, without reading the file.
+ * 
+ * Created: 2013.11.05
+ * 
+ * @author haijunq
+ */
+public class SocketConnection extends ClientConnection {
+	// copy buffers shared by all TLS connections
+	private static final BufferPool bufferPool = new BufferPool(
+			Constants.TRANSFER_BUFFER_SIZE, Constants.TRANSFER_BUFFER_POOL_SIZE);
+
+	private final Socket socket; 									// the client socket
+	private DeferredFlushOutputStream output = null; 				// buffers the responses
+	private int deferredResponses = 0; 							// responses buffered but not flushed
+
+	/**
+	 * Constructs the connection
+	 * 
+	 * @param socket
+	 *            is the accepted client socket
+	 */
+	public SocketConnection(Socket socket) {
+		if (socket == null) {
+			throw new IllegalArgumentException("the client socket is null");
+		}
+		this.socket = socket;
+	}
+
+	/**
+	 * Returns the underlying socket.
+	 */
+	public Socket getSocket() {
+		return this.socket;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return this.socket.getInputStream();
+	}
+
+	/**
+	 * Returns the buffered response stream. Flushing it has no effect; the
+	 * buffer is sent by endResponse() and close().
+	 */
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		if (this.output == null)
+			this.output = new DeferredFlushOutputStream(this.socket.getOutputStream());
+		return this.output;
+	}
+
+	@Override
+	public void endResponse() throws IOException {
+		if (this.output == null)
+			return;
+
+		// hold the response back while further requests are already buffered,
+		// up to the pipelining depth
+		this.deferredResponses++;
+		if (this.deferredResponses < ConnectionHandler.PIPELINE_DEPTH
+				&& getRequestParser().hasBufferedInput())
+			return;
+
+		this.output.flushNow();
+		this.deferredResponses = 0;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return this.socket.getInetAddress();
+	}
+
+	@Override
+	public void transferFile(File file, long position, long count)
+			throws IOException {
+		long begin = System.nanoTime();
+		SocketChannel channel = this.socket.getChannel();
+		Throttle throttle = getThrottle();
+		FileChannel input = new FileInputStream(file).getChannel();
+		try {
+			if (channel != null) {
+				// the header must reach the socket before the body
+				getOutputStream();
+				this.output.flushNow();
+				sendFile(input, position, count, channel, throttle);
+			} else {
+				copyFile(input, position, count, throttle);
+			}
+		} finally {
+			input.close();
+		}
+		TransferStatistics.getReference().record(channel != null, count, System.nanoTime() - begin);
+	}
+
+	@Override
+	public void transferBuffer(ByteBuffer buffer, Closeable release)
+			throws IOException {
+		long begin = System.nanoTime();
+		long count = buffer.remaining();
+		Throttle throttle = getThrottle();
+		try {
+			SocketChannel channel = this.socket.getChannel();
+			getOutputStream();
+			if (channel != null && count > Constants.PIPELINE_BUFFER_SIZE) {
+				// the header must reach the socket before the body
+				this.output.flushNow();
+				int limit = buffer.limit();
+				while (buffer.hasRemaining()) {
+					if (throttle != null)
+						buffer.limit(buffer.position() + (int) throttle.acquire(limit - buffer.position()));
+					while (buffer.hasRemaining())
+						channel.write(buffer);
+					buffer.limit(limit);
+				}
+			} else {
+				copyBuffer(buffer, throttle);
+			}
+		} catch (InternalError e) {
+			// a fault on a mapping: the file was truncated since it was mapped
+			MappedFileRegistry.retireFaulted(release);
+			throw new IOException("mapped file truncated", e);
+		} finally {
+			release.close();
+		}
+		TransferStatistics.getReference().recordMemory(count, System.nanoTime() - begin);
+	}
+
+	// Sends the file region with transferTo (sendfile on Linux), at most
+	// what the throttle grants at a time.
+	//
+	private static void sendFile(FileChannel input, long position, long count,
+			WritableByteChannel channel, Throttle throttle) throws IOException {
+		long allowed = 0;
+		while (count > 0) {
+			if (allowed == 0)
+				allowed = (throttle == null) ? count : throttle.acquire(count);
+			long sent = input.transferTo(position, allowed, channel);
+			if (sent <= 0 && position >= input.size())
+				throw new EOFException("file is shorter than expected");
+			position += sent;
+			count -= sent;
+			allowed -= sent;
+		}
+	}
+
+	// Copies the file region to the output stream through a pooled buffer.
+	// Chunks of the buffer size bypass the output buffer.
+	//
+	private void copyFile(FileChannel input, long position, long count, Throttle throttle)
+			throws IOException {
+		OutputStream output = getOutputStream();
+		byte[] buffer = bufferPool.acquire();
+		try {
+			ByteBuffer wrapper = ByteBuffer.wrap(buffer);
+			while (count > 0) {
+				long chunk = Math.min(buffer.length, count);
+				wrapper.clear();
+				wrapper.limit((int) ((throttle == null) ? chunk : throttle.acquire(chunk)));
+				int read = input.read(wrapper, position);
+				if (read < 0)
+					throw new EOFException("file is shorter than expected");
+				output.write(buffer, 0, read);
+				position += read;
+				count -= read;
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	// Copies the buffer to the output stream through a pooled buffer. A small
+	// body is sent in the same segment as its header.
+	//
+	private void copyBuffer(ByteBuffer source, Throttle throttle) throws IOException {
+		byte[] buffer = bufferPool.acquire();
+		try {
+			while (source.hasRemaining()) {
+				int length = Math.min(buffer.length, source.remaining());
+				if (throttle != null)
+					length = (int) throttle.acquire(length);
+				source.get(buffer, 0, length);
+				this.output.write(buffer, 0, length);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			if (this.output != null)
+				this.output.flushNow();
+		} finally {
+			this.socket.close();
+		}
+	}
+
+	// A buffered stream that only writes its buffer when asked by the
+	// connection, or when it is full.
+	//
+	private class DeferredFlushOutputStream extends BufferedOutputStream {
+		DeferredFlushOutputStream(OutputStream out) {
+			super(out, Constants.PIPELINE_BUFFER_SIZE);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			responseStarted();
+			super.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			responseStarted();
+			super.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+		}
+
+		void flushNow() throws IOException {
+			super.flush();
+		}
+	}
+
+}// end class
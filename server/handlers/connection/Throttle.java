@@ -0,0 +1,106 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.locks.LockSupport;
+
+import util.TokenBucket;
+
+/**
+ * Throttle - the bandwidth a connection may use for shaped responses: its
+ * own token bucket and the bucket shared by the whole server, either of
+ * which may be absent.
+ *
+ * A grant takes from both buckets, and is never smaller than MIN_GRANT
+ * bytes unless less is wanted, so a throttled transfer is sent in chunks
+ * rather than in a trickle of tiny writes.
+ *
+ * Created: 2013.11.25
+ *
+ * @author haijunq
+ */
+public class Throttle {
+	// smallest grant, in bytes
+	private static final long MIN_GRANT = 8 * 1024;
+
+	private final TokenBucket connection; 							// the connection rate, or null
+	private final TokenBucket global; 								// the server-wide rate, or null
+
+	/**
+	 * Constructs the throttle
+	 *
+	 * @param connection
+	 *            is the bucket of the connection, or null
+	 * @param global
+	 *            is the bucket shared by all connections, or null
+	 */
+	public Throttle(TokenBucket connection, TokenBucket global) {
+		this.connection = connection;
+		this.global = global;
+	}
+
+	/**
+	 * Takes up to max bytes from the buckets without waiting.
+	 *
+	 * @return the number of bytes that may be sent now, 0 if none
+	 */
+	public long grant(long max) {
+		long granted = max;
+		if (this.connection != null)
+			granted = this.connection.grant(minGrant(this.connection, granted), granted);
+		if (this.global != null && granted > 0) {
+			long shared = this.global.grant(minGrant(this.global, granted), granted);
+			if (shared < granted && this.connection != null)
+				this.connection.refund(granted - shared);
+			granted = shared;
+		}
+		if (granted == 0)
+			BandwidthShaper.getReference().recordWait();
+		else
+			BandwidthShaper.getReference().recordShaped(granted);
+		return granted;
+	}
+
+	/**
+	 * Returns the nanoseconds until a grant of the smallest size can
+	 * succeed.
+	 */
+	public long delayNanos() {
+		long delay = 0;
+		if (this.connection != null)
+			delay = this.connection.delayNanos(MIN_GRANT);
+		if (this.global != null)
+			delay = Math.max(delay, this.global.delayNanos(MIN_GRANT));
+		return delay;
+	}
+
+	/**
+	 * Takes up to max bytes from the buckets, sleeping until some are
+	 * there. Only for a thread that is given to the connection anyway, as
+	 * on the blocking engine.
+	 *
+	 * @return the number of bytes that may be sent, at least 1
+	 * @throws InterruptedIOException
+	 *             if the thread is interrupted while it sleeps
+	 */
+	public long acquire(long max) throws InterruptedIOException {
+		while (true) {
+			long granted = grant(max);
+			if (granted > 0)
+				return granted;
+			LockSupport.parkNanos(Math.max(delayNanos(), 1000000));
+			if (Thread.interrupted())
+				throw new InterruptedIOException("interrupted while throttled");
+		}
+	}
+
+	// Returns the smallest grant worth taking from the bucket.
+	//
+	private static long minGrant(TokenBucket bucket, long wanted) {
+		return Math.min(wanted, Math.min(MIN_GRANT, bucket.getBurst()));
+	}
+
+}// end class
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSession;
+
+import util.LatencyHistogram;
+
+/**
+ * TLS Statistics - full and resumed handshakes, failed handshakes, and the
+ * handshake latency of both kinds, for both engines.
+ *
+ * A handshake that creates its session is a full one; a session created
+ * before the handshake began was resumed, from the session cache or a
+ * session ticket.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.24
+ *
+ * @author haijunq
+ */
+public class TlsStatistics {
+
+	// singleton reference to this class
+	private static final TlsStatistics singleton = new TlsStatistics();
+
+	// handshake counters
+	private final AtomicLong fullCount = new AtomicLong();
+	private final AtomicLong resumedCount = new AtomicLong();
+	private final AtomicLong failedCount = new AtomicLong();
+
+	// handshake latency, from the accepted connection to the finished
+	// handshake
+	private final LatencyHistogram fullLatency = new LatencyHistogram();
+	private final LatencyHistogram resumedLatency = new LatencyHistogram();
+
+	// constructor is private to guarantee a singleton instance
+	private TlsStatistics() {
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static TlsStatistics getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Records a finished handshake.
+	 *
+	 * @param session
+	 *            is the negotiated session
+	 * @param startMillis
+	 *            is the System.currentTimeMillis() at which the handshake
+	 *            began
+	 * @param startNanos
+	 *            is the System.nanoTime() at which the handshake began
+	 */
+	public void recordHandshake(SSLSession session, long startMillis, long startNanos) {
+		long nanos = System.nanoTime() - startNanos;
+		if (session.getCreationTime() < startMillis) {
+			this.resumedCount.incrementAndGet();
+			this.resumedLatency.record(nanos);
+		} else {
+			this.fullCount.incrementAndGet();
+			this.fullLatency.record(nanos);
+		}
+	}
+
+	/**
+	 * Records a handshake that failed or was abandoned by the client.
+	 */
+	public void recordFailure() {
+		this.failedCount.incrementAndGet();
+	}
+
+	/**
+	 * Returns a one line summary of the handshakes.
+	 */
+	@Override
+	public String toString() {
+		long full = this.fullCount.get();
+		long resumed = this.resumedCount.get();
+		double ratio = (full + resumed == 0) ? 0 : 100.0 * resumed / (full + resumed);
+		return "tls handshakes: full=" + full + " (" + this.fullLatency + ") resumed=" + resumed
+				+ " (" + this.resumedLatency + ") failed=" + this.failedCount.get()
+				+ String.format(" resumption=%.1f%%", ratio);
+	}
+
+}// end class
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transfer Statistics - bytes and time spent sending file bodies, for the
+ * zero-copy path (FileChannel.transferTo on plaintext connections), the
+ * buffer copy path (TLS connections) and the bodies sent from memory
+ * (memory-mapped and cached files).
+ * 
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ * 
+ * Created: 2013.11.14
+ * 
+ * @author haijunq
+ */
+public class TransferStatistics {
+
+	// singleton reference to this class
+	private static final TransferStatistics singleton = new TransferStatistics();
+
+	// counters of the zero-copy path
+	private final AtomicLong zeroCopyBytes = new AtomicLong();
+	private final AtomicLong zeroCopyNanos = new AtomicLong();
+
+	// counters of the copy path
+	private final AtomicLong copyBytes = new AtomicLong();
+	private final AtomicLong copyNanos = new AtomicLong();
+
+	// counters of the bodies sent from memory
+	private final AtomicLong memoryBytes = new AtomicLong();
+	private final AtomicLong memoryNanos = new AtomicLong();
+
+	// constructor is private to guarantee a singleton instance
+	private TransferStatistics() {
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static TransferStatistics getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Records a completed file transfer.
+	 * 
+	 * @param zeroCopy
+	 *            is true if the file was sent with transferTo
+	 * @param bytes
+	 *            is the number of bytes sent
+	 * @param nanos
+	 *            is the time the transfer took
+	 */
+	public void record(boolean zeroCopy, long bytes, long nanos) {
+		if (zeroCopy) {
+			this.zeroCopyBytes.addAndGet(bytes);
+			this.zeroCopyNanos.addAndGet(nanos);
+		} else {
+			this.copyBytes.addAndGet(bytes);
+			this.copyNanos.addAndGet(nanos);
+		}
+	}
+
+	/**
+	 * Records a completed transfer of a memory-mapped or cached file.
+	 * 
+	 * @param bytes
+	 *            is the number of bytes sent
+	 * @param nanos
+	 *            is the time the transfer took
+	 */
+	public void recordMemory(long bytes, long nanos) {
+		this.memoryBytes.addAndGet(bytes);
+		this.memoryNanos.addAndGet(nanos);
+	}
+
+	/**
+	 * Returns a one line summary of all paths.
+	 */
+	@Override
+	public String toString() {
+		return "file transfer: zero-copy " + format(this.zeroCopyBytes.get(), this.zeroCopyNanos.get())
+				+ ", copy " + format(this.copyBytes.get(), this.copyNanos.get())
+				+ ", memory " + format(this.memoryBytes.get(), this.memoryNanos.get());
+	}
+
+	// Formats the volume and the rate of a path.
+	//
+	private static String format(long bytes, long nanos) {
+		double megabytes = bytes / (1024.0 * 1024.0);
+		double rate = (nanos == 0) ? 0 : megabytes / (nanos / 1e9);
+		return String.format("%.1f MB at %.1f MB/s", megabytes, rate);
+	}
+
+}// end class
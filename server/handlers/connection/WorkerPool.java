@@ -0,0 +1,151 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.connection;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Worker Pool - a bounded pool of named worker threads with a bounded task
+ * queue, used to run connection handlers instead of starting a new thread per
+ * accepted connection.
+ *
+ * When both the pool and the queue are full the task is rejected with a
+ * RejectedExecutionException, so the caller can shed the connection.
+ *
+ * Created: 2013.11.02
+ *
+ * @author haijunq
+ */
+public class WorkerPool {
+	private final String name; 										// thread name prefix
+	private final ThreadPoolExecutor executor; 						// the underlying executor
+	private final AtomicLong rejectedCount = new AtomicLong(); 		// tasks refused because the pool was saturated
+
+	/**
+	 * Constructs the worker pool
+	 *
+	 * @param name
+	 *            is the prefix of the worker thread names
+	 * @param coreThreads
+	 *            is the number of threads kept alive when idle
+	 * @param maxThreads
+	 *            is the upper bound on the number of threads, equal to
+	 *            coreThreads for a fixed pool
+	 * @param queueCapacity
+	 *            is the number of tasks that may wait for a thread, 0 hands
+	 *            tasks directly to a thread
+	 * @param keepAliveSeconds
+	 *            is how long a thread above the core size may stay idle
+	 */
+	public WorkerPool(String name, int coreThreads, int maxThreads,
+			int queueCapacity, long keepAliveSeconds) {
+		if (coreThreads < 1 || maxThreads < coreThreads || queueCapacity < 0) {
+			throw new IllegalArgumentException("invalid pool size: core="
+					+ coreThreads + " max=" + maxThreads + " queue=" + queueCapacity);
+		}
+		this.name = name;
+
+		// a thread pool executor only grows beyond the core size once the
+		// queue is full, which is what we want for a bounded queue
+		BlockingQueue<Runnable> queue = (queueCapacity == 0)
+				? new SynchronousQueue<Runnable>()
+				: new ArrayBlockingQueue<Runnable>(queueCapacity);
+
+		this.executor = new ThreadPoolExecutor(coreThreads, maxThreads,
+				keepAliveSeconds, TimeUnit.SECONDS, queue,
+				new NamedThreadFactory(name), new RejectionCounter());
+	}
+
+	/**
+	 * Submits a task to the pool.
+	 *
+	 * @throws RejectedExecutionException
+	 *             if the pool and its queue are saturated or the pool is shut
+	 *             down
+	 */
+	public void execute(Runnable task) {
+		this.executor.execute(task);
+	}
+
+	/**
+	 * Stops accepting tasks and waits for the running ones to finish.
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		this.executor.shutdown();
+		this.executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/** Returns the number of threads currently in the pool */
+	public int getPoolSize() {
+		return this.executor.getPoolSize();
+	}
+
+	/** Returns the largest number of threads that have been in the pool */
+	public int getLargestPoolSize() {
+		return this.executor.getLargestPoolSize();
+	}
+
+	/** Returns the approximate number of threads running a task */
+	public int getActiveCount() {
+		return this.executor.getActiveCount();
+	}
+
+	/** Returns the number of tasks waiting in the queue */
+	public int getQueuedCount() {
+		return this.executor.getQueue().size();
+	}
+
+	/** Returns the approximate number of completed tasks */
+	public long getCompletedCount() {
+		return this.executor.getCompletedTaskCount();
+	}
+
+	/** Returns the number of rejected tasks */
+	public long getRejectedCount() {
+		return this.rejectedCount.get();
+	}
+
+	/**
+	 * Returns a one line summary of the pool statistics.
+	 */
+	@Override
+	public String toString() {
+		return this.name + " pool: size=" + getPoolSize() + " largest="
+				+ getLargestPoolSize() + " active=" + getActiveCount()
+				+ " queued=" + getQueuedCount() + " completed="
+				+ getCompletedCount() + " rejected=" + getRejectedCount();
+	}
+
+	// Names the worker threads "<name>-worker-<n>" so they can be told apart in
+	// thread dumps.
+	//
+	private static class NamedThreadFactory implements ThreadFactory {
+		private final String prefix;
+		private final AtomicInteger count = new AtomicInteger();
+
+		NamedThreadFactory(String name) {
+			this.prefix = name + "-worker-";
+		}
+
+		@Override
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, prefix + count.incrementAndGet());
+			thread.setDaemon(false);
+			return thread;
+		}
+	}
+
+	// Counts the rejected tasks before refusing them.
+	//
+	private class RejectionCounter implements RejectedExecutionHandler {
+		@Override
+		public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+			rejectedCount.incrementAndGet();
+			throw new RejectedExecutionException(name + " pool saturated");
+		}
+	}
+
+}// end class
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.util.*;
+
+/**
+ * Byte Range - one satisfiable range of a Range request, from the first to
+ * the last byte position inclusive.
+ *
+ * Typical header field: Range: bytes=0-499, 1000-, -500
+ *
+ * Created: 2013.11.18
+ *
+ * @author haijunq
+ */
+public class ByteRange implements Comparable<ByteRange> {
+
+	// more ranges than this are ignored and the whole file is sent, so a
+	// request cannot ask for thousands of tiny parts
+	private static final int MAX_RANGES = 32;
+
+	private final long first; 										// first byte position
+	private final long last; 										// last byte position, inclusive
+
+	private ByteRange(long first, long last) {
+		this.first = first;
+		this.last = last;
+	}
+
+	/** Returns the first byte position */
+	public long getFirst() {
+		return this.first;
+	}
+
+	/** Returns the last byte position, inclusive */
+	public long getLast() {
+		return this.last;
+	}
+
+	/** Returns the number of bytes in the range */
+	public long getLength() {
+		return this.last - this.first + 1;
+	}
+
+	/**
+	 * Returns the Content-Range value of the range, e.g. "bytes 0-499/1234".
+	 */
+	public String contentRange(long length) {
+		return "bytes " + this.first + "-" + this.last + "/" + length;
+	}
+
+	@Override
+	public int compareTo(ByteRange other) {
+		return Long.compare(this.first, other.first);
+	}
+
+	/**
+	 * Parses the value of a Range header for a file of the given length.
+	 * Returns the satisfiable ranges sorted and with overlapping or adjacent
+	 * ranges merged, an empty list if no range is satisfiable, or null if
+	 * the header is malformed, uses another unit than bytes or asks for too
+	 * many ranges; the header is then ignored.
+	 *
+	 * @param header
+	 *            is the value of the Range header
+	 * @param length
+	 *            is the length of the file
+	 */
+	public static List<ByteRange> parse(String header, long length) {
+		header = header.trim();
+		if (!header.regionMatches(true, 0, "bytes=", 0, 6))
+			return null;
+
+		String[] specs = header.substring(6).split(",");
+		if (specs.length > MAX_RANGES)
+			return null;
+
+		List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+		int parsed = 0;
+		try {
+			for (String spec : specs) {
+				spec = spec.trim();
+				if (spec.isEmpty())
+					continue;
+				int dash = spec.indexOf('-');
+				if (dash < 0)
+					return null;
+				parsed++;
+				String firstPos = spec.substring(0, dash).trim();
+				String lastPos = spec.substring(dash + 1).trim();
+
+				if (firstPos.isEmpty()) {
+					// a suffix range: the last n bytes
+					long suffix = Long.parseLong(lastPos);
+					if (suffix < 0)
+						return null;
+					if (suffix > 0 && length > 0)
+						ranges.add(new ByteRange(Math.max(0, length - suffix), length - 1));
+					continue;
+				}
+
+				long first = Long.parseLong(firstPos);
+				long last = lastPos.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastPos);
+				if (first < 0 || last < first)
+					return null;
+				if (first < length)
+					ranges.add(new ByteRange(first, Math.min(last, length - 1)));
+			}
+		} catch (NumberFormatException e) {
+			return null;
+		}
+		if (parsed == 0)
+			return null;
+
+		// merge the overlapping and adjacent ranges
+		Collections.sort(ranges);
+		List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+		for (ByteRange range : ranges) {
+			int end = merged.size() - 1;
+			if (end >= 0 && range.first <= merged.get(end).last + 1) {
+				ByteRange previous = merged.get(end);
+				merged.set(end, new ByteRange(previous.first, Math.max(previous.last, range.last)));
+			} else {
+				merged.add(range);
+			}
+		}
+		return merged;
+	}
+
+}// end class
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.*;
+
+import server.parse.HttpRequest;
+import util.Configuration;
+import util.Constants;
+
+/**
+ * Compression Cache - negotiates the gzip and deflate content codings and
+ * keeps the compressed variants of static files, so each file is compressed
+ * once and not on every request.
+ *
+ * Variants are keyed by canonical path and coding, as the mapped files are,
+ * and remember the lastModified and length of the file they were made from;
+ * a variant of a changed file is compressed again. Files larger than
+ * server.compress.maxFileSize are sent uncompressed. The least recently used
+ * variants are evicted to keep the total under server.compress.budget bytes,
+ * each variant counting a fixed overhead besides its data. A file that does
+ * not get smaller is remembered as incompressible and sent as is.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.17
+ *
+ * @author haijunq
+ */
+public class CompressionCache {
+
+	// singleton reference to this class
+	private static final CompressionCache singleton = new CompressionCache();
+
+	// the supported content codings
+	public static final String GZIP = "gzip";
+	public static final String DEFLATE = "deflate";
+
+	// bytes counted for each variant besides its data: the key, the entry
+	// and the variant, so the incompressible markers are bounded as well
+	private static final int ENTRY_OVERHEAD = 256;
+
+	// configuration
+	private final long budget;
+	private final long maxFileSize;
+	private final int level;
+
+	// guards the map and the counters
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// the variants in least recently used order
+	private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<String, Variant>(64, 0.75f, true);
+
+	// statistics
+	private long cachedBytes = 0;
+	private long hitCount = 0;
+	private long compressionCount = 0;
+	private long evictionCount = 0;
+	private long originalBytes = 0;
+	private long compressedBytes = 0;
+
+	// constructor is private to guarantee a singleton instance
+	private CompressionCache() {
+		Configuration config = Configuration.getReference();
+		this.budget = config.getLong("server.compress.budget", Constants.DEFAULT_COMPRESS_BUDGET);
+		this.maxFileSize = config.getLong("server.compress.maxFileSize",
+				Constants.DEFAULT_COMPRESS_MAX_FILE_SIZE);
+		this.level = config.getInt("server.compress.level", Constants.DEFAULT_COMPRESS_LEVEL);
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static CompressionCache getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the content coding to respond with, gzip being preferred, or
+	 * null if the client accepts neither gzip nor deflate.
+	 */
+	public static String negotiate(HttpRequest request) {
+		if (request.acceptsEncoding(GZIP))
+			return GZIP;
+		if (request.acceptsEncoding(DEFLATE))
+			return DEFLATE;
+		return null;
+	}
+
+	/**
+	 * Returns true if the file is known to be sent compressed with the
+	 * coding: a variant of this version of the file has been compressed and
+	 * became smaller. The file is not read, so a conditional request can be
+	 * answered with the tag of the variant a full response would send; until
+	 * the file has been compressed that is the identity tag.
+	 *
+	 * @param file
+	 *            is the requested file
+	 * @param modified
+	 *            is the lastModified time of the file
+	 * @param length
+	 *            is the length of the file
+	 * @param coding
+	 *            is the negotiated content coding
+	 */
+	public boolean isCompressed(File file, long modified, long length, String coding)
+			throws IOException {
+		if (this.budget <= 0 || length > this.maxFileSize)
+			return false;
+		String key = key(file, coding);
+
+		this.lock.lock();
+		try {
+			Variant variant = this.variants.get(key);
+			return variant != null && variant.modified == modified && variant.length == length
+					&& variant.compressed != null;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns the compressed file, compressing it on a miss, or null if the
+	 * file is to be sent uncompressed.
+	 *
+	 * @param file
+	 *            is the requested file
+	 * @param modified
+	 *            is the lastModified time of the file
+	 * @param length
+	 *            is the length of the file
+	 * @param coding
+	 *            is the negotiated content coding
+	 */
+	public ByteBuffer get(File file, long modified, long length, String coding) throws IOException {
+		if (this.budget <= 0 || length > this.maxFileSize)
+			return null;
+		String key = key(file, coding);
+
+		this.lock.lock();
+		try {
+			Variant variant = this.variants.get(key);
+			if (variant != null && variant.modified == modified && variant.length == length) {
+				this.hitCount++;
+				return variant.buffer();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		// compress outside the lock
+		byte[] contents;
+		try {
+			contents = Files.readAllBytes(file.toPath());
+		} catch (NoSuchFileException e) {
+			return null;
+		}
+		if (contents.length != length)
+			return null; // changed while being read, compress on the next request
+		byte[] compressed = compress(contents, coding, this.level);
+		Variant variant = new Variant(compressed.length < contents.length ? compressed : null,
+				modified, length);
+
+		this.lock.lock();
+		try {
+			Variant previous = this.variants.put(key, variant);
+			if (previous != null)
+				this.cachedBytes -= previous.size();
+			this.cachedBytes += variant.size();
+			this.compressionCount++;
+			this.originalBytes += contents.length;
+			this.compressedBytes += Math.min(compressed.length, contents.length);
+
+			// evict the least recently used variants
+			Iterator<Variant> eldest = this.variants.values().iterator();
+			while (this.cachedBytes > this.budget && eldest.hasNext()) {
+				this.cachedBytes -= eldest.next().size();
+				eldest.remove();
+				this.evictionCount++;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return variant.buffer();
+	}
+
+	// Returns the key of the variant of the file with the coding; the
+	// canonical path, so each file is compressed once however it is named.
+	//
+	private static String key(File file, String coding) throws IOException {
+		return file.getCanonicalPath() + ';' + coding;
+	}
+
+	/**
+	 * Compresses the data with the content coding at the default level; used
+	 * for generated pages, which are not cached.
+	 */
+	public static byte[] compress(byte[] data, String coding) throws IOException {
+		return compress(data, coding, singleton.level);
+	}
+
+	/**
+	 * Returns a stream compressing what is written to it with the content
+	 * coding, for bodies generated piece by piece; closing it finishes the
+	 * compressed data and closes the underlying stream.
+	 */
+	public static DeflaterOutputStream compressingStream(OutputStream out, String coding)
+			throws IOException {
+		final int level = singleton.level;
+		if (GZIP.equals(coding)) {
+			return new GZIPOutputStream(out, Constants.PIPELINE_BUFFER_SIZE) {
+				{
+					def.setLevel(level);
+				}
+			};
+		}
+		return new DeflaterOutputStream(out, new Deflater(level), Constants.PIPELINE_BUFFER_SIZE) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					def.end();
+				}
+			}
+		};
+	}
+
+	// Compresses the data; deflate is the zlib format (RFC 1950) as the HTTP
+	// deflate coding requires, not a raw deflate stream.
+	//
+	private static byte[] compress(byte[] data, String coding, final int level) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+		Deflater deflater = null;
+		DeflaterOutputStream out;
+		if (GZIP.equals(coding)) {
+			out = new GZIPOutputStream(bytes) {
+				{
+					def.setLevel(level);
+				}
+			};
+		} else {
+			// a deflater passed in is not released by the stream
+			deflater = new Deflater(level);
+			out = new DeflaterOutputStream(bytes, deflater);
+		}
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+			if (deflater != null)
+				deflater.end();
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Returns a one line summary of the cache statistics.
+	 */
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			return "compression cache: variants=" + this.variants.size() + " size="
+					+ (this.cachedBytes / 1024) + "KB budget=" + (this.budget / 1024)
+					+ "KB hits=" + this.hitCount + " compressions=" + this.compressionCount
+					+ " evictions=" + this.evictionCount + " ratio="
+					+ (this.originalBytes == 0 ? 100 : this.compressedBytes * 100 / this.originalBytes) + "%";
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// A compressed variant, or the marker of an incompressible file.
+	//
+	private static class Variant {
+		private final byte[] compressed; 							// null if not worth compressing
+		private final long modified; 								// lastModified of the source file
+		private final long length; 									// length of the source file
+
+		Variant(byte[] compressed, long modified, long length) {
+			this.compressed = compressed;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		ByteBuffer buffer() {
+			return (this.compressed == null) ? null : ByteBuffer.wrap(this.compressed).asReadOnlyBuffer();
+		}
+
+		long size() {
+			return ENTRY_OVERHEAD + ((this.compressed == null) ? 0 : this.compressed.length);
+		}
+	}
+
+}// end class
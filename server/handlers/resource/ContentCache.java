@@ -0,0 +1,233 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.Configuration;
+import util.Constants;
+
+/**
+ * Content Cache - keeps the contents of small and medium static files in
+ * memory, so they are served without touching the file system.
+ *
+ * Files up to server.cache.maxFileSize bytes are cached as immutable byte
+ * arrays; the least recently used files are evicted to keep the total under
+ * server.cache.budget bytes. A cached file is checked against the file
+ * system at most once every server.cache.revalidate milliseconds: if its
+ * lastModified or length changed it is read again, if it was deleted it is
+ * dropped. Between two checks a request costs no system call at all.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.16
+ *
+ * @author haijunq
+ */
+public class ContentCache {
+
+	// singleton reference to this class
+	private static final ContentCache singleton = new ContentCache();
+
+	// configuration
+	private final long budget;
+	private final long maxFileSize;
+	private final long revalidateInterval;
+
+	// guards the map and the counters
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// the cached files in least recently used order
+	private final LinkedHashMap<String, CachedFile> files = new LinkedHashMap<String, CachedFile>(64, 0.75f, true);
+
+	// statistics
+	private long cachedBytes = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long reloadCount = 0;
+	private long evictionCount = 0;
+
+	// constructor is private to guarantee a singleton instance
+	private ContentCache() {
+		Configuration config = Configuration.getReference();
+		this.budget = config.getLong("server.cache.budget", Constants.DEFAULT_CACHE_BUDGET);
+		this.maxFileSize = Math.min(this.budget, config.getLong("server.cache.maxFileSize",
+				Constants.DEFAULT_CACHE_MAX_FILE_SIZE));
+		this.revalidateInterval = config.getLong("server.cache.revalidate",
+				Constants.DEFAULT_CACHE_REVALIDATE);
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static ContentCache getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the cached contents of the file, reading it into the cache on
+	 * a miss, or null if the file is not a regular file or too large to be
+	 * cached.
+	 *
+	 * @param file
+	 *            is the requested file
+	 */
+	public CachedFile get(File file) throws IOException {
+		if (this.budget <= 0)
+			return null;
+		String path = file.getPath();
+
+		CachedFile cached;
+		this.lock.lock();
+		try {
+			cached = this.files.get(path);
+			if (cached != null && System.currentTimeMillis() - cached.checked < this.revalidateInterval) {
+				this.hitCount++;
+				return cached;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+
+		// check the file, then read it outside the lock
+		long modified = file.lastModified();
+		long length = file.length();
+		if (cached != null && cached.modified == modified && cached.contents.length == length) {
+			this.lock.lock();
+			try {
+				cached.checked = System.currentTimeMillis();
+				this.hitCount++;
+			} finally {
+				this.lock.unlock();
+			}
+			return cached;
+		}
+
+		// large files, directories and missing files are not counted
+		CachedFile loaded = null;
+		boolean cacheable = modified != 0 && length <= this.maxFileSize && file.isFile();
+		if (cacheable)
+			loaded = load(file, modified);
+
+		this.lock.lock();
+		try {
+			if (cached != null) {
+				remove(path);
+				this.reloadCount++;
+			} else if (cacheable) {
+				this.missCount++;
+			}
+			if (loaded != null) {
+				remove(path);
+				this.files.put(path, loaded);
+				this.cachedBytes += loaded.contents.length;
+				evict();
+			}
+		} finally {
+			this.lock.unlock();
+		}
+		return loaded;
+	}
+
+	// Reads the whole file.
+	//
+	private static CachedFile load(File file, long modified) throws IOException {
+		try {
+			return new CachedFile(Files.readAllBytes(file.toPath()), modified);
+		} catch (NoSuchFileException e) {
+			// deleted in the meantime
+			return null;
+		}
+	}
+
+	// Drops a file from the cache; the lock must be held.
+	//
+	private void remove(String path) {
+		CachedFile removed = this.files.remove(path);
+		if (removed != null)
+			this.cachedBytes -= removed.contents.length;
+	}
+
+	// Evicts the least recently used files until the cache fits in the
+	// budget; the lock must be held.
+	//
+	private void evict() {
+		Iterator<CachedFile> eldest = this.files.values().iterator();
+		while (this.cachedBytes > this.budget && eldest.hasNext()) {
+			this.cachedBytes -= eldest.next().contents.length;
+			eldest.remove();
+			this.evictionCount++;
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the cache statistics.
+	 */
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			long requests = this.hitCount + this.missCount + this.reloadCount;
+			return "content cache: files=" + this.files.size() + " size="
+					+ (this.cachedBytes / 1024) + "KB budget=" + (this.budget / 1024)
+					+ "KB hits=" + this.hitCount + " misses=" + this.missCount
+					+ " reloads=" + this.reloadCount + " evictions=" + this.evictionCount
+					+ " hit ratio=" + (requests == 0 ? 0 : this.hitCount * 100 / requests) + "%";
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * The cached contents of a file. The contents are never modified once
+	 * cached, so they are shared by all responses.
+	 */
+	public static class CachedFile {
+		private final byte[] contents; 								// the file contents
+		private final long modified; 								// lastModified of the cached file
+		private long checked = System.currentTimeMillis(); 			// time of the last check, guarded by the cache lock
+
+		private CachedFile(byte[] contents, long modified) {
+			this.contents = contents;
+			this.modified = modified;
+		}
+
+		/**
+		 * Returns the length of the file.
+		 */
+		public long getLength() {
+			return this.contents.length;
+		}
+
+		/**
+		 * Returns the lastModified time of the file.
+		 */
+		public long getLastModified() {
+			return this.modified;
+		}
+
+		/**
+		 * Returns a read-only buffer over the contents.
+		 */
+		public ByteBuffer getContents() {
+			return ByteBuffer.wrap(this.contents).asReadOnlyBuffer();
+		}
+
+		/**
+		 * Returns a read-only buffer over count bytes of the contents,
+		 * starting at position.
+		 */
+		public ByteBuffer getContents(long position, long count) {
+			return ByteBuffer.wrap(this.contents, (int) position, (int) count).asReadOnlyBuffer();
+		}
+	}
+
+}// end class
@@ -0,0 +1,363 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.Configuration;
+import util.Constants;
+
+/**
+ * Directory Listing Cache - keeps the rendered directory listing pages, so a
+ * popular index page is served from memory without scanning the directory.
+ *
+ * The cached directories are registered with a WatchService; a watcher
+ * thread drops the listings of a directory as soon as a file in it is
+ * created, deleted or modified. If the file system offers no WatchService,
+ * or a directory cannot be registered, the listing is polled instead: it is
+ * dropped when the directory's lastModified changes, and rescanned every
+ * server.listing.poll milliseconds, which catches files modified in place.
+ * A directory is watched only while a listing of it is cached: the watch is
+ * cancelled when its last listing is evicted or dropped, so the watches never
+ * outnumber the listings and do not use up the inotify limits.
+ *
+ * At most server.listing.maxEntries listings are kept, the least recently
+ * used ones are evicted. The compressed variants of a listing are made on
+ * demand and kept with it.
+ *
+ * A listing is scanned between beginScan() and put(); a change signalled in
+ * the meantime discards the scanned page, so a stale page is never cached.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.19
+ *
+ * @author haijunq
+ */
+public class DirectoryListingCache {
+
+	// singleton reference to this class
+	private static final DirectoryListingCache singleton = new DirectoryListingCache();
+
+	// configuration
+	private final int maxEntries;
+	private final long pollInterval;
+
+	// the watch service, null if the listings are polled
+	private final WatchService watchService;
+
+	// guards the maps and the counters
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// the listings in least recently used order, keyed by resource identifier
+	private final LinkedHashMap<String, Listing> listings = new LinkedHashMap<String, Listing>(64, 0.75f, true);
+
+	// the watched directories
+	private final Map<Path, Watch> watches = new HashMap<Path, Watch>();
+
+	// statistics
+	private long hitCount = 0;
+	private long missCount = 0;
+	private long invalidationCount = 0;
+	private long evictionCount = 0;
+
+	// constructor is private to guarantee a singleton instance
+	private DirectoryListingCache() {
+		Configuration config = Configuration.getReference();
+		this.maxEntries = config.getInt("server.listing.maxEntries", Constants.DEFAULT_LISTING_MAX_ENTRIES);
+		this.pollInterval = config.getLong("server.listing.poll", Constants.DEFAULT_LISTING_POLL);
+
+		WatchService service = null;
+		if (config.getBoolean("server.listing.watch", true)) {
+			try {
+				service = FileSystems.getDefault().newWatchService();
+			} catch (IOException e) {
+				System.out.println(this.getClass().getName()
+						+ ": no watch service, directory listings are polled");
+			} catch (UnsupportedOperationException e) {
+				System.out.println(this.getClass().getName()
+						+ ": no watch service, directory listings are polled");
+			}
+		}
+		this.watchService = service;
+
+		if (this.watchService != null) {
+			Thread watcher = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					watch();
+				}
+			}, "listing-watcher");
+			watcher.setDaemon(true);
+			watcher.start();
+		}
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static DirectoryListingCache getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the cached listing page, compressed with the content coding if
+	 * it is not null, or null if the listing has to be scanned.
+	 *
+	 * @param dir
+	 *            is the listed directory
+	 * @param resourceIdentifier
+	 *            is the requested resource, which the page shows
+	 * @param coding
+	 *            is the negotiated content coding, or null
+	 */
+	public byte[] get(File dir, String resourceIdentifier, String coding) throws IOException {
+		if (this.maxEntries <= 0)
+			return null;
+
+		Listing listing;
+		this.lock.lock();
+		try {
+			listing = this.listings.get(resourceIdentifier);
+			if (listing != null && listing.watch == null && !isCurrent(listing, dir)) {
+				remove(resourceIdentifier);
+				this.invalidationCount++;
+				listing = null;
+			}
+			if (listing == null) {
+				this.missCount++;
+				return null;
+			}
+			this.hitCount++;
+			if (coding == null)
+				return listing.page;
+			byte[] variant = listing.variants.get(coding);
+			if (variant != null)
+				return variant;
+		} finally {
+			this.lock.unlock();
+		}
+
+		// compress outside the lock, the variant is kept with the listing
+		byte[] variant = CompressionCache.compress(listing.page, coding);
+		this.lock.lock();
+		try {
+			listing.variants.put(coding, variant);
+		} finally {
+			this.lock.unlock();
+		}
+		return variant;
+	}
+
+	/**
+	 * Starts watching the directory, if it is not watched yet, before it is
+	 * scanned; returns the token to pass to put().
+	 */
+	public long beginScan(File dir) {
+		if (this.maxEntries <= 0 || this.watchService == null)
+			return 0;
+
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		this.lock.lock();
+		try {
+			Watch watch = this.watches.get(path);
+			if (watch == null) {
+				try {
+					watch = new Watch(path.register(this.watchService,
+							StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_DELETE,
+							StandardWatchEventKinds.ENTRY_MODIFY));
+				} catch (IOException e) {
+					// e.g. out of inotify watches: this directory is polled
+					return -1;
+				}
+				this.watches.put(path, watch);
+			}
+			return watch.generation;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Caches a scanned listing page, unless the directory changed since
+	 * beginScan().
+	 *
+	 * @param dir
+	 *            is the listed directory
+	 * @param resourceIdentifier
+	 *            is the requested resource, which the page shows
+	 * @param page
+	 *            is the rendered page
+	 * @param token
+	 *            is the value returned by beginScan()
+	 * @param scanned
+	 *            is the time the scan began
+	 * @param dirModified
+	 *            is the lastModified time of the directory before the scan
+	 */
+	public void put(File dir, String resourceIdentifier, byte[] page, long token,
+			long scanned, long dirModified) {
+		if (this.maxEntries <= 0)
+			return;
+
+		Path path = dir.toPath().toAbsolutePath().normalize();
+		boolean polled = (this.watchService == null || token < 0);
+		this.lock.lock();
+		try {
+			Watch watch = null;
+			if (!polled) {
+				watch = this.watches.get(path);
+				if (watch == null || watch.generation != token) {
+					// the scan is stale; nothing else may need the watch
+					if (watch != null && watch.listingCount == 0)
+						unwatch(path, watch);
+					return;
+				}
+				watch.listingCount++;
+			}
+			Listing previous = this.listings.put(resourceIdentifier,
+					new Listing(path, watch, page, scanned, dirModified));
+			if (previous != null)
+				release(previous);
+
+			// evict the least recently used listings
+			Iterator<Map.Entry<String, Listing>> eldest = this.listings.entrySet().iterator();
+			while (this.listings.size() > this.maxEntries && eldest.hasNext()) {
+				Listing evicted = eldest.next().getValue();
+				eldest.remove();
+				release(evicted);
+				this.evictionCount++;
+			}
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Returns true if a polled listing is still current; the lock must be
+	// held.
+	//
+	private boolean isCurrent(Listing listing, File dir) {
+		return System.currentTimeMillis() - listing.scanned < this.pollInterval
+				&& dir.lastModified() == listing.dirModified;
+	}
+
+	// Drops a listing; the lock must be held.
+	//
+	private void remove(String resourceIdentifier) {
+		Listing removed = this.listings.remove(resourceIdentifier);
+		if (removed != null)
+			release(removed);
+	}
+
+	// Releases the watch of a dropped listing, cancelling it with its last
+	// listing; the lock must be held.
+	//
+	private void release(Listing listing) {
+		Watch watch = listing.watch;
+		if (watch != null && --watch.listingCount == 0)
+			unwatch(listing.dir, watch);
+	}
+
+	// Stops watching a directory; the lock must be held.
+	//
+	private void unwatch(Path dir, Watch watch) {
+		watch.key.cancel();
+		if (this.watches.get(dir) == watch)
+			this.watches.remove(dir);
+	}
+
+	// Runs on the watcher thread: drops the listings of the directories in
+	// which files changed.
+	//
+	private void watch() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = this.watchService.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (ClosedWatchServiceException e) {
+				return;
+			}
+			key.pollEvents();
+			Path dir = (Path) key.watchable();
+			boolean valid = key.reset();
+
+			this.lock.lock();
+			try {
+				Watch watch = this.watches.get(dir);
+				if (watch != null && watch.key == key) {
+					watch.generation++;
+					if (!valid)
+						this.watches.remove(dir);
+				}
+				Iterator<Listing> listings = this.listings.values().iterator();
+				while (listings.hasNext()) {
+					Listing listing = listings.next();
+					if (listing.dir.equals(dir)) {
+						listings.remove();
+						release(listing);
+						this.invalidationCount++;
+					}
+				}
+			} finally {
+				this.lock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the cache statistics.
+	 */
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			return "listing cache: mode=" + (this.watchService == null ? "poll" : "watch")
+					+ " listings=" + this.listings.size() + " watched=" + this.watches.size()
+					+ " hits=" + this.hitCount + " misses=" + this.missCount
+					+ " invalidations=" + this.invalidationCount + " evictions=" + this.evictionCount;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// A watched directory; the generation counts the changes signalled.
+	//
+	private static class Watch {
+		private final WatchKey key; 								// the registration
+		private long generation = 0; 								// changes signalled
+		private int listingCount = 0; 								// cached listings using the watch
+
+		Watch(WatchKey key) {
+			this.key = key;
+		}
+	}
+
+	// A rendered listing page and its compressed variants.
+	//
+	private static class Listing {
+		private final Path dir; 									// the listed directory
+		private final Watch watch; 									// the watch, null if polled
+		private final byte[] page; 									// the page, uncompressed
+		private final Map<String, byte[]> variants = new HashMap<String, byte[]>(4); // compressed pages
+		private final long scanned; 								// time the scan began
+		private final long dirModified; 							// lastModified of the directory
+
+		Listing(Path dir, Watch watch, byte[] page, long scanned, long dirModified) {
+			this.dir = dir;
+			this.watch = watch;
+			this.page = page;
+			this.scanned = scanned;
+			this.dirModified = dirModified;
+		}
+	}
+
+}// end class
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+import server.error.ErrorModule;
+import server.handlers.connection.ChunkedOutputStream;
+import server.handlers.connection.ClientConnection;
+import server.handlers.connection.ResponseHeader;
+import server.log.LogManager;
+import server.parse.HttpRequest;
+import util.*;
+
+/**
+ * Directory Listing Streamer - writes the listing of a very large directory
+ * row by row while the directory is read, so memory stays flat however many
+ * files it holds.
+ *
+ * The directory is read with Files.newDirectoryStream, in file system order,
+ * and the rows are sent with the chunked transfer coding, or until the
+ * connection closes for an HTTP/1.0 client. The query selects a page and the
+ * format:
+ *
+ *   /upload/?offset=2000&limit=1000&format=json
+ *
+ * offset skips entries, limit bounds the rows (all by default) and
+ * format=json writes a JSON document instead of HTML. A page that stops at
+ * the limit links to the next page. A negative or malformed offset, or a
+ * limit below 1, is answered with 400, since its next page would be itself.
+ * Streamed listings are not cached.
+ *
+ * Created: 2013.11.20
+ *
+ * @author haijunq
+ */
+public class DirectoryListingStreamer {
+
+	// streams every listing, not only the paginated ones
+	private static final boolean STREAM_ALL = Configuration.getReference()
+			.getBoolean("server.listing.stream", false);
+
+	// date of the HTML rows, as in the cached listing pages
+	private static final DateTimeFormatter ROW_DATE = DateTimeFormatter
+			.ofPattern("dd-MMM-yyyy HH:mm").withZone(ZoneId.systemDefault());
+
+	// the Content-Type lines of the two formats
+	private static final byte[] HTML_TYPE = ("Content-Type: text/html; charset=UTF-8" + Constants.CRLF).getBytes();
+	private static final byte[] JSON_TYPE = ("Content-Type: application/json; charset=UTF-8" + Constants.CRLF).getBytes();
+
+	// size of the chunks sent
+	private static final int CHUNK_SIZE = 8192;
+
+	public DirectoryListingStreamer() {
+	}
+
+	/**
+	 * Returns true if the directory listing is to be streamed: a page or a
+	 * format is requested, or server.listing.stream is set.
+	 */
+	public static boolean isRequested(HttpRequest request) {
+		return STREAM_ALL || request.getQueryParameter("offset") != null
+				|| request.getQueryParameter("limit") != null
+				|| request.getQueryParameter("format") != null;
+	}
+
+	/**
+	 * Streams the requested page of the directory listing.
+	 *
+	 * @param clientSocket
+	 *            is the connection received from the client
+	 * @param request
+	 *            is the parsed request
+	 * @param resourceIdentifier
+	 *            is the requested directory, without the query
+	 * @param dir
+	 *            is the directory
+	 */
+	public void stream(ClientConnection clientSocket, HttpRequest request,
+			String resourceIdentifier, File dir) throws IOException {
+		long offset = parameter(request, "offset", 0);
+		long limit = parameter(request, "limit", Long.MAX_VALUE);
+		if (offset < 0 || limit < 1) {
+			ErrorModule.getReference().requestError(clientSocket, request, 400);
+			return;
+		}
+		boolean json = "json".equals(request.getQueryParameter("format"));
+		String coding = CompressionCache.negotiate(request);
+
+		// an HTTP/1.0 client cannot decode chunks, its body ends when the
+		// connection closes
+		boolean chunked = request.getVersion().equals("HTTP/1.1");
+		if (!chunked)
+			request.setKeepAlive(false);
+
+		ResponseHeader header = ResponseHeader.begin(200);
+		header.line(json ? JSON_TYPE : HTML_TYPE);
+		if (chunked)
+			header.line(ResponseHeader.TRANSFER_ENCODING_CHUNKED);
+		if (coding != null)
+			header.field(ResponseHeader.CONTENT_ENCODING, coding);
+		header.line(ResponseHeader.VARY_ACCEPT_ENCODING);
+		header.connection(request);
+
+		CountingOutputStream counter = new CountingOutputStream(clientSocket.getOutputStream());
+		header.writeTo(counter);
+
+		// body: rows -> UTF-8 -> compression -> chunks -> connection
+		OutputStream body = chunked ? new ChunkedOutputStream(counter) : counter;
+		if (coding != null)
+			body = CompressionCache.compressingStream(body, coding);
+		Writer out = new BufferedWriter(new OutputStreamWriter(body, "UTF-8"), CHUNK_SIZE);
+
+		String next = json ? "&format=json" : "";
+		if (json)
+			out.write("{\"directory\":" + quote(resourceIdentifier) + ",\"offset\":" + offset
+					+ ",\"entries\":[");
+		else
+			writeHtmlHead(out, resourceIdentifier);
+
+		// read the directory one entry at a time
+		long index = 0;
+		boolean more = false;
+		DirectoryStream<Path> entries = Files.newDirectoryStream(dir.toPath());
+		try {
+			for (Path entry : entries) {
+				if (index++ < offset)
+					continue;
+				if (index - offset > limit) {
+					more = true;
+					break;
+				}
+				BasicFileAttributes attributes;
+				try {
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// deleted in the meantime
+					continue;
+				}
+				String name = entry.getFileName().toString();
+				if (json)
+					writeJsonEntry(out, name, attributes, index - offset == 1);
+				else
+					writeHtmlRow(out, dir, name, attributes);
+			}
+		} finally {
+			entries.close();
+		}
+
+		// link the next page
+		next = more ? resourceIdentifier + "?offset=" + (offset + limit) + "&limit=" + limit + next : null;
+		if (json) {
+			out.write("],\"next\":" + (next == null ? "null" : quote(next)) + "}");
+		} else {
+			out.write("</table>");
+			if (next != null)
+				out.write("<p><a href=\"" + escape(next) + "\">Next page</a></p>");
+			out.write("<hr width=100% align=left size=1>");
+			out.write(Utilities.versionFooter());
+			out.write("</body></html>" + Constants.CRLF);
+		}
+
+		// ends the compressed data and the chunks; the connection stays open
+		out.close();
+
+		// log the request
+		LogManager.getReference().logRequest(clientSocket, request, 200, counter.count);
+	}
+
+	// Writes the page head and the table header.
+	//
+	private static void writeHtmlHead(Writer out, String resourceIdentifier) throws IOException {
+		String title = escape(resourceIdentifier.endsWith("/") && resourceIdentifier.length() > 1
+				? resourceIdentifier.substring(0, resourceIdentifier.length() - 1)
+				: resourceIdentifier);
+		out.write("<html><head><title>Index of " + escape(resourceIdentifier) + "</title></head>");
+		out.write("<body><h1>Index of " + title + "</h1>");
+		out.write("<hr width=100% align=left size=1>");
+		out.write("<table border=\"0\" width=100%>");
+		out.write("<tr><th align=left>Name</th><th align=left>Last Modified</th><th align=right>Size</th></tr>");
+	}
+
+	// Writes one table row, with the links of the cached listing pages.
+	//
+	private static void writeHtmlRow(Writer out, File dir, String name,
+			BasicFileAttributes attributes) throws IOException {
+		String escaped = escape(name);
+		out.write("<tr><td><img width=\"30px\" src=\"../icons/"
+				+ escape(name.substring(name.lastIndexOf('.') + 1)) + ".png\"/><a href=\"../"
+				+ escape(dir.getName()) + "/" + escaped + "\">" + escaped + "</a></td><td>"
+				+ ROW_DATE.format(attributes.lastModifiedTime().toInstant()) + "</td><td align=right>"
+				+ (attributes.isDirectory() ? "-" : String.valueOf(attributes.size()))
+				+ "</td></tr>");
+	}
+
+	// Writes one JSON entry.
+	//
+	private static void writeJsonEntry(Writer out, String name,
+			BasicFileAttributes attributes, boolean first) throws IOException {
+		out.write((first ? "" : ",") + "{\"name\":" + quote(name) + ",\"directory\":"
+				+ attributes.isDirectory() + ",\"size\":" + attributes.size() + ",\"modified\":\""
+				+ attributes.lastModifiedTime().toInstant() + "\"}");
+	}
+
+	// Returns a numeric query parameter, the default value if it is absent,
+	// or -1 if it is not a number.
+	//
+	private static long parameter(HttpRequest request, String name, long defaultValue) {
+		String value = request.getQueryParameter(name);
+		if (value == null)
+			return defaultValue;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Escapes the HTML special characters of a file name.
+	//
+	private static String escape(String text) {
+		StringBuilder str = new StringBuilder(text.length() + 16);
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '<':
+				str.append("&lt;");
+				break;
+			case '>':
+				str.append("&gt;");
+				break;
+			case '&':
+				str.append("&amp;");
+				break;
+			case '"':
+				str.append("&quot;");
+				break;
+			default:
+				str.append(c);
+			}
+		}
+		return str.toString();
+	}
+
+	// Returns the text as a JSON string literal.
+	//
+	private static String quote(String text) {
+		StringBuilder str = new StringBuilder(text.length() + 16);
+		str.append('"');
+		for (int i = 0; i < text.length(); i++) {
+			char c = text.charAt(i);
+			if (c == '"' || c == '\\')
+				str.append('\\').append(c);
+			else if (c < 0x20)
+				str.append(String.format("\\u%04x", (int) c));
+			else
+				str.append(c);
+		}
+		return str.append('"').toString();
+	}
+
+	// Counts the bytes sent; closing it only flushes, the connection stays
+	// open.
+	//
+	private static class CountingOutputStream extends FilterOutputStream {
+		private long count = 0;
+
+		CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			this.out.write(b);
+			this.count++;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			this.out.write(b, off, len);
+			this.count += len;
+		}
+
+		@Override
+		public void close() throws IOException {
+			this.out.flush();
+		}
+	}
+
+}// end class
@@ -0,0 +1,289 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.handlers.resource;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
+
+import util.Configuration;
+import util.Constants;
+import util.Utilities;
+
+/**
+ * Mapped File Registry - keeps the frequently requested large files mapped
+ * into memory, so they are sent from the mapping instead of being opened and
+ * read for every request.
+ *
+ * A file is mapped once it has been requested server.mmap.hits times and is
+ * at least server.mmap.minSize bytes long. Mappings are keyed by canonical
+ * path and are dropped when the file's lastModified or length changes. The
+ * total size of the mappings is bounded by server.mmap.budget; the least
+ * recently used mappings are evicted to make room. A mapping is unmapped only
+ * once the last response using it is sent, so connections acquire a mapping
+ * and release it when done, and each region queued for sending holds a
+ * reference of its own.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.15
+ *
+ * @author haijunq
+ */
+public class MappedFileRegistry {
+
+	// singleton reference to this class
+	private static final MappedFileRegistry singleton = new MappedFileRegistry();
+
+	// number of unmapped files whose request count is remembered
+	private static final int TRACKED_FILES = 1024;
+
+	// configuration
+	private final long budget;
+	private final long minSize;
+	private final int hitsToMap;
+
+	// guards the maps and the counters
+	private final ReentrantLock lock = new ReentrantLock();
+
+	// the mappings in least recently used order
+	private final LinkedHashMap<String, MappedFile> files = new LinkedHashMap<String, MappedFile>(16, 0.75f, true);
+
+	// request counts of the files not mapped yet
+	private final LinkedHashMap<String, Integer> requestCounts = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+			return size() > TRACKED_FILES;
+		}
+	};
+
+	// statistics
+	private long mappedBytes = 0;
+	private long hitCount = 0;
+	private long mapCount = 0;
+	private long evictionCount = 0;
+
+	// constructor is private to guarantee a singleton instance
+	private MappedFileRegistry() {
+		Configuration config = Configuration.getReference();
+		this.budget = config.getLong("server.mmap.budget", Constants.DEFAULT_MMAP_BUDGET);
+		this.minSize = config.getLong("server.mmap.minSize", Constants.DEFAULT_MMAP_MIN_SIZE);
+		this.hitsToMap = config.getInt("server.mmap.hits", Constants.DEFAULT_MMAP_HITS);
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static MappedFileRegistry getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the mapping of the file, mapping it if it has become hot, or
+	 * null if the file is to be sent from disk. The caller must close the
+	 * returned mapping once the response is sent.
+	 *
+	 * @param file
+	 *            is the requested file
+	 */
+	public MappedFile acquire(File file) throws IOException {
+		long length = file.length();
+		if (this.budget <= 0 || length < this.minSize || length > this.budget
+				|| length > Integer.MAX_VALUE)
+			return null;
+
+		String path = file.getCanonicalPath();
+		long modified = file.lastModified();
+
+		this.lock.lock();
+		try {
+			MappedFile mapped = this.files.get(path);
+			if (mapped != null) {
+				if (mapped.modified == modified && mapped.length == length) {
+					mapped.references++;
+					this.hitCount++;
+					return mapped;
+				}
+				// the file has changed
+				remove(path, mapped);
+			}
+
+			Integer count = this.requestCounts.get(path);
+			int requests = (count == null) ? 1 : count + 1;
+			if (requests < this.hitsToMap) {
+				this.requestCounts.put(path, requests);
+				return null;
+			}
+			this.requestCounts.remove(path);
+
+			// evict the least recently used mappings to stay in the budget
+			Iterator<Map.Entry<String, MappedFile>> eldest = this.files.entrySet().iterator();
+			while (this.mappedBytes + length > this.budget && eldest.hasNext()) {
+				MappedFile victim = eldest.next().getValue();
+				eldest.remove();
+				retire(victim);
+				this.evictionCount++;
+			}
+
+			mapped = map(file, modified, length);
+			this.files.put(path, mapped);
+			this.mappedBytes += length;
+			this.mapCount++;
+			mapped.references++;
+			return mapped;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Retires the mapping released by a region whose transfer failed with an
+	 * InternalError, which is how the JVM reports a fault on the mapping of a
+	 * file truncated since it was mapped. The next request maps it again.
+	 *
+	 * @param release
+	 *            is the release of the failed region, which may not be a
+	 *            mapping
+	 */
+	public static void retireFaulted(Closeable release) {
+		if (release instanceof MappedFile)
+			singleton.discard((MappedFile) release);
+	}
+
+	// Maps the whole file read-only.
+	//
+	private static MappedFile map(File file, long modified, long length) throws IOException {
+		FileChannel channel = new FileInputStream(file).getChannel();
+		try {
+			return new MappedFile(channel.map(FileChannel.MapMode.READ_ONLY, 0, length),
+					modified, length);
+		} finally {
+			// the mapping stays valid after the channel is closed
+			channel.close();
+		}
+	}
+
+	// Removes a mapping from the registry; the lock must be held.
+	//
+	private void remove(String path, MappedFile mapped) {
+		this.files.remove(path);
+		retire(mapped);
+	}
+
+	// Takes a mapping out of the budget and unmaps it once it is not in use;
+	// the lock must be held.
+	//
+	private void retire(MappedFile mapped) {
+		this.mappedBytes -= mapped.length;
+		mapped.retired = true;
+		if (mapped.references == 0)
+			Utilities.unmap(mapped.buffer);
+	}
+
+	// Drops a mapping from the registry if it is still there.
+	//
+	private void discard(MappedFile mapped) {
+		this.lock.lock();
+		try {
+			if (!mapped.retired && this.files.values().remove(mapped))
+				retire(mapped);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Takes another reference to a mapping in use.
+	//
+	private void retain(MappedFile mapped) {
+		this.lock.lock();
+		try {
+			mapped.references++;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	// Releases a mapping acquired for a response.
+	//
+	private void release(MappedFile mapped) {
+		this.lock.lock();
+		try {
+			if (--mapped.references == 0 && mapped.retired)
+				Utilities.unmap(mapped.buffer);
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns a one line summary of the registry statistics.
+	 */
+	@Override
+	public String toString() {
+		this.lock.lock();
+		try {
+			return "mapped files: files=" + this.files.size() + " mapped="
+					+ (this.mappedBytes / (1024 * 1024)) + "MB budget="
+					+ (this.budget / (1024 * 1024)) + "MB hits=" + this.hitCount
+					+ " maps=" + this.mapCount + " evictions=" + this.evictionCount;
+		} finally {
+			this.lock.unlock();
+		}
+	}
+
+	/**
+	 * A mapped file acquired for a response. Closing it releases the mapping.
+	 */
+	public static class MappedFile implements Closeable {
+		private final MappedByteBuffer buffer; 						// the mapping of the whole file
+		private final long modified; 								// lastModified of the mapped file
+		private final long length; 									// length of the mapped file
+		private int references = 0; 								// responses using the mapping
+		private boolean retired = false; 							// no longer in the registry
+
+		private MappedFile(MappedByteBuffer buffer, long modified, long length) {
+			this.buffer = buffer;
+			this.modified = modified;
+			this.length = length;
+		}
+
+		/** Returns the length of the mapped file */
+		public long getLength() {
+			return this.length;
+		}
+
+		/**
+		 * Returns a buffer over count bytes of the file, starting at position.
+		 */
+		public ByteBuffer slice(long position, long count) {
+			ByteBuffer slice = this.buffer.duplicate();
+			slice.position((int) position);
+			slice.limit((int) (position + count));
+			return slice;
+		}
+
+		/**
+		 * Takes another reference to the mapping, for a region that is sent
+		 * after the caller has closed its own; close it once it is sent.
+		 */
+		public MappedFile retain() {
+			singleton.retain(this);
+			return this;
+		}
+
+		/**
+		 * Releases the mapping.
+		 */
+		@Override
+		public void close() {
+			singleton.release(this);
+		}
+	}
+
+}// end class
@@ -6,11 +6,18 @@ package server.handlers.resource;
 
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
 
 import server.error.*;
+import server.handlers.connection.AdmissionController;
+import server.handlers.connection.BandwidthShaper;
+import server.handlers.connection.ClientConnection;
+import server.handlers.connection.ResponseHeader;
 import server.log.LogManager;
+import server.parse.HttpRequest;
 import util.*;
 
 /**
@@ -22,6 +29,13 @@ import util.*;
  */
 public class ResourceHandler {
 
+	// cached contents stay in the cache after the response
+	private static final Closeable NOTHING_TO_RELEASE = new Closeable() {
+		@Override
+		public void close() {
+		}
+	};
+
 	public ResourceHandler() {
 	}
 
@@ -29,11 +43,13 @@ public class ResourceHandler {
 	 * Streams the contents of the specified resource back to the client.
 	 * 
 	 * @param clientSocket
-	 *            is the socket connection received from the client
+	 *            is the connection received from the client
+	 * @param request
+	 *            is the parsed request
 	 * @param resourceIdentifier
 	 *            specifies the requested resource
 	 */
-	public void handleRequest(Socket clientSocket, String request,
+	public void handleRequest(ClientConnection clientSocket, HttpRequest request,
 			String resourceIdentifier) throws IOException {
 		// sanity checks
 		if (clientSocket == null) {
@@ -44,96 +60,351 @@ public class ResourceHandler {
 					"the resource identifier is null");
 		}
 
-		// streams
-		BufferedOutputStream output = null;
-		BufferedInputStream input = null;
-
 		// locate the requested resource
 		File file = null;
 		file = new File(Constants.DEFAULT_DIRECTORY + resourceIdentifier);
 
-		// check whether the requested file exists
-		if (!file.exists()) {
+		// retrieve the content type; a file of an unknown type is neither
+		// served nor cached
+		String contentType = ResourceRegistry.getReference().getContentType(
+				resourceIdentifier);
+
+		// a cached file is served without checking the file system
+		ContentCache.CachedFile cached = null;
+		if (contentType != null)
+			cached = ContentCache.getReference().get(file);
+		if (cached == null) {
+			// check whether the requested file exists
+			if (!file.exists()) {
+				ErrorModule.getReference().fileNotFoundError(clientSocket, request,
+						new FileNotFoundException(resourceIdentifier));
+				return;
+			}
+
+			// deal with the directory
+			if (file.isDirectory()) {
+				// show the file list.
+				this.convertDirectoryContentListToHTML(clientSocket,
+						resourceIdentifier, file, request);
+				return;
+			}
+		}
+
+		// if content type not found, display a file not found error to the user
+		if (contentType == null) {
 			ErrorModule.getReference().fileNotFoundError(clientSocket, request,
-					new FileNotFoundException(resourceIdentifier));
+					new FileNotFoundException());
 			return;
 		}
 
-		// deal with the directory
-		if (file.isDirectory()) {
-			// show the file list.
-			this.convertDirectoryContentListToHTML(clientSocket,
-					resourceIdentifier, file, request);
+		long length = (cached != null) ? cached.getLength() : file.length();
+		long lastModified = (cached != null) ? cached.getLastModified() : file.lastModified();
+
+		// send text compressed if the client accepts it
+		boolean compressible = ResourceRegistry.isCompressible(contentType);
+		String coding = compressible ? CompressionCache.negotiate(request) : null;
+
+		// answer a conditional request for an unchanged file without
+		// reading it; a 304 carries the tag of the compressed variant only
+		// once that is known to be sent, a large or incompressible file is
+		// sent as is
+		String identityTag = entityTag(length, lastModified, null);
+		String codingTag = (coding != null && CompressionCache.getReference().isCompressed(
+				file, lastModified, length, coding)) ? entityTag(length, lastModified, coding) : null;
+		String currentTag = notModifiedTag(request, lastModified, identityTag, codingTag);
+		if (currentTag != null) {
+			this.sendNotModified(clientSocket, request, lastModified, currentTag,
+					compressible);
 			return;
 		}
 
-		// instantiate the streams
-		output = new BufferedOutputStream(clientSocket.getOutputStream(),
-				Constants.DEFAULT_BUFFER_SIZE);
-		input = new BufferedInputStream(new FileInputStream(file),
-				Constants.DEFAULT_BUFFER_SIZE);
+		// a range request is served from the file as is; If-Range turns it
+		// into a full response once the file has changed
+		String range = request.getHeader("Range");
+		if (range != null && ifRangeMatches(request, lastModified, identityTag)) {
+			List<ByteRange> ranges = ByteRange.parse(range, length);
+			if (ranges != null) {
+				this.sendRanges(clientSocket, request, file, cached, contentType,
+						ranges, length, lastModified, identityTag, compressible);
+				return;
+			}
+		}
 
-		// retrieve the content type
-		String contentType = ResourceRegistry.getReference().getContentType(
-				resourceIdentifier);
-		// if content type not found, display a file not found error to the user
-		if (contentType == null) {
-			ErrorModule.getReference().fileNotFoundError(clientSocket, request,
-					new FileNotFoundException());
+		ByteBuffer compressed = null;
+		if (coding != null)
+			compressed = CompressionCache.getReference().get(file, lastModified, length, coding);
+		long contentLength = (compressed != null) ? compressed.remaining() : length;
+		if (!scheduleResponse(clientSocket, request, contentLength))
 			return;
+
+		// construct the HTTP response header and output it to the client
+		ResponseHeader header = ResponseHeader.begin(200);
+		header.field(ResponseHeader.CONTENT_TYPE, contentType);
+		header.field(ResponseHeader.CONTENT_LENGTH, contentLength);
+		if (compressed != null)
+			header.field(ResponseHeader.CONTENT_ENCODING, coding);
+		if (compressible)
+			header.line(ResponseHeader.VARY_ACCEPT_ENCODING);
+		header.dateField(ResponseHeader.LAST_MODIFIED, lastModified);
+		header.field(ResponseHeader.ETAG, (compressed != null)
+				? entityTag(length, lastModified, coding) : identityTag);
+		header.line(ResponseHeader.ACCEPT_RANGES);
+		header.connection(request);
+		header.writeTo(clientSocket.getOutputStream());
+
+		// send the resource contents to the client, from memory if the file
+		// is compressed, cached or mapped, the connection stays open for the
+		// next request; a large body is sent at the shaped rate
+		clientSocket.setShaped(BandwidthShaper.getReference().isShaped(resourceIdentifier,
+				contentType, contentLength));
+		try {
+			if (compressed != null) {
+				clientSocket.transferBuffer(compressed, NOTHING_TO_RELEASE);
+			} else if (cached != null) {
+				clientSocket.transferBuffer(cached.getContents(), NOTHING_TO_RELEASE);
+			} else {
+				MappedFileRegistry.MappedFile mapped = acquireMapping(file, length);
+				try {
+					sendRegion(clientSocket, file, null, mapped, 0, length);
+				} finally {
+					if (mapped != null)
+						mapped.close();
+				}
+			}
+		} finally {
+			clientSocket.setShaped(false);
+		}
+
+		// log the request
+		LogManager.getReference().logRequest(clientSocket, request, 200, contentLength);
+	}
+
+	/**
+	 * Moves a large response to the large lane of the admission control, so
+	 * it does not hold a slot small requests wait for. Returns false if the
+	 * request was turned away there and answered with 503.
+	 */
+	private static boolean scheduleResponse(ClientConnection clientSocket,
+			HttpRequest request, long contentLength) throws IOException {
+		AdmissionController.Ticket ticket = clientSocket.getAdmission();
+		if (ticket == null || contentLength < AdmissionController.LARGE_THRESHOLD
+				|| AdmissionController.getReference().enterLargeLane(ticket))
+			return true;
+
+		ErrorModule.getReference().serviceUnavailable(clientSocket, request);
+		return false;
+	}
+
+	/**
+	 * Acquires the mapping of a file whose header gave it length bytes, or
+	 * returns null if it is sent from disk. A mapping of another length, the
+	 * file having changed since the length was read, is not used.
+	 */
+	private static MappedFileRegistry.MappedFile acquireMapping(File file, long length)
+			throws IOException {
+		MappedFileRegistry.MappedFile mapped = MappedFileRegistry.getReference().acquire(file);
+		if (mapped != null && mapped.getLength() != length) {
+			mapped.close();
+			return null;
 		}
+		return mapped;
+	}
 
-		// construct the HTTP response header
-		PrintWriter pwout = new PrintWriter(output);
-		StringBuffer header = new StringBuffer(Constants.HTTP_VERSION
-				+ Utilities.getResponseMessage(200) + Constants.CRLF);
-		header.append("Date: " + new Date().toString() + Constants.CRLF);
-		header.append("Server: " + Constants.SERVER_IDENTIFICATION
-				+ Constants.CRLF);
-		header.append("Content-type: " + contentType + Constants.CRLF);
-		header.append("Content-length: " + file.length() + Constants.CRLF);
-		header.append("Last-Modified: "
-				+ new Date(file.lastModified()).toString() + Constants.CRLF);
-		header.append("Accept-Ranges: " + "bytes" + Constants.CRLF);
-		header.append(Constants.CRLF);
-
-		// output the HTTP header to the client
-		pwout.print(header);
-		pwout.flush();
-
-		// load the requested resource into memory
-		byte[] buffer = new byte[Constants.DEFAULT_BUFFER_SIZE];
-		int chunkNum = (int) file.length() / Constants.DEFAULT_BUFFER_SIZE;
-		int lastChunkSize = (int) file.length() % Constants.DEFAULT_BUFFER_SIZE;
-		byte[] lastbuffer = new byte[lastChunkSize];
-
-		for (int i = 0; i < chunkNum; i++) {
-			input.read(buffer);
-			// send the resource contents to the client as a stream of bytes
-			output.write(buffer);
-			// flush the output stream
+	/**
+	 * Sends count bytes of the file starting at position: from the cached
+	 * contents, from the mapping, or read from the file at that position.
+	 * The region holds its own reference to the mapping until it is sent;
+	 * the caller still closes the one it acquired.
+	 */
+	private static void sendRegion(ClientConnection clientSocket, File file,
+			ContentCache.CachedFile cached, MappedFileRegistry.MappedFile mapped,
+			long position, long count) throws IOException {
+		if (cached != null)
+			clientSocket.transferBuffer(cached.getContents(position, count), NOTHING_TO_RELEASE);
+		else if (mapped != null)
+			clientSocket.transferBuffer(mapped.slice(position, count), mapped.retain());
+		else
+			clientSocket.transferFile(file, position, count);
+	}
+
+	/**
+	 * Returns true if the Range header applies: there is no If-Range, or it
+	 * holds the current strong entity tag or the exact Last-Modified date.
+	 */
+	private static boolean ifRangeMatches(HttpRequest request, long lastModified,
+			String identityTag) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null)
+			return true;
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/"))
+			return ifRange.equals(identityTag);
+		long date = Utilities.parseHttpDate(ifRange);
+		return date >= 0 && date / 1000 == lastModified / 1000;
+	}
+
+	/**
+	 * Sends the requested ranges of the file: a 206 response with the single
+	 * range, a 206 multipart/byteranges response with several ranges, or a
+	 * 416 response if no range is satisfiable.
+	 */
+	private void sendRanges(ClientConnection clientSocket, HttpRequest request,
+			File file, ContentCache.CachedFile cached, String contentType,
+			List<ByteRange> ranges, long length, long lastModified,
+			String identityTag, boolean compressible) throws IOException {
+		OutputStream output = clientSocket.getOutputStream();
+
+		if (ranges.isEmpty()) {
+			ResponseHeader.begin(416)
+					.field(ResponseHeader.CONTENT_RANGE, "bytes */" + length)
+					.field(ResponseHeader.CONTENT_LENGTH, 0)
+					.connection(request)
+					.writeTo(output);
 			output.flush();
+
+			LogManager.getReference().logRequest(clientSocket, request, 416, 0);
+			return;
 		}
 
-		// read and write the last piece
-		input.read(lastbuffer);
-		output.write(lastbuffer);
-		output.flush();
+		// the parts of a multipart response, each preceded by its boundary
+		// and header fields
+		String boundary = null;
+		String[] partHeaders = null;
+		long contentLength = 0;
+		if (ranges.size() == 1) {
+			contentLength = ranges.get(0).getLength();
+		} else {
+			boundary = Long.toHexString(ThreadLocalRandom.current().nextLong())
+					+ Long.toHexString(System.nanoTime());
+			partHeaders = new String[ranges.size()];
+			for (int i = 0; i < partHeaders.length; i++) {
+				ByteRange range = ranges.get(i);
+				partHeaders[i] = Constants.CRLF + "--" + boundary + Constants.CRLF
+						+ "Content-Type: " + contentType + Constants.CRLF
+						+ "Content-Range: " + range.contentRange(length) + Constants.CRLF
+						+ Constants.CRLF;
+				contentLength += partHeaders[i].length() + range.getLength();
+			}
+			contentLength += (Constants.CRLF + "--" + boundary + "--" + Constants.CRLF).length();
+		}
+		if (!scheduleResponse(clientSocket, request, contentLength))
+			return;
 
-		// close resources
-		pwout.close();
-		output.close();
-		input.close();
+		ResponseHeader header = ResponseHeader.begin(206);
+		if (boundary == null) {
+			header.field(ResponseHeader.CONTENT_TYPE, contentType);
+			header.field(ResponseHeader.CONTENT_RANGE, ranges.get(0).contentRange(length));
+		} else {
+			header.field(ResponseHeader.CONTENT_TYPE, "multipart/byteranges; boundary=" + boundary);
+		}
+		header.field(ResponseHeader.CONTENT_LENGTH, contentLength);
+		if (compressible)
+			header.line(ResponseHeader.VARY_ACCEPT_ENCODING);
+		header.dateField(ResponseHeader.LAST_MODIFIED, lastModified);
+		header.field(ResponseHeader.ETAG, identityTag);
+		header.line(ResponseHeader.ACCEPT_RANGES);
+		header.connection(request);
+		header.writeTo(output);
+
+		// send the parts; the mapping is released once, however the parts
+		// end
+		MappedFileRegistry.MappedFile mapped = null;
+		clientSocket.setShaped(BandwidthShaper.getReference().isShaped(
+				request.getResourceIdentifier(), contentType, contentLength));
+		try {
+			if (cached == null)
+				mapped = acquireMapping(file, length);
+			for (int i = 0; i < ranges.size(); i++) {
+				ByteRange range = ranges.get(i);
+				if (partHeaders != null)
+					output.write(partHeaders[i].getBytes());
+				output.flush();
+				sendRegion(clientSocket, file, cached, mapped, range.getFirst(),
+						range.getLength());
+			}
+		} finally {
+			if (mapped != null)
+				mapped.close();
+			clientSocket.setShaped(false);
+		}
+		if (boundary != null) {
+			output.write((Constants.CRLF + "--" + boundary + "--" + Constants.CRLF).getBytes());
+			output.flush();
+		}
 
 		// log the request
-		StringBuffer logEntry = LogManager.getReference().constructLogEntry(
-				clientSocket, request);
-		logEntry.append("200 " + String.valueOf(file.length()));
-		LogManager.getReference().log(logEntry.toString());
+		LogManager.getReference().logRequest(clientSocket, request, 206, contentLength);
+	}
+
+	/**
+	 * Returns the entity tag of a file version: a strong tag for the file as
+	 * is, a weak tag for a compressed variant, whose bytes depend on the
+	 * compression level.
+	 */
+	private static String entityTag(long length, long lastModified, String coding) {
+		String tag = Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+		if (coding == null)
+			return "\"" + tag + "\"";
+		return "W/\"" + tag + "-" + coding + "\"";
 	}
 
 	/**
-	 * Construct an HTML page for the folder list
+	 * Returns the entity tag to send in a 304 response if the client's copy
+	 * is current, or null if the file must be sent. If-None-Match takes
+	 * precedence over If-Modified-Since and is compared weakly, so a tag of
+	 * either representation of the file matches. If-Modified-Since is
+	 * compared at the one second resolution of HTTP-dates, and ignored if it
+	 * is malformed or in the future. The codingTag is that of the compressed
+	 * variant a 200 would carry, or null if the file is sent as is or has not
+	 * been compressed yet.
+	 */
+	private static String notModifiedTag(HttpRequest request, long lastModified,
+			String identityTag, String codingTag) {
+		String preferredTag = (codingTag != null) ? codingTag : identityTag;
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			for (String tag : ifNoneMatch.split(",")) {
+				tag = tag.trim();
+				if (tag.equals("*"))
+					return preferredTag;
+				String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+				if (opaque.equals(identityTag))
+					return identityTag;
+				if (codingTag != null && opaque.equals(codingTag.substring(2)))
+					return codingTag;
+			}
+			return null;
+		}
+
+		long since = Utilities.parseHttpDate(request.getHeader("If-Modified-Since"));
+		if (since < 0 || since > System.currentTimeMillis())
+			return null;
+		return (lastModified / 1000 <= since / 1000) ? preferredTag : null;
+	}
+
+	/**
+	 * Sends a 304 Not Modified response, which has no body.
+	 */
+	private void sendNotModified(ClientConnection clientSocket, HttpRequest request,
+			long lastModified, String tag, boolean compressible) throws IOException {
+		ResponseHeader header = ResponseHeader.begin(304);
+		header.dateField(ResponseHeader.LAST_MODIFIED, lastModified);
+		header.field(ResponseHeader.ETAG, tag);
+		if (compressible)
+			header.line(ResponseHeader.VARY_ACCEPT_ENCODING);
+		header.connection(request);
+
+		OutputStream output = clientSocket.getOutputStream();
+		header.writeTo(output);
+		output.flush();
+
+		// log the request
+		LogManager.getReference().logRequest(clientSocket, request, 304, 0);
+	}
+
+	/**
+	 * Construct an HTML page for the folder list, or take it from the
+	 * listing cache
 	 * 
 	 * @param clientSocket
 	 *            is a socket for client
@@ -143,21 +414,59 @@ public class ResourceHandler {
 	 *            is the directory name
 	 * @throws IOException
 	 */
-	private void convertDirectoryContentListToHTML(Socket clientSocket,
-			String resourceIdentifier, File dir, String request)
+	private void convertDirectoryContentListToHTML(ClientConnection clientSocket,
+			String resourceIdentifier, File dir, HttpRequest request)
 			throws IOException {
+		// a page of a large directory is streamed while it is read
+		if (DirectoryListingStreamer.isRequested(request)) {
+			new DirectoryListingStreamer().stream(clientSocket, request, resourceIdentifier, dir);
+			return;
+		}
+
+		OutputStream output = clientSocket.getOutputStream();
+
+		// the page, compressed if the client accepts it
+		String coding = CompressionCache.negotiate(request);
+		DirectoryListingCache listingCache = DirectoryListingCache.getReference();
+		byte[] content = listingCache.get(dir, resourceIdentifier, coding);
+		if (content == null) {
+			long scanned = System.currentTimeMillis();
+			long dirModified = dir.lastModified();
+			long token = listingCache.beginScan(dir);
+			byte[] page = this.renderDirectoryContentList(resourceIdentifier, dir);
+			listingCache.put(dir, resourceIdentifier, page, token, scanned, dirModified);
+			content = (coding != null) ? CompressionCache.compress(page, coding) : page;
+		}
+
+		// write the header with the exact length of the page, then the page
+		ResponseHeader header = ResponseHeader.begin(200);
+		header.line(ResponseHeader.CONTENT_TYPE_HTML);
+		header.field(ResponseHeader.CONTENT_LENGTH, content.length);
+		if (coding != null)
+			header.field(ResponseHeader.CONTENT_ENCODING, coding);
+		header.line(ResponseHeader.VARY_ACCEPT_ENCODING);
+		header.connection(request);
+		header.writeTo(output);
+		output.write(content);
+		output.flush();
+
+		// log the request
+		LogManager.getReference().logRequest(clientSocket, request, 200, content.length);
+	}
+
+	/**
+	 * Scan the directory and render its HTML page.
+	 * 
+	 * @param resourceIdentifier
+	 *            is the parsed resource identifier
+	 * @param dir
+	 *            is the directory name
+	 */
+	private byte[] renderDirectoryContentList(String resourceIdentifier, File dir) {
 		// define the necessary variables
 		Map<String, String> constentList = this.scanDirectoryContentList(dir);
-		PrintWriter output = new PrintWriter(new BufferedOutputStream(
-				clientSocket.getOutputStream(), Constants.DEFAULT_BUFFER_SIZE));
 		StringBuffer str = new StringBuffer("");
 
-		// append the string that will be written to the socket
-		// write the header
-		str.append(Constants.HTTP_VERSION + Utilities.getResponseMessage(200) + Constants.CRLF);
-		str.append("Content-Type: text/html" + Constants.CRLF);
-		str.append(Constants.CRLF);
-		
 		// construct the html file
 		str.append("<html>");
 		str.append("<head><title>" + "Index of " + resourceIdentifier
@@ -186,16 +495,7 @@ public class ResourceHandler {
 		str.append("</html>");
 		str.append(Constants.CRLF);
 		
-		// write to the socket and close resources
-		output.write(str.toString());
-		output.flush();
-		output.close();
-
-		// log the request
-		StringBuffer logEntry = LogManager.getReference().constructLogEntry(
-				clientSocket, request);
-		logEntry.append("200 " + str.length());
-		LogManager.getReference().log(logEntry.toString());
+		return str.toString().getBytes();
 	}
 
 	/**
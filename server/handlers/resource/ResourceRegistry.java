@@ -5,14 +5,28 @@
 package server.handlers.resource;
 
 import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
-import util.Constants;
+import util.*;
 
 /**
  * Resource Registry Stores all of the content types supported by this web
  * server.
  * 
+ * The types are read from the mime.types file into an immutable table,
+ * open-addressed and keyed on the lower case extension. A lookup hashes the
+ * extension straight from the resource identifier, ignoring case, so it
+ * takes no lock and allocates nothing. The table counts the hits of each
+ * extension.
+ * 
+ * The file is checked every server.mime.reload milliseconds; a changed file
+ * is read into a new table, which replaces the old one in one volatile
+ * write. A file that cannot be read leaves the old table in place.
+ * 
  * The singleton design pattern is implemented to ensure that only one instance
  * of this class is instantiated.
  * 
@@ -23,29 +37,67 @@ import util.Constants;
 public class ResourceRegistry {
 
 	// singleton reference to this class
-	private static ResourceRegistry singleton = null;
+	private static final ResourceRegistry singleton = new ResourceRegistry();
+
+	// content types worth compressing, a trailing slash matches a whole type
+	private static final String[] COMPRESSIBLE_TYPES = { "text/",
+			"application/javascript", "application/json", "application/xml",
+			"application/xhtml+xml", "application/rtf", "application/postscript",
+			"application/vnd.ms-excel", "image/svg+xml" };
+
+	// the current table, replaced as a whole on reload
+	private volatile ExtensionTable table = new ExtensionTable(
+			new LinkedHashMap<String, String>(), null, -1, -1);
 
-	// stores the media type mappings
-	private HashMap registry = null;
-	
-	// map size
-	private static int MAPSIZE = 128;
+	// statistics
+	private final LongAdder missCount = new LongAdder();
+	private final AtomicLong reloadCount = new AtomicLong();
 
 	// constructor is private to guarantee a singleton instance
-	private ResourceRegistry() throws IOException {
-		init();
+	private ResourceRegistry() {
+		final long interval = Configuration.getReference().getLong("server.mime.reload",
+				Constants.DEFAULT_MIME_RELOAD);
+		if (interval <= 0)
+			return;
+
+		Thread reloader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(interval);
+					} catch (InterruptedException e) {
+						return;
+					}
+					reloadIfChanged();
+				}
+			}
+		}, "mime-reloader");
+		reloader.setDaemon(true);
+		reloader.start();
 	}
 
 	/**
 	 * Returns a reference to this singleton class
-	 * @throws IOException 
 	 */
-	public static ResourceRegistry getReference() throws IOException {
-		if (singleton == null)
-			singleton = new ResourceRegistry();
+	public static ResourceRegistry getReference() {
 		return singleton;
 	}
 
+	/**
+	 * Reads the mime.types file and replaces the table; called at startup.
+	 * 
+	 * @throws IOException
+	 *             if the file cannot be read, the table is left as it is
+	 */
+	public void load() throws IOException {
+		File file = new File(Constants.MIME_TYPE_FILE);
+		long lastModified = file.lastModified();
+		long length = file.length();
+		Map<String, String> types = readTypes(file.toPath());
+		this.table = new ExtensionTable(types, this.table, lastModified, length);
+	}
+
 	/**
 	 * Returns the content type associated with the specified file extension.
 	 * 
@@ -54,63 +106,210 @@ public class ResourceRegistry {
 	 * This is parsed to get .html
 	 * 
 	 * And the associated content type will be returned: text/html
-	 * @throws IOException 
 	 */
-	public String getContentType(String resourceIdentifier) throws IOException {
+	public String getContentType(String resourceIdentifier) {
 
 		// sanity checks
-		if (registry == null) {
-			throw new IllegalStateException(this.getClass().getName()
-					+ ".getContentType(): the registry is null");
-		}
 		if (resourceIdentifier == null) {
 			return null;
 		}
 
-		// return the content type associated with the file extension
-		int index = resourceIdentifier.lastIndexOf(".");
+		// the extension follows the last dot of the last path segment
+		int end = resourceIdentifier.length();
+		int index = resourceIdentifier.lastIndexOf('.');
 
 		// error check for malformed resource identifiers
-		if (index < 0) {
+		if (index < 0 || resourceIdentifier.indexOf('/', index) >= 0) {
+			this.missCount.increment();
 			return null;
-		} else {
-			return (String) registry.get(resourceIdentifier.substring(index+1));
 		}
+		String type = this.table.get(resourceIdentifier, index + 1, end);
+		if (type == null)
+			this.missCount.increment();
+		return type;
 	}
 
-	// Initializes this registry with the supported media-type mappings
+	/**
+	 * Returns true if responses of the content type are worth compressing;
+	 * text compresses well, while images, audio, video and archives are
+	 * already compressed.
+	 */
+	public static boolean isCompressible(String contentType) {
+		if (contentType == null)
+			return false;
+		for (String type : COMPRESSIBLE_TYPES) {
+			if (type.endsWith("/") ? contentType.startsWith(type) : contentType.equals(type))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Returns a one line summary: the table size, the reloads, the misses and
+	 * the most requested extensions.
+	 */
+	@Override
+	public String toString() {
+		ExtensionTable current = this.table;
+		StringBuilder str = new StringBuilder("mime registry: extensions=")
+				.append(current.size).append(" reloads=").append(this.reloadCount.get())
+				.append(" misses=").append(this.missCount.sum()).append(" top=");
+		current.appendTopHits(str, 5);
+		return str.toString();
+	}
+
+	// Reloads the table if the file has changed since it was read.
 	//
-	private void init() throws IOException {
-
-		registry = new HashMap(MAPSIZE);
-		
-		BufferedReader in = new BufferedReader(new FileReader(Constants.MIME_TYPE_FILE));
-		String line = null; 
-		String [] segments;
-		
-		while (in.ready()) {
-			line = in.readLine();
-			if (line.startsWith("#"))  
-				continue;
-			line = line.trim().replace("\t", " ").replace("\n", "");
-			segments = line.split(" ");
-			if (segments.length < 2) 
+	private void reloadIfChanged() {
+		ExtensionTable current = this.table;
+		File file = new File(Constants.MIME_TYPE_FILE);
+		if (current.lastModified < 0 || (file.lastModified() == current.lastModified
+				&& file.length() == current.length))
+			return;
+		try {
+			load();
+			this.reloadCount.incrementAndGet();
+			System.out.println(this.getClass().getName() + ": reloaded "
+					+ Constants.MIME_TYPE_FILE + ", " + this.table.size + " extensions");
+		} catch (IOException e) {
+			System.out.println(this.getClass().getName() + ": cannot reload "
+					+ Constants.MIME_TYPE_FILE + ", keeping the current types: " + e);
+		}
+	}
+
+	// Reads the media-type mappings, one type followed by its extensions per
+	// line, e.g. text/html html htm. A later mapping of an extension
+	// replaces an earlier one.
+	//
+	private static Map<String, String> readTypes(Path file) throws IOException {
+		Map<String, String> types = new LinkedHashMap<String, String>(4096);
+		for (String line : Files.readAllLines(file, StandardCharsets.ISO_8859_1)) {
+			if (line.startsWith("#"))
 				continue;
-			
-			for (int i = 1; i < segments.length; i++ ) {
-				if (segments[i].trim().equals(" ") || segments[i].trim() == null)
-					continue;
-				registry.put(segments[i].trim(), segments[0].trim());
+			String[] segments = line.trim().split("\\s+");
+			for (int i = 1; i < segments.length; i++)
+				types.put(segments[i].toLowerCase(Locale.ENGLISH), segments[0]);
+		}
+
+		if (types.containsKey("txt"))
+			types.put("text", types.get("txt"));
+		types.put("java", "text/x-java-source");
+		types.put("jar", "application/java-archive");
+		return types;
+	}
+
+	// An immutable open-addressed table from lower case extensions to content
+	// types, with a hit counter per extension. Linear probing in a table at
+	// most half full keeps the probe sequences short.
+	//
+	private static class ExtensionTable {
+		private final char[][] keys; 								// the extensions, null for a free slot
+		private final String[] types; 								// the content types
+		private final LongAdder[] hits; 							// lookups found per extension
+		private final int mask; 									// table length - 1
+		private final int size; 									// number of extensions
+		private final long lastModified; 							// of the file read, -1 if none
+		private final long length; 								// of the file read
+
+		ExtensionTable(Map<String, String> mappings, ExtensionTable previous,
+				long lastModified, long length) {
+			int capacity = Integer.highestOneBit(Math.max(mappings.size(), 8) * 2 - 1) << 1;
+			this.keys = new char[capacity][];
+			this.types = new String[capacity];
+			this.hits = new LongAdder[capacity];
+			this.mask = capacity - 1;
+			this.size = mappings.size();
+			this.lastModified = lastModified;
+			this.length = length;
+
+			for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+				char[] key = mapping.getKey().toCharArray();
+				int slot = hash(key, 0, key.length) & this.mask;
+				while (this.keys[slot] != null)
+					slot = (slot + 1) & this.mask;
+				this.keys[slot] = key;
+				this.types[slot] = mapping.getValue();
+				this.hits[slot] = new LongAdder();
+
+				// the counts survive a reload
+				if (previous != null)
+					this.hits[slot].add(previous.hitCount(key));
+			}
+		}
+
+		// Returns the content type of the extension in [from, to) of the
+		// text, ignoring case, or null.
+		//
+		String get(String text, int from, int to) {
+			int slot = hash(text, from, to) & this.mask;
+			char[] key;
+			while ((key = this.keys[slot]) != null) {
+				if (matches(key, text, from, to)) {
+					this.hits[slot].increment();
+					return this.types[slot];
+				}
+				slot = (slot + 1) & this.mask;
+			}
+			return null;
+		}
+
+		// Returns the hits of the extension, 0 if it is not in the table.
+		//
+		long hitCount(char[] extension) {
+			int slot = hash(extension, 0, extension.length) & this.mask;
+			char[] key;
+			while ((key = this.keys[slot]) != null) {
+				if (Arrays.equals(key, extension))
+					return this.hits[slot].sum();
+				slot = (slot + 1) & this.mask;
 			}
+			return 0;
+		}
+
+		// Appends the most requested extensions, e.g. html:120,png:45.
+		//
+		void appendTopHits(StringBuilder str, int count) {
+			List<Integer> slots = new ArrayList<Integer>();
+			for (int slot = 0; slot < this.keys.length; slot++) {
+				if (this.keys[slot] != null && this.hits[slot].sum() > 0)
+					slots.add(slot);
+			}
+			Collections.sort(slots, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Long.compare(hits[b].sum(), hits[a].sum());
+				}
+			});
+			for (int i = 0; i < slots.size() && i < count; i++) {
+				int slot = slots.get(i);
+				str.append(i == 0 ? "" : ",").append(this.keys[slot]).append(':').append(this.hits[slot].sum());
+			}
+		}
+
+		private static boolean matches(char[] key, String text, int from, int to) {
+			if (key.length != to - from)
+				return false;
+			for (int i = 0; i < key.length; i++) {
+				if (key[i] != toLowerCase(text.charAt(from + i)))
+					return false;
+			}
+			return true;
+		}
+
+		private static int hash(String text, int from, int to) {
+			int h = 0;
+			for (int i = from; i < to; i++)
+				h = 31 * h + toLowerCase(text.charAt(i));
+			return h ^ (h >>> 16);
+		}
+
+		private static int hash(char[] key, int from, int to) {
+			return hash(new String(key), from, to);
+		}
+
+		private static char toLowerCase(char c) {
+			return (c >= 'A' && c <= 'Z') ? (char) (c + ('a' - 'A')) : c;
 		}
-		
-		registry.put("text", registry.get("txt"));
-		registry.put("java", "text/x-java-source");
-		registry.put("jar", "application/java-archive");
-		
-//		for (Object key : registry.keySet())
-//			System.out.println(key + "=" + registry.get(key));
-//		System.out.println(registry.size());
 	}
 
 }// end class
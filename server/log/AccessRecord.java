@@ -0,0 +1,76 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.net.InetAddress;
+import java.time.*;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Access Record - the facts of one served request, taken on the request
+ * thread and formatted or encoded later by the log writer.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+public class AccessRecord {
+
+	// the date of the common log format, e.g. 10/Oct/2000:13:55:36 -0700
+	private static final DateTimeFormatter COMMON_LOG_DATE = DateTimeFormatter
+			.ofPattern("dd/MMM/yyyy:HH:mm:ss Z").withZone(ZoneId.systemDefault());
+
+	final long epochNanos; 											// time of the response
+	final InetAddress address; 										// the client address
+	final String requestLine; 										// the raw request line
+	final int status; 												// the status code
+	final long bytes; 												// bytes of the body
+	final long latencyNanos; 										// from the request line to the response
+
+	/**
+	 * Constructs the record
+	 *
+	 * @param address
+	 *            is the client address
+	 * @param requestLine
+	 *            is the raw request line
+	 * @param status
+	 *            is the status code sent
+	 * @param bytes
+	 *            is the number of body bytes sent
+	 * @param latencyNanos
+	 *            is the time the request took
+	 */
+	public AccessRecord(InetAddress address, String requestLine, int status,
+			long bytes, long latencyNanos) {
+		Instant now = Instant.now();
+		this.epochNanos = now.getEpochSecond() * 1000000000L + now.getNano();
+		this.address = address;
+		this.requestLine = requestLine;
+		this.status = status;
+		this.bytes = bytes;
+		this.latencyNanos = latencyNanos;
+	}
+
+	/**
+	 * Appends the record as a common log format line, without the line end.
+	 */
+	void appendCommonLog(StringBuilder str) {
+		appendCommonLog(str, this.address.getHostAddress(), this.epochNanos,
+				this.requestLine, this.status, this.bytes);
+	}
+
+	/**
+	 * Appends a common log format line, without the line end, e.g.
+	 * 127.0.0.1 - - [10/Oct/2000:13:55:36 -0700] "GET /a.gif HTTP/1.0" 200 2326
+	 */
+	static void appendCommonLog(StringBuilder str, String host, long epochNanos,
+			String requestLine, int status, long bytes) {
+		str.append(host).append(" - - [");
+		COMMON_LOG_DATE.formatTo(Instant.ofEpochSecond(0, epochNanos), str);
+		str.append("] \"").append(requestLine).append("\" ").append(status).append(' ').append(bytes);
+	}
+
+}// end class
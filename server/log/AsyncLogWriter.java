@@ -0,0 +1,192 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import util.MpscRingBuffer;
+
+/**
+ * Async Log Writer - takes the log entries off the request threads and
+ * writes them in batches from a single writer thread.
+ *
+ * Request threads put their entries into a lock-free ring buffer and return.
+ * The writer thread drains the buffer into its log sink, which formats and
+ * batches them: the text sink writes common log lines through a channel that
+ * stays open, the binary sink encodes records into a mapped file. The sink
+ * is flushed server.log.flushInterval milliseconds after the first entry
+ * written since the last flush.
+ *
+ * When the ring buffer is full, server.log.overflow decides: "block" makes
+ * the request thread wait for room, "drop" discards the entry and counts it.
+ * shutdown() writes the entries still buffered before the server exits.
+ *
+ * Created: 2013.11.21
+ *
+ * @author haijunq
+ */
+public class AsyncLogWriter {
+
+	// longest sleep of an idle writer
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	// wait of a blocked request thread before it looks for room again
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+	// configuration
+	private final MpscRingBuffer<Object> entries;
+	private final long flushNanos;
+	private final boolean dropWhenFull;
+
+	// the writer thread
+	private final Thread writer;
+	private volatile boolean running = true;
+
+	// the log file format; used by the writer only
+	private final LogSink sink;
+	private boolean unflushed = false; 							// entries were written since the last flush
+	private long firstUnflushed = 0; 								// time of the first of them
+
+	// statistics
+	private final AtomicLong dropCount = new AtomicLong();
+	private final AtomicLong blockCount = new AtomicLong();
+	private volatile long entryCount = 0; 						// written by the writer only
+	private volatile long flushCount = 0;
+	private volatile long errorCount = 0;
+
+	/**
+	 * Constructs the writer and starts its thread
+	 *
+	 * @param sink
+	 *            writes the entries in the log file format
+	 * @param bufferSize
+	 *            is the number of entries the ring buffer holds
+	 * @param flushMillis
+	 *            is the longest time an entry waits before it is flushed
+	 * @param dropWhenFull
+	 *            drops the entries that do not fit into the ring buffer
+	 *            instead of waiting for room
+	 */
+	AsyncLogWriter(LogSink sink, int bufferSize, long flushMillis, boolean dropWhenFull) {
+		this.sink = sink;
+		this.entries = new MpscRingBuffer<Object>(bufferSize);
+		this.flushNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, flushMillis));
+		this.dropWhenFull = dropWhenFull;
+
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writeEntries();
+			}
+		}, "access-log-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Queues an entry, an AccessRecord or a line of text; returns false if
+	 * the writer is shut down and the entry was not taken.
+	 */
+	public boolean append(Object logEntry) {
+		boolean blocked = false;
+		while (this.running) {
+			if (this.entries.offer(logEntry))
+				return true;
+			if (this.dropWhenFull) {
+				this.dropCount.incrementAndGet();
+				return true;
+			}
+			if (!blocked) {
+				this.blockCount.incrementAndGet();
+				blocked = true;
+			}
+			LockSupport.unpark(this.writer);
+			LockSupport.parkNanos(this, FULL_PARK_NANOS);
+		}
+		return false;
+	}
+
+	/**
+	 * Stops taking entries and waits up to timeoutMillis for the buffered
+	 * ones to be written.
+	 */
+	public void shutdown(long timeoutMillis) throws InterruptedException {
+		this.running = false;
+		LockSupport.unpark(this.writer);
+		this.writer.join(timeoutMillis);
+	}
+
+	// Runs on the writer thread: drains the ring buffer into the sink until
+	// shut down, then writes what is left and closes the file.
+	//
+	private void writeEntries() {
+		while (true) {
+			boolean stopping = !this.running;
+			int taken = drain();
+
+			long now = System.nanoTime();
+			if (this.unflushed && (stopping || now - this.firstUnflushed >= this.flushNanos))
+				flush();
+
+			if (stopping && taken == 0)
+				break;
+			if (taken == 0) {
+				long park = IDLE_PARK_NANOS;
+				if (this.unflushed)
+					park = Math.min(park, Math.max(1, this.flushNanos - (now - this.firstUnflushed)));
+				LockSupport.parkNanos(this, park);
+			}
+		}
+		this.sink.close();
+	}
+
+	// Writes the waiting entries to the sink; returns the number of entries
+	// taken.
+	//
+	private int drain() {
+		int taken = 0;
+		Object logEntry;
+		while ((logEntry = this.entries.poll()) != null) {
+			if (!this.unflushed) {
+				this.unflushed = true;
+				this.firstUnflushed = System.nanoTime();
+			}
+			try {
+				this.sink.write(logEntry);
+			} catch (IOException e) {
+				// the entry is lost, a full disk must not stop the server
+				this.errorCount++;
+			}
+			this.entryCount++;
+			taken++;
+		}
+		return taken;
+	}
+
+	private void flush() {
+		try {
+			this.sink.flush();
+			this.flushCount++;
+		} catch (IOException e) {
+			this.errorCount++;
+		}
+		this.unflushed = false;
+	}
+
+	/**
+	 * Returns a one line summary of the writer statistics.
+	 */
+	@Override
+	public String toString() {
+		return "access log: queued=" + this.entries.size() + "/" + this.entries.capacity()
+				+ " entries=" + this.entryCount + " flushes=" + this.flushCount
+				+ " blocked=" + this.blockCount.get() + " dropped=" + this.dropCount.get()
+				+ " errors=" + this.errorCount;
+	}
+
+}// end class
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Binary Log Converter - converts a binary access log back into the common
+ * log format text of the text access log.
+ *
+ * Usage: BinaryLogConverter binaryLog [textLog] [-latency]
+ *
+ * The text goes to textLog, or to the standard output. -latency appends the
+ * latency of each request in microseconds to its line.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+public class BinaryLogConverter {
+
+	/**
+	 * Converts the binary log to text.
+	 *
+	 * @param in
+	 *            is the binary log file
+	 * @param out
+	 *            receives the text lines
+	 * @param latency
+	 *            appends the latency in microseconds to each line
+	 * @return the number of lines written
+	 */
+	public static long convert(Path in, Writer out, boolean latency) throws IOException {
+		FileChannel file = FileChannel.open(in, StandardOpenOption.READ);
+		try {
+			BinaryLogReader reader = new BinaryLogReader(file);
+			Map<Integer, String> requestLines = new HashMap<Integer, String>();
+			StringBuilder line = new StringBuilder(256);
+			long count = 0;
+
+			byte type;
+			while ((type = reader.next()) != BinaryLogSink.END) {
+				if (type == BinaryLogSink.REQUEST_LINE) {
+					requestLines.put(reader.getId(), reader.getText());
+					continue;
+				}
+				line.setLength(0);
+				if (type == BinaryLogSink.TEXT) {
+					line.append(reader.getText());
+				} else {
+					String requestLine = requestLines.get(reader.getId());
+					AccessRecord.appendCommonLog(line, host(reader.getAddress()),
+							reader.getEpochNanos(), (requestLine != null) ? requestLine : "-",
+							reader.getStatus(), reader.getBytes());
+					if (latency)
+						line.append(' ').append(reader.getLatencyNanos() / 1000);
+				}
+				out.write(line.append('\n').toString());
+				count++;
+			}
+			out.flush();
+			return count;
+		} finally {
+			file.close();
+		}
+	}
+
+	// Returns the printed form of an address, "-" if it is unknown.
+	//
+	private static String host(byte[] address) {
+		try {
+			return InetAddress.getByAddress(address).getHostAddress();
+		} catch (UnknownHostException e) {
+			return "-";
+		}
+	}
+
+	public static void main(String args[]) throws Exception {
+		List<String> files = new ArrayList<String>();
+		boolean latency = false;
+		for (String arg : args) {
+			if (arg.equals("-latency"))
+				latency = true;
+			else
+				files.add(arg);
+		}
+		if (files.isEmpty() || files.size() > 2) {
+			System.out.println("usage: BinaryLogConverter binaryLog [textLog] [-latency]");
+			return;
+		}
+
+		Writer out = (files.size() == 2)
+				? new BufferedWriter(new OutputStreamWriter(new FileOutputStream(files.get(1)), "UTF-8"))
+				: new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+		try {
+			long count = convert(Paths.get(files.get(0)), out, latency);
+			if (files.size() == 2)
+				System.out.println(count + " lines written to " + files.get(1));
+		} finally {
+			out.close();
+		}
+	}
+
+}// end class
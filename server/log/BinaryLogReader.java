@@ -0,0 +1,165 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Binary Log Reader - reads the records of a binary access log one by one,
+ * see BinaryLogSink for the format.
+ *
+ * next() reads the next record and returns its type; the accessors return
+ * the fields of that record. The end of the data, a zero type byte or a
+ * record cut short, reads as END.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+public class BinaryLogReader {
+	private final FileChannel file; 								// the log file
+	private final ByteBuffer buffer = ByteBuffer.allocate(128 * 1024); // read ahead, read mode
+	private long bufferStart; 										// file position of the buffer
+	private long recordStart; 										// file position of the current record
+
+	// the current record
+	private int status;
+	private int id;
+	private long epochNanos;
+	private long bytes;
+	private long latencyNanos;
+	private byte[] address = new byte[0];
+	private String text;
+
+	/**
+	 * Constructs the reader, checking the file header
+	 *
+	 * @param file
+	 *            is the binary log file
+	 * @throws IOException
+	 *             if the file is not a binary access log
+	 */
+	public BinaryLogReader(FileChannel file) throws IOException {
+		this.file = file;
+		this.bufferStart = 0;
+		this.buffer.flip();
+		if (!fill(BinaryLogSink.HEADER_SIZE))
+			throw new IOException("not a binary access log");
+		byte[] magic = new byte[BinaryLogSink.MAGIC.length];
+		this.buffer.get(magic);
+		int version = this.buffer.getShort();
+		this.buffer.getShort();
+		if (!Arrays.equals(magic, BinaryLogSink.MAGIC) || version != BinaryLogSink.VERSION)
+			throw new IOException("not a binary access log of version " + BinaryLogSink.VERSION);
+		this.recordStart = BinaryLogSink.HEADER_SIZE;
+	}
+
+	/**
+	 * Reads the next record; returns its type, or END at the end of the
+	 * data.
+	 */
+	public byte next() throws IOException {
+		this.recordStart = this.bufferStart + this.buffer.position();
+		if (!fill(1))
+			return BinaryLogSink.END;
+		byte type = this.buffer.get(this.buffer.position());
+
+		if (type == BinaryLogSink.REQUEST) {
+			if (!fill(BinaryLogSink.REQUEST_SIZE))
+				return BinaryLogSink.END;
+			int start = this.buffer.position();
+			this.buffer.get();
+			int addressLength = this.buffer.get() & 0xFF;
+			this.status = this.buffer.getShort() & 0xFFFF;
+			this.id = this.buffer.getInt();
+			this.epochNanos = this.buffer.getLong();
+			this.bytes = this.buffer.getLong();
+			this.latencyNanos = this.buffer.getLong();
+			if (this.address.length != addressLength)
+				this.address = new byte[Math.min(addressLength, 16)];
+			this.buffer.get(this.address);
+			this.buffer.position(start + BinaryLogSink.REQUEST_SIZE);
+			return type;
+		}
+
+		if (type == BinaryLogSink.REQUEST_LINE || type == BinaryLogSink.TEXT) {
+			if (!fill(BinaryLogSink.LINE_HEAD_SIZE))
+				return BinaryLogSink.END;
+			int length = this.buffer.getShort(this.buffer.position() + 2) & 0xFFFF;
+			if (!fill(BinaryLogSink.LINE_HEAD_SIZE + length))
+				return BinaryLogSink.END;
+			this.buffer.getInt();
+			this.id = this.buffer.getInt();
+			byte[] line = new byte[length];
+			this.buffer.get(line);
+			this.text = new String(line, StandardCharsets.UTF_8);
+			return type;
+		}
+
+		// END, or an unknown type which cannot be skipped
+		return BinaryLogSink.END;
+	}
+
+	/** Returns the file position of the current record, or of the end */
+	public long recordStart() {
+		return this.recordStart;
+	}
+
+	/** Returns the status code of a request record */
+	public int getStatus() {
+		return this.status;
+	}
+
+	/** Returns the request line id of a request or request line record */
+	public int getId() {
+		return this.id;
+	}
+
+	/** Returns the time of a request record in nanoseconds since the epoch */
+	public long getEpochNanos() {
+		return this.epochNanos;
+	}
+
+	/** Returns the body bytes of a request record */
+	public long getBytes() {
+		return this.bytes;
+	}
+
+	/** Returns the latency of a request record in nanoseconds */
+	public long getLatencyNanos() {
+		return this.latencyNanos;
+	}
+
+	/** Returns the client address of a request record, empty if unknown */
+	public byte[] getAddress() {
+		return this.address;
+	}
+
+	/** Returns the text of a request line or text record */
+	public String getText() {
+		return this.text;
+	}
+
+	// Makes at least count bytes available in the buffer; returns false at
+	// the end of the file.
+	//
+	private boolean fill(int count) throws IOException {
+		if (this.buffer.remaining() >= count)
+			return true;
+		this.bufferStart += this.buffer.position();
+		this.buffer.compact();
+		while (this.buffer.position() < count) {
+			if (this.file.read(this.buffer, this.bufferStart + this.buffer.position()) < 0)
+				break;
+		}
+		this.buffer.flip();
+		return this.buffer.remaining() >= count;
+	}
+
+}// end class
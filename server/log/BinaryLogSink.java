@@ -0,0 +1,225 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+import util.Constants;
+import util.Utilities;
+
+/**
+ * Binary Log Sink - writes the entries as fixed-width binary records into
+ * the day's memory-mapped binary log file, so logging a request neither
+ * formats text nor makes a system call.
+ *
+ * The file starts with the 8 byte header "HJBL", version, 0, followed by
+ * records, each beginning with its type byte; a 0 type byte ends the data.
+ * All numbers are big-endian.
+ *
+ *   request (48 bytes):    type 1, address length (4, 16 or 0), status
+ *                          (2), request line id (4), epoch nanos (8), body
+ *                          bytes (8), latency nanos (8), address (16)
+ *   request line (8 + n):  type 2, 0, length (2), id (4), UTF-8 bytes (n)
+ *   text line (8 + n):     type 3, 0, length (2), 0 (4), UTF-8 bytes (n)
+ *
+ * Request lines are interned: a line is defined once, before the first
+ * record using its id. After MAX_LINES lines the ids are reused, each new
+ * definition replacing the old one. Text lines are entries logged as text.
+ *
+ * The file is written through a mapped window of WINDOW_SIZE bytes, which is
+ * moved along as it fills up; flush() forces the window to disk. The file is
+ * truncated to its data when closed. An existing file of the same day is
+ * appended to.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+class BinaryLogSink implements LogSink {
+
+	// the file header
+	static final byte[] MAGIC = { 'H', 'J', 'B', 'L' };
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 8;
+
+	// the record types
+	static final byte END = 0;
+	static final byte REQUEST = 1;
+	static final byte REQUEST_LINE = 2;
+	static final byte TEXT = 3;
+
+	// sizes of the request record and of the head of a variable record
+	static final int REQUEST_SIZE = 48;
+	static final int LINE_HEAD_SIZE = 8;
+	static final int MAX_LINE_LENGTH = 0xFFFF;
+
+	// the mapped part of the file
+	private static final int WINDOW_SIZE = 8 * 1024 * 1024;
+
+	// number of interned request lines before the ids are reused
+	private static final int MAX_LINES = 65536;
+
+	private FileChannel channel = null; 							// the day's log file
+	private MappedByteBuffer window = null; 						// the mapped part being written
+	private long windowStart = 0; 									// file position of the window
+	private long nextDay = 0; 										// time the next day's file begins
+	private final Map<String, Integer> lineIds = new HashMap<String, Integer>(); // interned request lines
+	private int nextLineId = 0;
+
+	@Override
+	public void write(Object entry) throws IOException {
+		currentFile();
+		if (!(entry instanceof AccessRecord)) {
+			writeLine(TEXT, 0, entry.toString());
+			return;
+		}
+
+		AccessRecord record = (AccessRecord) entry;
+		int lineId = intern(record.requestLine);
+		byte[] address = (record.address != null) ? record.address.getAddress() : new byte[0];
+
+		ByteBuffer out = room(REQUEST_SIZE);
+		int start = out.position();
+		out.put(REQUEST);
+		out.put((byte) address.length);
+		out.putShort((short) record.status);
+		out.putInt(lineId);
+		out.putLong(record.epochNanos);
+		out.putLong(record.bytes);
+		out.putLong(record.latencyNanos);
+		out.put(address, 0, Math.min(address.length, 16));
+		out.position(start + REQUEST_SIZE);
+	}
+
+	@Override
+	public void flush() {
+		if (this.window != null)
+			this.window.force();
+	}
+
+	@Override
+	public void close() {
+		closeFile();
+	}
+
+	// Returns the id of a request line, defining it in the file the first
+	// time.
+	//
+	private int intern(String requestLine) throws IOException {
+		Integer id = this.lineIds.get(requestLine);
+		if (id != null)
+			return id;
+		if (this.nextLineId == MAX_LINES) {
+			this.lineIds.clear();
+			this.nextLineId = 0;
+		}
+		int lineId = this.nextLineId++;
+		writeLine(REQUEST_LINE, lineId, requestLine);
+		this.lineIds.put(requestLine, lineId);
+		return lineId;
+	}
+
+	// Writes a variable length record.
+	//
+	private void writeLine(byte type, int id, String text) throws IOException {
+		byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+		int length = Math.min(bytes.length, MAX_LINE_LENGTH);
+		ByteBuffer out = room(LINE_HEAD_SIZE + length);
+		out.put(type);
+		out.put((byte) 0);
+		out.putShort((short) length);
+		out.putInt(id);
+		out.put(bytes, 0, length);
+	}
+
+	// Returns the window with room for a record, mapping the next part of
+	// the file if the window is full.
+	//
+	private ByteBuffer room(int size) throws IOException {
+		if (this.window.remaining() >= size)
+			return this.window;
+		long position = this.windowStart + this.window.position();
+		this.window.force();
+		Utilities.unmap(this.window);
+		map(position);
+		return this.window;
+	}
+
+	// Maps the window starting at the file position.
+	//
+	private void map(long position) throws IOException {
+		this.windowStart = position;
+		this.window = this.channel.map(FileChannel.MapMode.READ_WRITE, position, WINDOW_SIZE);
+	}
+
+	// Opens the day's log file at startup and at midnight.
+	//
+	private void currentFile() throws IOException {
+		long now = System.currentTimeMillis();
+		if (this.channel != null && now < this.nextDay)
+			return;
+		closeFile();
+
+		Path path = Paths.get(Constants.getLogFileName(Constants.BINARY_LOG_FILENAME_POSTFIX));
+		FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			long end = HEADER_SIZE;
+			if (file.size() == 0) {
+				ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+				header.put(MAGIC).putShort((short) VERSION).putShort((short) 0).flip();
+				while (header.hasRemaining())
+					file.write(header, header.position());
+			} else {
+				// drop what follows the data, e.g. a record cut short
+				end = findEnd(file);
+				file.truncate(end);
+			}
+			this.channel = file;
+			map(end);
+		} catch (IOException e) {
+			file.close();
+			this.channel = null;
+			throw e;
+		}
+		this.lineIds.clear();
+		this.nextLineId = 0;
+		this.nextDay = TextLogSink.nextMidnight(now);
+	}
+
+	// Returns the end of the data of an existing log file, where the next
+	// record goes.
+	//
+	private static long findEnd(FileChannel file) throws IOException {
+		BinaryLogReader reader = new BinaryLogReader(file);
+		while (reader.next() != END)
+			;
+		return reader.recordStart();
+	}
+
+	// Truncates the file to its data and closes it.
+	//
+	private void closeFile() {
+		if (this.channel == null)
+			return;
+		long end = this.windowStart + this.window.position();
+		this.window.force();
+		Utilities.unmap(this.window);
+		this.window = null;
+		try {
+			this.channel.truncate(end);
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.channel = null;
+	}
+
+}// end class
@@ -4,71 +4,139 @@
 
 package server.log;
 import java.io.*;
-import java.net.Socket;
-import java.text.SimpleDateFormat;
-import java.util.*;
+import java.util.concurrent.locks.ReentrantLock;
 import server.error.ErrorModule;
+import server.handlers.connection.ClientConnection;
+import server.parse.HttpRequest;
+import util.Configuration;
 import util.Constants;
 
 /**
  * Log Manager... create a singleton to share access to a single log file 
  *
+ * Writers are serialized with a lock rather than a synchronized method, so a
+ * virtual thread blocked on the file write does not pin its carrier thread.
+ *
+ * With server.log.async (the default) the entries are handed to an
+ * AsyncLogWriter instead, which writes them in batches from its own thread,
+ * so a request never waits for the log file. server.log.format=binary
+ * writes compact binary records instead of text lines (see BinaryLogSink
+ * and BinaryLogConverter); it always uses the writer thread.
+ *
  * Created: 2002.05.10
  * @author Peter Brandt-Erichsen
  */
 public class LogManager {
 	// singleton reference to this class
-	private static LogManager singleton = null;
-	private static SimpleDateFormat dateFormat = null;
+	private static final LogManager singleton = new LogManager();
+
+	// serializes writes to the log file
+	private static final ReentrantLock logLock = new ReentrantLock();
+
+	// writes the entries in batches, null if they are written synchronously
+	private final AsyncLogWriter asyncWriter;
 
 	// constructor is private to guarantee a singleton instance
 	private LogManager() {
-		dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z");
 		File logFileDir = new File(Constants.LOG_DIRECTORY);
 		if (!logFileDir.exists()) {
 			logFileDir.mkdir();
 		}
+
+		Configuration config = Configuration.getReference();
+		boolean binary = "binary".equalsIgnoreCase(config.getString("server.log.format", "text"));
+		if (!binary && !config.getBoolean("server.log.async", true)) {
+			this.asyncWriter = null;
+		} else {
+			final AsyncLogWriter writer = new AsyncLogWriter(
+					binary ? new BinaryLogSink() : new TextLogSink(),
+					config.getInt("server.log.bufferSize", Constants.DEFAULT_LOG_BUFFER_SIZE),
+					config.getLong("server.log.flushInterval", Constants.DEFAULT_LOG_FLUSH_INTERVAL),
+					"drop".equalsIgnoreCase(config.getString("server.log.overflow", "block")));
+
+			// write the buffered entries before the server exits
+			Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						writer.shutdown(Constants.LOG_DRAIN_TIMEOUT);
+					} catch (InterruptedException e) {
+						// exiting anyway
+					}
+				}
+			}, "access-log-drain"));
+			this.asyncWriter = writer;
+		}
 	}
 
 	/**
 	 * Returns a reference to this singleton class
 	 */
 	public static LogManager getReference() {
-		if (singleton == null)
-			singleton = new LogManager();
 		return singleton;
 	}
 
 	/**
-	 * Log an entry to the log file, this method is synchronized.
+	 * Returns the asynchronous writer, for its statistics, or null if the
+	 * entries are written synchronously.
+	 */
+	public AsyncLogWriter getAsyncWriter() {
+		return this.asyncWriter;
+	}
+
+	/**
+	 * Log an entry to the log file: queued for the writer thread in async
+	 * mode, otherwise written at once with writers serialized by a lock.
 	 * @param logEntry the String that needs to be logged.
 	 * @throws IOException
 	 */
-	public synchronized static void log(String logEntry) throws IOException {
-		// if log file not exists, create a new one
-		File logFile = new File(Constants.getLogFileName()); 
-		if (!logFile.exists()) {
-			logFile.createNewFile();
+	public static void log(String logEntry) throws IOException {
+		// after shutdown the remaining entries are written synchronously
+		AsyncLogWriter writer = singleton.asyncWriter;
+		if (writer != null && writer.append(logEntry))
+			return;
+
+		logLock.lock();
+		try {
+			// if log file not exists, create a new one
+			File logFile = new File(Constants.getLogFileName()); 
+			if (!logFile.exists()) {
+				logFile.createNewFile();
+			}
+			
+			// log the entry
+			PrintWriter logger = new PrintWriter(new FileOutputStream(logFile, true));
+			logger.write(logEntry + "\n");
+			logger.flush();
+			logger.close();
+		} finally {
+			logLock.unlock();
 		}
-		
-		// log the entry
-		PrintWriter logger = new PrintWriter(new FileOutputStream(logFile, true));
-		logger.write(logEntry + "\n");
-		logger.flush();
-		logger.close();
 	}
 	
 	/**
-	 * Construct the first part of a Log entry. 
-	 * @param clientSocket is the clientSocket
-	 * @param request is the request string
-	 * @return the part of the log entry.
+	 * Logs a served request. The record is formatted or encoded by the
+	 * writer thread; without it the text line is written at once.
+	 *
+	 * @param clientSocket
+	 *            is the client connection
+	 * @param request
+	 *            is the served request
+	 * @param status
+	 *            is the status code sent
+	 * @param bytes
+	 *            is the number of body bytes sent
 	 */
-	public StringBuffer constructLogEntry(Socket clientSocket, String request) {
-		StringBuffer logEntry = new StringBuffer(clientSocket.getInetAddress().getHostAddress());
-		logEntry.append(" - - [" + dateFormat.format(new Date()) + "] ");
-		logEntry.append("\"" + request + "\" ");
-		return logEntry;
+	public void logRequest(ClientConnection clientSocket, HttpRequest request,
+			int status, long bytes) throws IOException {
+		AccessRecord record = new AccessRecord(clientSocket.getInetAddress(),
+				request.getRequestLine(), status, bytes, System.nanoTime() - request.getReceived());
+		if (this.asyncWriter != null && this.asyncWriter.append(record))
+			return;
+
+		StringBuilder logEntry = new StringBuilder(256);
+		record.appendCommonLog(logEntry);
+		log(logEntry.toString());
 	}
 	
 }//end class
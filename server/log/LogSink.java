@@ -0,0 +1,35 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.IOException;
+
+/**
+ * Log Sink - the file format written by the log writer thread; only that
+ * thread calls it.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+interface LogSink {
+
+	/**
+	 * Writes an entry, an AccessRecord or a line of text; the sink may keep
+	 * it in a batch until flush().
+	 */
+	void write(Object entry) throws IOException;
+
+	/**
+	 * Writes the batched entries out.
+	 */
+	void flush() throws IOException;
+
+	/**
+	 * Flushes and closes the log file.
+	 */
+	void close();
+
+}// end interface
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Statistics Reporter - periodically prints the runtime statistics of the
+ * registered server components to the console.
+ *
+ * A component is registered with any object whose toString() returns a one
+ * line summary of its counters.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.02
+ *
+ * @author haijunq
+ */
+public class StatisticsReporter {
+
+	// singleton reference to this class
+	private static final StatisticsReporter singleton = new StatisticsReporter();
+
+	// the registered statistics sources
+	private final List<Object> sources = new CopyOnWriteArrayList<Object>();
+
+	// the reporting thread, null until started
+	private Thread reporter = null;
+
+	// constructor is private to guarantee a singleton instance
+	private StatisticsReporter() {
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static StatisticsReporter getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Registers a statistics source.
+	 */
+	public void register(Object source) {
+		if (source != null)
+			this.sources.add(source);
+	}
+
+	/**
+	 * Returns the current statistics, one line per source.
+	 */
+	public String report() {
+		StringBuilder str = new StringBuilder();
+		for (Object source : this.sources) {
+			str.append(source.toString()).append('\n');
+		}
+		return str.toString();
+	}
+
+	/**
+	 * Starts printing the statistics every intervalSeconds; does nothing if
+	 * the interval is not positive or the reporter is already running.
+	 */
+	public synchronized void start(final long intervalSeconds) {
+		if (intervalSeconds <= 0 || this.reporter != null)
+			return;
+
+		this.reporter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while (true) {
+					try {
+						Thread.sleep(intervalSeconds * 1000);
+					} catch (InterruptedException e) {
+						return;
+					}
+					System.out.print("-- statistics " + new Date() + " --\n" + report());
+				}
+			}
+		}, "statistics-reporter");
+		this.reporter.setDaemon(true);
+		this.reporter.start();
+	}
+
+}// end class
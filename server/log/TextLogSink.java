@@ -0,0 +1,127 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.log;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.util.*;
+
+import util.Constants;
+
+/**
+ * Text Log Sink - writes the entries as common log format lines to the
+ * day's text log file.
+ *
+ * The lines are encoded into a batch, which is written with one call through
+ * a channel that stays open; the channel is reopened on the next day's file
+ * at midnight.
+ *
+ * Created: 2013.11.22
+ *
+ * @author haijunq
+ */
+class TextLogSink implements LogSink {
+
+	// size of a batch written with one call
+	private static final int BATCH_SIZE = 64 * 1024;
+
+	private final ByteBuffer batch = ByteBuffer.allocate(BATCH_SIZE);
+	private final StringBuilder line = new StringBuilder(256); 	// the formatted record
+	private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	private FileChannel channel = null; 							// the day's log file
+	private long nextDay = 0; 										// time the next day's file begins
+
+	@Override
+	public void write(Object entry) throws IOException {
+		this.line.setLength(0);
+		if (entry instanceof AccessRecord)
+			((AccessRecord) entry).appendCommonLog(this.line);
+		else
+			this.line.append(entry);
+		this.line.append('\n');
+
+		CharBuffer chars = CharBuffer.wrap(this.line);
+		try {
+			while (this.encoder.encode(chars, this.batch, true).isOverflow())
+				flush();
+		} finally {
+			this.encoder.reset();
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		if (this.batch.position() == 0)
+			return;
+		this.batch.flip();
+		try {
+			FileChannel out = currentChannel();
+			while (this.batch.hasRemaining())
+				out.write(this.batch);
+		} catch (IOException e) {
+			// the batch is dropped, a full disk must not stop the server
+			closeChannel();
+			throw e;
+		} finally {
+			this.batch.clear();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			flush();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		closeChannel();
+	}
+
+	// Returns the channel of the current day's log file, opening it at
+	// startup and at midnight.
+	//
+	private FileChannel currentChannel() throws IOException {
+		long now = System.currentTimeMillis();
+		if (this.channel != null && now < this.nextDay)
+			return this.channel;
+		closeChannel();
+
+		this.channel = FileChannel.open(Paths.get(Constants.getLogFileName()),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+		this.nextDay = nextMidnight(now);
+		return this.channel;
+	}
+
+	private void closeChannel() {
+		if (this.channel == null)
+			return;
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		this.channel = null;
+	}
+
+	/**
+	 * Returns the local midnight following the time.
+	 */
+	static long nextMidnight(long millis) {
+		Calendar midnight = GregorianCalendar.getInstance();
+		midnight.setTimeInMillis(millis);
+		midnight.set(Calendar.HOUR_OF_DAY, 0);
+		midnight.set(Calendar.MINUTE, 0);
+		midnight.set(Calendar.SECOND, 0);
+		midnight.set(Calendar.MILLISECOND, 0);
+		midnight.add(Calendar.DAY_OF_MONTH, 1);
+		return midnight.getTimeInMillis();
+	}
+
+}// end class
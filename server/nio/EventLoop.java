@@ -0,0 +1,218 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.nio;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Event Loop - a selector thread serving the I/O of many client connections.
+ *
+ * All channel, selection key and SSLEngine work of a connection is done on
+ * the loop thread that owns it. Other threads hand work to the loop with
+ * execute(), which queues the task and wakes the selector up; the loop
+ * thread itself can put a task off with schedule().
+ *
+ * Created: 2013.11.05
+ *
+ * @author haijunq
+ */
+public class EventLoop implements Runnable {
+	private final String name; 										// loop thread name
+	private final Selector selector; 								// the selector of this loop
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>(); // tasks posted by other threads
+	private final AtomicInteger connectionCount = new AtomicInteger(); // open connections owned by this loop
+	private volatile boolean running = true; 						// cleared to stop the loop
+	private Thread thread = null; 									// the loop thread
+	private long lastIdleCheck = System.currentTimeMillis(); 		// time of the last idle scan
+	private final PriorityQueue<Timer> timers = new PriorityQueue<Timer>(); // tasks put off, loop thread only
+	private long timerSequence = 0; 								// orders timers with equal deadlines
+
+	/**
+	 * Constructs the event loop
+	 *
+	 * @param name
+	 *            is the name of the loop thread
+	 */
+	public EventLoop(String name) throws IOException {
+		this.name = name;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Starts the loop thread.
+	 */
+	public void start() {
+		this.thread = new Thread(this, this.name);
+		this.thread.start();
+	}
+
+	/**
+	 * Stops the loop thread and closes the selector.
+	 */
+	public void stop() {
+		this.running = false;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Returns true if called from the loop thread.
+	 */
+	public boolean inLoop() {
+		return Thread.currentThread() == this.thread;
+	}
+
+	/**
+	 * Runs the task on the loop thread.
+	 */
+	public void execute(Runnable task) {
+		this.tasks.add(task);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Runs the task on the loop thread after the delay; called on the loop
+	 * thread only.
+	 */
+	void schedule(Runnable task, long delayNanos) {
+		this.timers.add(new Timer(System.nanoTime() + delayNanos, this.timerSequence++, task));
+	}
+
+	/**
+	 * Hands a connection over to this loop.
+	 */
+	public void register(final NioConnection connection) {
+		execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					connection.register(selector);
+					connectionCount.incrementAndGet();
+				} catch (IOException e) {
+					connection.closeNow();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Called by a connection once its channel is closed.
+	 */
+	void connectionClosed() {
+		this.connectionCount.decrementAndGet();
+	}
+
+	/**
+	 * Returns the number of open connections owned by this loop.
+	 */
+	public int getConnectionCount() {
+		return this.connectionCount.get();
+	}
+
+	/**
+	 * Implement the run() method.
+	 */
+	@Override
+	public void run() {
+		while (this.running) {
+			try {
+				this.selector.select(selectTimeout());
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			// run the tasks posted by other threads, and the timers due; an
+			// InternalError, a fault on a truncated mapped file, must not end
+			// the loop either
+			Runnable task;
+			while ((task = this.tasks.poll()) != null) {
+				try {
+					task.run();
+				} catch (RuntimeException | InternalError e) {
+					e.printStackTrace();
+				}
+			}
+			long nanos = System.nanoTime();
+			while (!this.timers.isEmpty() && this.timers.peek().deadline - nanos <= 0) {
+				try {
+					this.timers.poll().task.run();
+				} catch (RuntimeException | InternalError e) {
+					e.printStackTrace();
+				}
+			}
+
+			// serve the ready connections
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+				NioConnection connection = (NioConnection) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable())
+						connection.onReadable();
+					if (key.isValid() && key.isWritable())
+						connection.onWritable();
+				} catch (CancelledKeyException e) {
+					connection.closeNow();
+				}
+			}
+
+			// drop the idle connections
+			long now = System.currentTimeMillis();
+			if (now - this.lastIdleCheck >= 1000) {
+				this.lastIdleCheck = now;
+				for (SelectionKey key : this.selector.keys())
+					((NioConnection) key.attachment()).checkIdle(now);
+			}
+		}
+
+		// close the remaining connections
+		for (SelectionKey key : this.selector.keys()) {
+			((NioConnection) key.attachment()).closeNow();
+		}
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	// Returns the milliseconds to wait for events: until the next timer is
+	// due, and at most a second for the idle scan.
+	//
+	private long selectTimeout() {
+		if (this.timers.isEmpty())
+			return 1000;
+		long millis = (this.timers.peek().deadline - System.nanoTime() + 999999) / 1000000;
+		return Math.max(1, Math.min(1000, millis));
+	}
+
+	// A task put off until its deadline.
+	//
+	private static class Timer implements Comparable<Timer> {
+		private final long deadline; 								// System.nanoTime() the task is due
+		private final long sequence;
+		private final Runnable task;
+
+		Timer(long deadline, long sequence, Runnable task) {
+			this.deadline = deadline;
+			this.sequence = sequence;
+			this.task = task;
+		}
+
+		@Override
+		public int compareTo(Timer other) {
+			long difference = this.deadline - other.deadline;
+			if (difference != 0)
+				return (difference < 0) ? -1 : 1;
+			return Long.compare(this.sequence, other.sequence);
+		}
+	}
+
+}// end class
@@ -0,0 +1,1033 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.nio;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.*;
+
+import javax.net.ssl.*;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+
+import server.error.ErrorModule;
+import server.handlers.connection.*;
+import server.handlers.resource.MappedFileRegistry;
+import server.parse.*;
+
+/**
+ * NIO Connection - a TLS or plaintext client connection served by an event
+ * loop.
+ *
+ * The event loop reads and decrypts bytes until a complete request header
+ * has arrived, then hands the request to the worker pool, which runs the
+ * usual resource parser. The response written by the parser is queued and
+ * encrypted and written by the event loop as the client accepts it; file
+ * bodies are read from disk chunk by chunk on the loop, so a slow client
+ * holds buffers but no thread. On a plaintext connection the files are sent
+ * with FileChannel.transferTo, without copying them through the heap. A
+ * memory-mapped file is encrypted or written straight from the mapping.
+ *
+ * A worker writing faster than the client reads, e.g. a streamed directory
+ * listing, waits once more than OUTPUT_HIGH_WATER bytes are queued, until
+ * the loop has sent the queue down to OUTPUT_LOW_WATER.
+ *
+ * Apart from the output stream, transferFile(), transferBuffer() and
+ * close(), which may be called from a worker, every method runs on the loop
+ * thread.
+ *
+ * Created: 2013.11.05
+ *
+ * @author haijunq
+ */
+public class NioConnection extends ClientConnection {
+
+	// largest request header accepted
+	static final int MAX_REQUEST_HEADER = HttpRequestParser.MAX_HEADER_SIZE;
+
+	// bytes encrypted per write event, so one fast download cannot starve the
+	// other connections of the loop
+	private static final int WRITE_BUDGET = 256 * 1024;
+
+	// queued output bytes at which a writing worker waits, and at which it
+	// resumes
+	private static final long OUTPUT_HIGH_WATER = 256 * 1024;
+	private static final long OUTPUT_LOW_WATER = 64 * 1024;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel; 							// the client channel
+	private final SSLEngine engine; 								// TLS state of the connection, null for plaintext
+	private final EventLoop loop; 									// the loop owning the connection
+	private final WorkerPool workerPool; 							// runs requests and TLS tasks
+	private final ResourceParser parser; 							// serves the requests
+	private final InetAddress address; 								// the client address
+	private SelectionKey key = null; 								// registration with the loop selector
+
+	private ByteBuffer netIn; 										// encrypted input, write mode
+	private ByteBuffer appIn; 										// decrypted input, write mode
+	private ByteBuffer netOut; 										// encrypted output, read mode
+	private final ByteBuffer fileBuffer; 							// file chunk being encrypted, read mode
+
+	// response data queued by the worker: ByteBuffers, FileRegions and
+	// BufferRegions
+	private final Queue<Object> outbound = new ConcurrentLinkedQueue<Object>();
+	private final OutputStream output = new ConnectionOutputStream();
+	private final AtomicLong queuedBytes = new AtomicLong(); 		// bytes written to the output, not yet sent
+	private final ReentrantLock drainLock = new ReentrantLock(); 	// guards the drained condition
+	private final Condition drained = this.drainLock.newCondition(); // the queue fell to the low water mark
+	private final HttpRequestParser requestParser = new HttpRequestParser(null); // parses the received headers
+	private int pendingResponses = 0; 								// responses queued but not yet sent
+
+	private boolean writePaused = false; 							// a throttled body waits for tokens
+	private volatile boolean closeRequested = false; 				// close once the output is sent
+	private boolean requestInProgress = false; 					// a worker is serving a request
+	private boolean tasksRunning = false; 							// TLS tasks are running on a worker
+	private boolean inputClosed = false; 							// the client stopped sending
+	private volatile boolean closed = false; 						// the channel is closed
+	private long lastActivity = System.currentTimeMillis(); 		// time of the last I/O event
+	private long handshakeStart = 0; 								// System.nanoTime() of the handshake start, 0 once done
+	private long handshakeStartMillis = 0; 						// System.currentTimeMillis() of the handshake start
+	private int requestCount = 0; 									// requests served, used by the worker only
+
+	// runs process() on the loop thread
+	private final Runnable processTask = new Runnable() {
+		@Override
+		public void run() {
+			process();
+		}
+	};
+
+	// resumes writing once the throttle has tokens again, on the loop thread
+	private final Runnable resumeTask = new Runnable() {
+		@Override
+		public void run() {
+			writePaused = false;
+			lastActivity = System.currentTimeMillis();
+			process();
+		}
+	};
+
+	/**
+	 * Constructs the connection
+	 *
+	 * @param channel
+	 *            is the accepted, non-blocking client channel
+	 * @param engine
+	 *            is the server-mode TLS engine of the connection, or null
+	 *            for a plaintext connection
+	 * @param loop
+	 *            is the event loop that will own the connection
+	 * @param workerPool
+	 *            runs the requests and the delegated TLS tasks
+	 * @param parser
+	 *            is the reference to the Resource Parser
+	 */
+	public NioConnection(SocketChannel channel, SSLEngine engine,
+			EventLoop loop, WorkerPool workerPool, ResourceParser parser) {
+		this.channel = channel;
+		this.engine = engine;
+		this.loop = loop;
+		this.workerPool = workerPool;
+		this.parser = parser;
+		this.address = channel.socket().getInetAddress();
+
+		if (engine == null) {
+			// plaintext is read straight into the request buffer and written
+			// straight from the queue
+			this.netIn = ByteBuffer.allocate(0);
+			this.appIn = ByteBuffer.allocate(MAX_REQUEST_HEADER);
+			this.netOut = ByteBuffer.allocate(0);
+			this.fileBuffer = ByteBuffer.allocate(0);
+		} else {
+			SSLSession session = engine.getSession();
+			this.netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+			this.netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+			this.fileBuffer = ByteBuffer.allocate(session.getApplicationBufferSize());
+		}
+		this.netOut.flip();
+		this.fileBuffer.flip();
+	}
+
+	/**
+	 * Returns null: the loop reads the input and loads each request header
+	 * into the request parser.
+	 */
+	@Override
+	public InputStream getInputStream() {
+		return null;
+	}
+
+	/**
+	 * Returns the parser holding the current request header only; the
+	 * pipelined requests that follow it stay buffered in the connection.
+	 */
+	@Override
+	public HttpRequestParser getRequestParser() {
+		return this.requestParser;
+	}
+
+	@Override
+	public OutputStream getOutputStream() {
+		return this.output;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return this.address;
+	}
+
+	@Override
+	public void transferFile(File file, long position, long count)
+			throws IOException {
+		queue(new FileRegion(file, position, count, getThrottle()));
+	}
+
+	@Override
+	public void transferBuffer(ByteBuffer buffer, Closeable release)
+			throws IOException {
+		queue(new BufferRegion(buffer, release, getThrottle()));
+	}
+
+	@Override
+	public void close() {
+		this.closeRequested = true;
+		this.loop.execute(this.processTask);
+	}
+
+	// Queues a region for the loop to send; a region that cannot be sent is
+	// closed, so its release always runs. closeNow() sets closed before it
+	// drains the queue, so a region queued while the loop closes the
+	// connection is either taken back here or closed by the drain.
+	//
+	private void queue(Object region) throws IOException {
+		if (!this.closeRequested && !this.closed) {
+			this.outbound.add(region);
+			if (!this.closed) {
+				this.loop.execute(this.processTask);
+				return;
+			}
+			if (!this.outbound.remove(region))
+				throw new IOException("connection closed");
+		}
+		closeRegion(region);
+		throw new IOException("connection closed");
+	}
+
+	// Registers the channel with the loop selector and starts the handshake.
+	//
+	void register(Selector selector) throws IOException {
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+		if (this.engine != null) {
+			this.handshakeStartMillis = System.currentTimeMillis();
+			this.handshakeStart = System.nanoTime();
+			this.engine.beginHandshake();
+		}
+		process();
+	}
+
+	// Called by the loop when the channel is readable.
+	//
+	void onReadable() {
+		this.lastActivity = System.currentTimeMillis();
+		try {
+			if (this.channel.read(this.engine == null ? this.appIn : this.netIn) < 0) {
+				this.inputClosed = true;
+				if (this.engine != null)
+					this.engine.closeInbound();
+			}
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+		process();
+	}
+
+	// Called by the loop when the channel is writable.
+	//
+	void onWritable() {
+		this.lastActivity = System.currentTimeMillis();
+		process();
+	}
+
+	// Called by the loop about once a second; closes a connection that has
+	// neither a request in progress nor any I/O within the keep-alive
+	// timeout, which also drops clients that stopped reading.
+	//
+	void checkIdle(long now) {
+		if (!this.closed && !this.requestInProgress && !this.tasksRunning && !this.writePaused
+				&& now - this.lastActivity > ConnectionHandler.KEEPALIVE_TIMEOUT)
+			closeNow();
+	}
+
+	// Moves the connection forward: decrypts the input, writes the pending
+	// output, dispatches a complete request and updates the interest set.
+	//
+	private void process() {
+		if (this.closed || this.tasksRunning)
+			return;
+
+		try {
+			// repeat while the handshake moves on, and until the records
+			// following the handshake in the input are decrypted
+			boolean progress;
+			do {
+				progress = unwrap();
+				if (startTasks())
+					return;
+				progress |= flushOutbound();
+				if (startTasks())
+					return;
+			} while (progress && (isHandshaking() || this.netIn.position() > 0));
+
+			if (this.handshakeStart != 0 && !isHandshaking()) {
+				TlsStatistics.getReference().recordHandshake(this.engine.getSession(),
+						this.handshakeStartMillis, this.handshakeStart);
+				this.handshakeStart = 0;
+			}
+
+			if (this.outbound.isEmpty() && !this.netOut.hasRemaining())
+				this.pendingResponses = 0;
+			dispatchRequest();
+
+			if (this.closed)
+				return;
+			if ((this.closeRequested || this.inputClosed) && !this.requestInProgress
+					&& this.outbound.isEmpty() && !this.netOut.hasRemaining()) {
+				closeGracefully();
+				return;
+			}
+			updateInterest();
+		} catch (IOException e) {
+			closeNow();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+			closeNow();
+		} catch (InternalError e) {
+			// a fault on the mapping being sent: its file was truncated since
+			// it was mapped; only this connection is lost
+			e.printStackTrace();
+			Object head = this.outbound.peek();
+			if (head instanceof BufferRegion)
+				MappedFileRegistry.retireFaulted(((BufferRegion) head).release);
+			closeNow();
+		}
+	}
+
+	// Decrypts the buffered network input, returns true if bytes were
+	// consumed or produced.
+	//
+	private boolean unwrap() throws IOException {
+		if (this.engine == null)
+			return false;
+		if (this.netIn.position() == 0 && !needsUnwrapAgain())
+			return false;
+
+		boolean progress = false;
+		this.netIn.flip();
+		try {
+			while (this.netIn.hasRemaining() || needsUnwrapAgain()) {
+				SSLEngineResult result = this.engine.unwrap(this.netIn, this.appIn);
+				if (result.getStatus() == Status.BUFFER_UNDERFLOW)
+					break;
+				if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+					// the rest waits until the buffered request is served
+					if (hasBufferedRequest())
+						break;
+					if (this.appIn.position() >= MAX_REQUEST_HEADER)
+						throw new IOException("request header too large");
+					this.appIn = enlarge(this.appIn, this.engine.getSession().getApplicationBufferSize());
+					continue;
+				}
+				if (result.getStatus() == Status.CLOSED) {
+					this.inputClosed = true;
+					break;
+				}
+				progress |= result.bytesConsumed() > 0 || result.bytesProduced() > 0;
+				if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK
+						|| result.getHandshakeStatus() == HandshakeStatus.NEED_WRAP)
+					break;
+			}
+		} finally {
+			this.netIn.compact();
+		}
+
+		// make room for a record larger than the current buffer
+		if (!this.netIn.hasRemaining() && !hasBufferedRequest())
+			this.netIn = enlarge(this.netIn, this.engine.getSession().getPacketBufferSize());
+		return progress;
+	}
+
+	// Encrypts and writes the pending output until the socket is full, the
+	// output is exhausted or the write budget is spent; returns true if any
+	// bytes were written.
+	//
+	private boolean flushOutbound() throws IOException {
+		if (this.engine == null)
+			return flushPlaintext();
+
+		boolean progress = false;
+		int budget = WRITE_BUDGET;
+
+		while (true) {
+			if (this.netOut.hasRemaining()) {
+				progress |= this.channel.write(this.netOut) > 0;
+				if (this.netOut.hasRemaining())
+					return progress;
+			}
+			if (budget <= 0)
+				return progress;
+
+			ByteBuffer source;
+			HandshakeStatus status = handshakeStatus();
+			if (status == HandshakeStatus.NEED_WRAP)
+				source = EMPTY;
+			else if (isHandshaking())
+				return progress;
+			else if ((source = nextPlaintext()) == null)
+				return progress;
+
+			this.netOut.clear();
+			SSLEngineResult result = this.engine.wrap(source, this.netOut);
+			this.netOut.flip();
+			if (result.getStatus() == Status.BUFFER_OVERFLOW) {
+				this.netOut = ByteBuffer.allocate(this.engine.getSession().getPacketBufferSize());
+				this.netOut.flip();
+				continue;
+			}
+			if (result.getStatus() == Status.CLOSED) {
+				throw new IOException("engine closed");
+			}
+			budget -= result.bytesProduced();
+		}
+	}
+
+	// Returns the next plaintext to encrypt, reading the next chunk of a
+	// queued file when needed, or null if nothing is queued.
+	//
+	private ByteBuffer nextPlaintext() throws IOException {
+		while (true) {
+			Object head = this.outbound.peek();
+			if (head == null)
+				return null;
+
+			if (head instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) head;
+				if (buffer.hasRemaining())
+					return buffer;
+				this.outbound.poll();
+				sent(buffer);
+				continue;
+			}
+
+			if (head instanceof BufferRegion) {
+				BufferRegion region = (BufferRegion) head;
+				if (region.buffer.hasRemaining())
+					return region.buffer;
+				if (!region.isDone()) {
+					if (!region.grant(WRITE_BUDGET)) {
+						pauseWriting(region.throttle);
+						return null;
+					}
+					return region.buffer;
+				}
+				region.complete();
+				this.outbound.poll();
+				continue;
+			}
+
+			if (this.fileBuffer.hasRemaining())
+				return this.fileBuffer;
+			FileRegion region = (FileRegion) head;
+			if (region.remaining == 0) {
+				region.complete(false);
+				this.outbound.poll();
+				continue;
+			}
+			if (!region.grant(this.fileBuffer.capacity())) {
+				pauseWriting(region.throttle);
+				return null;
+			}
+			this.fileBuffer.clear();
+			region.read(this.fileBuffer);
+			this.fileBuffer.flip();
+			return this.fileBuffer;
+		}
+	}
+
+	// Writes the queued output of a plaintext connection; files are sent with
+	// transferTo. Returns true if any bytes were written.
+	//
+	private boolean flushPlaintext() throws IOException {
+		boolean progress = false;
+		long budget = WRITE_BUDGET;
+
+		while (budget > 0) {
+			Object head = this.outbound.peek();
+			if (head == null)
+				return progress;
+
+			if (head instanceof ByteBuffer) {
+				ByteBuffer buffer = (ByteBuffer) head;
+				int written = this.channel.write(buffer);
+				progress |= written > 0;
+				budget -= written;
+				if (buffer.hasRemaining())
+					return progress;
+				this.outbound.poll();
+				sent(buffer);
+				continue;
+			}
+
+			if (head instanceof BufferRegion) {
+				BufferRegion region = (BufferRegion) head;
+				if (!region.grant(budget)) {
+					pauseWriting(region.throttle);
+					return progress;
+				}
+				int written = this.channel.write(region.buffer);
+				progress |= written > 0;
+				budget -= written;
+				if (region.buffer.hasRemaining())
+					return progress;
+				if (!region.isDone())
+					continue;
+				region.complete();
+				this.outbound.poll();
+				continue;
+			}
+
+			FileRegion region = (FileRegion) head;
+			if (region.remaining > 0) {
+				if (!region.grant(budget)) {
+					pauseWriting(region.throttle);
+					return progress;
+				}
+				long sent = region.transferTo(this.channel, budget);
+				progress |= sent > 0;
+				budget -= sent;
+				if (region.remaining > 0) {
+					if (sent == 0)
+						return progress;
+					continue;
+				}
+			}
+			region.complete(true);
+			this.outbound.poll();
+		}
+		return progress;
+	}
+
+	// Stops writing the connection until the throttle has tokens again. The
+	// loop resumes it then, so the waiting transfer holds no thread.
+	//
+	private void pauseWriting(Throttle throttle) {
+		if (this.writePaused)
+			return;
+		this.writePaused = true;
+		this.loop.schedule(this.resumeTask, throttle.delayNanos());
+	}
+
+	// Accounts for a sent output buffer, waking the worker waiting for the
+	// queue to drain.
+	//
+	private void sent(ByteBuffer buffer) {
+		long queued = this.queuedBytes.addAndGet(-buffer.capacity());
+		if (queued <= OUTPUT_LOW_WATER && queued + buffer.capacity() > OUTPUT_LOW_WATER)
+			signalDrained();
+	}
+
+	private void signalDrained() {
+		this.drainLock.lock();
+		try {
+			this.drained.signalAll();
+		} finally {
+			this.drainLock.unlock();
+		}
+	}
+
+	// Runs on the worker: waits while too much output is queued. Gives up
+	// when the connection closes or the client reads nothing for the
+	// keep-alive timeout.
+	//
+	private void awaitDrained() throws IOException {
+		if (this.queuedBytes.get() <= OUTPUT_HIGH_WATER)
+			return;
+		this.loop.execute(this.processTask);
+
+		long timeout = TimeUnit.MILLISECONDS.toNanos(ConnectionHandler.KEEPALIVE_TIMEOUT);
+		long wait = timeout;
+		this.drainLock.lock();
+		try {
+			long queued = this.queuedBytes.get();
+			while (queued > OUTPUT_LOW_WATER) {
+				if (this.closed)
+					throw new IOException("connection closed");
+				if (wait <= 0)
+					throw new IOException("client stopped reading");
+				wait = this.drained.awaitNanos(wait);
+				long now = this.queuedBytes.get();
+				if (now < queued)
+					wait = timeout; // progress, wait again
+				queued = now;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted waiting for the client");
+		} finally {
+			this.drainLock.unlock();
+		}
+	}
+
+	// Runs the delegated TLS tasks on a worker, then resumes on the loop;
+	// returns true if tasks were started.
+	//
+	private boolean startTasks() {
+		if (handshakeStatus() != HandshakeStatus.NEED_TASK)
+			return false;
+
+		this.tasksRunning = true;
+		this.key.interestOps(0);
+		Runnable tasks = new Runnable() {
+			@Override
+			public void run() {
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null)
+					task.run();
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						tasksRunning = false;
+						process();
+					}
+				});
+			}
+		};
+		try {
+			this.workerPool.execute(tasks);
+		} catch (RejectedExecutionException e) {
+			closeNow();
+		}
+		return true;
+	}
+
+	// Hands a completely received request header to the worker pool. A
+	// pipelined request waits while the responses queued before it exceed
+	// the pipelining depth.
+	//
+	private void dispatchRequest() throws IOException {
+		if (this.requestInProgress || this.closeRequested || isHandshaking()
+				|| this.pendingResponses >= ConnectionHandler.PIPELINE_DEPTH)
+			return;
+
+		// a header too large to arrive completely is handed over as it is,
+		// for the parser to answer it with an error
+		int end = findHeaderEnd(this.appIn);
+		if (end < 0) {
+			if (this.appIn.position() < MAX_REQUEST_HEADER)
+				return;
+			end = this.appIn.position();
+		}
+
+		this.appIn.flip();
+		this.requestParser.load(this.appIn, end);
+		this.appIn.compact();
+		this.requestInProgress = true;
+
+		try {
+			this.workerPool.execute(new RequestTask());
+		} catch (RejectedExecutionException e) {
+			shed();
+		}
+	}
+
+	// Answers a request the saturated worker pool cannot take with 503 and
+	// closes the connection after it. The response is written on the loop
+	// thread, which must not wait for the output to drain, so a connection
+	// with much output still queued is closed at once.
+	//
+	private void shed() {
+		AdmissionController.getReference().recordShed();
+		this.requestInProgress = false;
+		if (this.queuedBytes.get() > OUTPUT_LOW_WATER) {
+			closeNow();
+			return;
+		}
+		try {
+			ErrorModule.getReference().serviceUnavailable(this, parseRejected());
+		} catch (IOException e) {
+			closeNow();
+			return;
+		}
+		this.closeRequested = true;
+		this.pendingResponses++;
+	}
+
+	// Parses the header of a request turned away, which has arrived in
+	// full, so the 503 is logged with it; returns null if it is malformed.
+	//
+	private HttpRequest parseRejected() {
+		try {
+			return this.requestParser.parse();
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	// Selects the events the connection is waiting for. No more input is
+	// read while a request is served or already buffered, or while the
+	// client has not read the responses of a full pipeline; writing the
+	// responses, which ends with process(), arms reading again.
+	//
+	private void updateInterest() {
+		int ops = 0;
+		HandshakeStatus status = handshakeStatus();
+		if (status == HandshakeStatus.NEED_UNWRAP
+				|| (!this.inputClosed && !this.requestInProgress && !this.closeRequested
+						&& this.pendingResponses < ConnectionHandler.PIPELINE_DEPTH
+						&& !hasBufferedRequest()))
+			ops |= SelectionKey.OP_READ;
+		if (this.netOut.hasRemaining() || status == HandshakeStatus.NEED_WRAP
+				|| (!isHandshaking() && !this.outbound.isEmpty() && !this.writePaused))
+			ops |= SelectionKey.OP_WRITE;
+		this.key.interestOps(ops);
+	}
+
+	// Returns true if the engine must unwrap again without new input, which
+	// happens with TLS 1.3.
+	//
+	private boolean needsUnwrapAgain() {
+		return handshakeStatus() == HandshakeStatus.NEED_UNWRAP_AGAIN;
+	}
+
+	// Returns the handshake status; a plaintext connection never handshakes.
+	//
+	private HandshakeStatus handshakeStatus() {
+		if (this.engine == null)
+			return HandshakeStatus.NOT_HANDSHAKING;
+		return this.engine.getHandshakeStatus();
+	}
+
+	// Returns true while the TLS handshake is in progress.
+	//
+	private boolean isHandshaking() {
+		HandshakeStatus status = handshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING
+				&& status != HandshakeStatus.FINISHED;
+	}
+
+	// Sends the TLS close_notify, as far as the socket takes it, and closes.
+	//
+	private void closeGracefully() {
+		if (this.engine == null) {
+			closeNow();
+			return;
+		}
+		try {
+			this.engine.closeOutbound();
+			while (!this.engine.isOutboundDone()) {
+				this.netOut.clear();
+				this.engine.wrap(EMPTY, this.netOut);
+				this.netOut.flip();
+				this.channel.write(this.netOut);
+				if (this.netOut.hasRemaining())
+					break;
+			}
+		} catch (IOException e) {
+			// the connection is closed below anyway
+		}
+		closeNow();
+	}
+
+	/**
+	 * Closes the channel and releases the queued files immediately.
+	 */
+	void closeNow() {
+		if (this.closed)
+			return;
+		this.closed = true;
+		if (this.handshakeStart != 0)
+			TlsStatistics.getReference().recordFailure();
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		Object head;
+		while ((head = this.outbound.poll()) != null)
+			closeRegion(head);
+		if (this.key != null)
+			this.loop.connectionClosed();
+		signalDrained();
+	}
+
+	// Closes a queued region that will not be sent.
+	//
+	private static void closeRegion(Object region) {
+		if (region instanceof FileRegion)
+			((FileRegion) region).close();
+		else if (region instanceof BufferRegion)
+			((BufferRegion) region).close();
+	}
+
+	// Returns true if a complete request header, or one too large to wait
+	// for, is buffered.
+	//
+	private boolean hasBufferedRequest() {
+		return this.appIn.position() >= MAX_REQUEST_HEADER || findHeaderEnd(this.appIn) >= 0;
+	}
+
+	// Returns the offset just past the blank line ending the request header,
+	// or -1 if it has not arrived yet.
+	//
+	private static int findHeaderEnd(ByteBuffer buffer) {
+		byte[] bytes = buffer.array();
+		int limit = buffer.arrayOffset() + buffer.position();
+		for (int i = buffer.arrayOffset(); i < limit; i++) {
+			if (bytes[i] != '\n')
+				continue;
+			if (i + 1 < limit && bytes[i + 1] == '\n')
+				return i + 2 - buffer.arrayOffset();
+			if (i + 2 < limit && bytes[i + 1] == '\r' && bytes[i + 2] == '\n')
+				return i + 3 - buffer.arrayOffset();
+		}
+		return -1;
+	}
+
+	// Returns a larger copy of a buffer in write mode.
+	//
+	private static ByteBuffer enlarge(ByteBuffer buffer, int increment) {
+		ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() + increment);
+		buffer.flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	// Serves one request on a worker thread, then lets the loop read the
+	// next request or close the connection.
+	//
+	private class RequestTask implements Runnable {
+		@Override
+		public void run() {
+			boolean keepAlive = false;
+			AdmissionController admission = AdmissionController.getReference();
+			beginRequest();
+			try {
+				// the response is sent by the event loop after the worker is
+				// done, so the worker has no large transfer to schedule
+				AdmissionController.Ticket ticket = admission.acquire();
+				if (ticket != null) {
+					try {
+						keepAlive = parser.parse(NioConnection.this,
+								++requestCount < ConnectionHandler.KEEPALIVE_MAX_REQUESTS);
+					} finally {
+						admission.release(ticket);
+					}
+				} else {
+					ErrorModule.getReference().serviceUnavailable(NioConnection.this,
+							parseRejected());
+				}
+			} catch (Exception e) {
+				// the handler failed: a 500 unless the response has started,
+				// and the connection is closed
+				e.printStackTrace();
+				ErrorModule.getReference().internalServerError(NioConnection.this, e);
+			} finally {
+				if (!keepAlive)
+					closeRequested = true;
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						requestInProgress = false;
+						pendingResponses++;
+						lastActivity = System.currentTimeMillis();
+						process();
+					}
+				});
+			}
+		}
+	}
+
+	// Queues the response bytes written by the worker.
+	//
+	private class ConnectionOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (closeRequested) {
+				throw new IOException("connection closed");
+			}
+			if (len > 0) {
+				responseStarted();
+				outbound.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+				queuedBytes.addAndGet(len);
+				awaitDrained();
+			}
+		}
+
+		@Override
+		public void flush() {
+			loop.execute(processTask);
+		}
+
+		@Override
+		public void close() {
+			NioConnection.this.close();
+		}
+	}
+
+	// A buffer waiting to be sent, with the handle released once it is sent
+	// or dropped. The buffer of a throttled region is a view whose limit is
+	// raised as the throttle grants bytes.
+	//
+	private static class BufferRegion {
+		private final ByteBuffer buffer;
+		private final Closeable release;
+		private final Throttle throttle; 							// shapes the region, or null
+		private final int end; 										// the limit of the whole region
+		private final long count;
+		private final long begin = System.nanoTime();
+
+		BufferRegion(ByteBuffer buffer, Closeable release, Throttle throttle) {
+			this.buffer = (throttle == null) ? buffer : buffer.duplicate();
+			this.release = release;
+			this.throttle = throttle;
+			this.end = buffer.limit();
+			this.count = buffer.remaining();
+			if (throttle != null)
+				this.buffer.limit(this.buffer.position());
+		}
+
+		// Returns true once the whole region is sent.
+		//
+		boolean isDone() {
+			return this.buffer.position() == this.end;
+		}
+
+		// Lets up to max more bytes be sent once the granted ones are; returns
+		// false if the throttle has none yet.
+		//
+		boolean grant(long max) {
+			if (this.buffer.hasRemaining() || isDone())
+				return true;
+			long granted = this.throttle.grant(Math.min(max, this.end - this.buffer.position()));
+			if (granted == 0)
+				return false;
+			this.buffer.limit(this.buffer.position() + (int) granted);
+			return true;
+		}
+
+		// Records the finished transfer and releases the buffer.
+		//
+		void complete() {
+			TransferStatistics.getReference().recordMemory(this.count, System.nanoTime() - this.begin);
+			close();
+		}
+
+		void close() {
+			try {
+				this.release.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// A region of a file waiting to be sent; the file is opened on first use.
+	//
+	private static class FileRegion {
+		private final File file;
+		private final Throttle throttle; 							// shapes the region, or null
+		private final long count;
+		private final long begin = System.nanoTime();
+		private long position;
+		private long remaining;
+		private long allowance = 0; 								// bytes granted by the throttle, not yet sent
+		private FileChannel fileChannel = null;
+
+		FileRegion(File file, long position, long count, Throttle throttle) {
+			this.file = file;
+			this.throttle = throttle;
+			this.count = count;
+			this.position = position;
+			this.remaining = count;
+		}
+
+		// Lets up to max more bytes be sent once the granted ones are; returns
+		// false if the throttle has none yet.
+		//
+		boolean grant(long max) {
+			if (this.throttle == null || this.allowance > 0)
+				return true;
+			this.allowance = this.throttle.grant(Math.min(max, this.remaining));
+			return this.allowance > 0;
+		}
+
+		// Returns the number of bytes that may be sent now.
+		//
+		private long sendable() {
+			return (this.throttle == null) ? this.remaining : this.allowance;
+		}
+
+		// Sends up to max bytes of the region to the channel.
+		//
+		long transferTo(WritableByteChannel target, long max) throws IOException {
+			if (this.fileChannel == null)
+				this.fileChannel = new FileInputStream(this.file).getChannel();
+			long sent = this.fileChannel.transferTo(this.position, Math.min(sendable(), max), target);
+			if (sent == 0 && this.position >= this.fileChannel.size())
+				throw new EOFException(this.file + " is shorter than expected");
+			this.position += sent;
+			this.remaining -= sent;
+			this.allowance -= sent;
+			return sent;
+		}
+
+		// Records the finished transfer and closes the file.
+		//
+		void complete(boolean zeroCopy) {
+			TransferStatistics.getReference().record(zeroCopy, this.count, System.nanoTime() - this.begin);
+			close();
+		}
+
+		// Reads the next chunk of the region into the buffer.
+		//
+		void read(ByteBuffer buffer) throws IOException {
+			if (this.fileChannel == null)
+				this.fileChannel = new FileInputStream(this.file).getChannel();
+			if (buffer.remaining() > sendable())
+				buffer.limit(buffer.position() + (int) sendable());
+			int read = this.fileChannel.read(buffer, this.position);
+			if (read < 0)
+				throw new EOFException(this.file + " is shorter than expected");
+			this.position += read;
+			this.remaining -= read;
+			this.allowance -= read;
+		}
+
+		void close() {
+			if (this.fileChannel == null)
+				return;
+			try {
+				this.fileChannel.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+}// end class
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.nio;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.*;
+
+import server.Listener;
+import server.handlers.connection.WorkerPool;
+import server.parse.ResourceParser;
+
+/**
+ * NIO Server - the non-blocking engine.
+ *
+ * The acceptor threads of the listeners hand the accepted channels
+ * round-robin to a small number of event loops, shared by all listeners,
+ * which perform all socket I/O and TLS work. Only a complete request
+ * occupies a worker thread, for as long as the resource parser runs; idle
+ * and slow clients occupy none.
+ *
+ * Created: 2013.11.05
+ *
+ * @author haijunq
+ */
+public class NioServer {
+	private final List<Listener> listeners; 						// the addresses accepted on
+	private final SSLContext sslContext; 							// creates the TLS engines
+	private final SSLParameters sslParameters; 						// protocols and cipher suites of the engines
+	private final ResourceParser parser; 							// serves the requests
+	private final WorkerPool workerPool; 							// runs requests and TLS tasks
+	private final EventLoop[] loops; 								// the event loops
+	private final List<ServerSocketChannel> serverChannels = new ArrayList<ServerSocketChannel>(); // the listening channels
+	private final AtomicInteger nextLoop = new AtomicInteger(); 	// round-robin position
+
+	/**
+	 * Constructs the engine
+	 *
+	 * @param listeners
+	 *            are the addresses to accept on
+	 * @param sslContext
+	 *            creates the TLS engine of every connection, null if all
+	 *            listeners are plaintext
+	 * @param sslParameters
+	 *            are applied to every TLS engine
+	 * @param parser
+	 *            is the reference to the Resource Parser
+	 * @param workerPool
+	 *            runs the requests and the delegated TLS tasks
+	 * @param loopCount
+	 *            is the number of event loop threads
+	 */
+	public NioServer(List<Listener> listeners, SSLContext sslContext, SSLParameters sslParameters,
+			ResourceParser parser, WorkerPool workerPool, int loopCount) throws IOException {
+		if (loopCount < 1) {
+			throw new IllegalArgumentException("at least one event loop is needed");
+		}
+		this.listeners = listeners;
+		this.sslContext = sslContext;
+		this.sslParameters = sslParameters;
+		this.parser = parser;
+		this.workerPool = workerPool;
+		this.loops = new EventLoop[loopCount];
+		for (int i = 0; i < loopCount; i++)
+			this.loops[i] = new EventLoop("event-loop-" + (i + 1));
+	}
+
+	/**
+	 * Opens the listening channels and starts the event loops.
+	 */
+	public void start() throws IOException {
+		for (Listener listener : this.listeners) {
+			for (int i = 0; i < listener.getSocketCount(); i++)
+				this.serverChannels.add(listener.openChannel());
+		}
+		for (EventLoop loop : this.loops)
+			loop.start();
+	}
+
+	/**
+	 * Starts the acceptor threads of every listener; does not return until
+	 * the listening channels are closed.
+	 */
+	public void acceptConnections() throws InterruptedException {
+		if (this.serverChannels.isEmpty()) {
+			throw new IllegalStateException(this.getClass().getName()
+					+ ".acceptConnections(): engine not started");
+		}
+
+		List<Thread> acceptors = new ArrayList<Thread>();
+		int first = 0;
+		for (final Listener listener : this.listeners) {
+			int sockets = listener.getSocketCount();
+			for (int i = 0; i < listener.getAcceptorCount(); i++) {
+				final ServerSocketChannel serverChannel = this.serverChannels.get(first + i % sockets);
+				Thread acceptor = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							acceptConnections(listener, serverChannel);
+						} catch (IOException e) {
+							if (serverChannel.isOpen())
+								e.printStackTrace();
+						}
+					}
+				}, "acceptor-" + listener.getName() + "-" + (i + 1));
+				acceptor.start();
+				acceptors.add(acceptor);
+			}
+			first += sockets;
+		}
+		for (Thread acceptor : acceptors)
+			acceptor.join();
+	}
+
+	// Accepts connections on a listening channel and hands them to the event
+	// loops.
+	//
+	private void acceptConnections(Listener listener, ServerSocketChannel serverChannel)
+			throws IOException {
+		while (serverChannel.isOpen()) {
+			SocketChannel channel = serverChannel.accept();
+			listener.recordAccepted();
+			try {
+				channel.configureBlocking(false);
+				channel.socket().setTcpNoDelay(true);
+			} catch (IOException e) {
+				channel.close();
+				continue;
+			}
+
+			SSLEngine engine = null;
+			if (listener.isTls()) {
+				engine = this.sslContext.createSSLEngine();
+				engine.setUseClientMode(false);
+				engine.setSSLParameters(this.sslParameters);
+			}
+
+			EventLoop loop = this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+					% this.loops.length];
+			loop.register(new NioConnection(channel, engine, loop, this.workerPool, this.parser));
+		}
+	}
+
+	/**
+	 * Closes the listening channels and stops the event loops.
+	 */
+	public void stop() throws IOException {
+		for (ServerSocketChannel serverChannel : this.serverChannels)
+			serverChannel.close();
+		for (EventLoop loop : this.loops)
+			loop.stop();
+	}
+
+	/**
+	 * Returns a one line summary of the engine statistics.
+	 */
+	@Override
+	public String toString() {
+		int open = 0;
+		for (EventLoop loop : this.loops)
+			open += loop.getConnectionCount();
+		return "nio engine: listeners=" + this.listeners.size() + " loops=" + this.loops.length
+				+ " open=" + open;
+	}
+
+}// end class
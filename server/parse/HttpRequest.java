@@ -0,0 +1,275 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.parse;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * HTTP Request - the request line and header fields of one request.
+ * 
+ * Typical request line: GET /index.html HTTP/1.1
+ * 
+ * The request refers to the header bytes in the buffer of the
+ * HttpRequestParser; a header field is decoded when it is asked for, so the
+ * fields nobody reads cost no Strings. Field names are case-insensitive.
+ * The request must not be used once the parser reads the next request.
+ * 
+ * Created: 2013.11.09
+ * 
+ * @author haijunq
+ */
+public class HttpRequest {
+	public static final String GET = "GET";
+	public static final String HEAD = "HEAD";
+
+	// the methods of HTTP/1.1, shared instead of decoded
+	private static final String[] METHODS = { GET, HEAD, "POST", "PUT", "DELETE",
+			"OPTIONS", "TRACE", "CONNECT", "PATCH" };
+	private static final String HTTP_1_0 = "HTTP/1.0";
+	private static final String HTTP_1_1 = "HTTP/1.1";
+
+	private final byte[] buffer; 									// the header bytes, owned by the parser
+	private final int[] fields; 									// field offsets, see HttpRequestParser
+	private final int fieldCount; 									// number of header fields
+	private final int lineStart; 									// offset of the request line
+	private final int lineEnd; 									// end of the request line
+	private final String method; 									// GET, HEAD, ...
+	private final String resourceIdentifier; 						// /index.html
+	private final String version; 									// the client's protocol version
+	private String requestLine = null; 							// the decoded request line
+	private boolean keepAlive = false; 							// keep the connection open after the response
+	private final long received = System.nanoTime(); 				// time the request line was read
+
+	// constructed by HttpRequestParser, from the offsets of the request
+	// line parts
+	HttpRequest(byte[] buffer, int[] fields, int fieldCount, int lineStart,
+			int lineEnd, int methodEnd, int targetStart, int targetEnd) {
+		this.buffer = buffer;
+		this.fields = fields;
+		this.fieldCount = fieldCount;
+		this.lineStart = lineStart;
+		this.lineEnd = lineEnd;
+		this.method = decodeMethod(lineStart, methodEnd);
+		this.resourceIdentifier = decode(targetStart, targetEnd);
+		this.version = (targetEnd < lineEnd) ? decodeVersion(targetEnd + 1, lineEnd) : HTTP_1_0;
+	}
+
+	/** Returns the System.nanoTime() at which the request line was read */
+	public long getReceived() {
+		return this.received;
+	}
+
+	/** Returns the raw request line, used in the access log */
+	public String getRequestLine() {
+		if (this.requestLine == null)
+			this.requestLine = decode(this.lineStart, this.lineEnd);
+		return this.requestLine;
+	}
+
+	/** Returns the request method */
+	public String getMethod() {
+		return this.method;
+	}
+
+	/** Returns true if the method is one of HTTP/1.1 */
+	public boolean isKnownMethod() {
+		for (String known : METHODS) {
+			if (known == this.method)
+				return true;
+		}
+		return false;
+	}
+
+	/** Returns the requested resource */
+	public String getResourceIdentifier() {
+		return this.resourceIdentifier;
+	}
+
+	/**
+	 * Returns the decoded value of a query parameter, e.g. 100 for limit in
+	 * /files/?offset=0&limit=100, or null if it is absent or malformed.
+	 */
+	public String getQueryParameter(String name) {
+		if (this.resourceIdentifier == null)
+			return null;
+		int query = this.resourceIdentifier.indexOf('?');
+		if (query < 0)
+			return null;
+
+		for (String parameter : this.resourceIdentifier.substring(query + 1).split("&")) {
+			int equals = parameter.indexOf('=');
+			String key = (equals < 0) ? parameter : parameter.substring(0, equals);
+			if (!key.equals(name))
+				continue;
+			try {
+				return (equals < 0) ? "" : URLDecoder.decode(parameter.substring(equals + 1), "UTF-8");
+			} catch (IllegalArgumentException e) {
+				return null;
+			} catch (UnsupportedEncodingException e) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/** Returns the client's protocol version */
+	public String getVersion() {
+		return this.version;
+	}
+
+	/**
+	 * Returns the value of the header field, or null if it is absent.
+	 * Repeated fields are joined with a comma.
+	 */
+	public String getHeader(String name) {
+		String value = null;
+		for (int slot = 0; slot < this.fieldCount * HttpRequestParser.FIELD_SLOTS;
+				slot += HttpRequestParser.FIELD_SLOTS) {
+			if (!nameEquals(this.fields[slot], this.fields[slot + 1], name))
+				continue;
+			String field = decode(this.fields[slot + 2], this.fields[slot + 3]);
+			value = (value == null) ? field : value + ", " + field;
+		}
+		return value;
+	}
+
+	/** Returns the number of header fields */
+	public int getHeaderCount() {
+		return this.fieldCount;
+	}
+
+	/**
+	 * Returns true if a body follows the header: the request has a
+	 * Transfer-Encoding, or a Content-Length other than 0.
+	 */
+	public boolean hasBody() {
+		if (getHeader("Transfer-Encoding") != null)
+			return true;
+		String length = getHeader("Content-Length");
+		return length != null && !length.equals("0");
+	}
+
+	/**
+	 * Returns true if the client asked to keep the connection open: the
+	 * default for HTTP/1.1, opt-in with "Connection: keep-alive" for
+	 * HTTP/1.0.
+	 */
+	public boolean wantsKeepAlive() {
+		String connection = getHeader("Connection");
+		if (connection != null) {
+			connection = connection.toLowerCase(Locale.ENGLISH);
+			if (connection.contains("close"))
+				return false;
+			if (connection.contains("keep-alive"))
+				return true;
+		}
+		return this.version.equals(HTTP_1_1);
+	}
+
+	/**
+	 * Returns true if the Accept-Encoding header accepts the content coding
+	 * with a non-zero quality, e.g. gzip for "gzip, deflate;q=0.5". A coding
+	 * that is not listed is accepted through "*".
+	 */
+	public boolean acceptsEncoding(String coding) {
+		String accept = getHeader("Accept-Encoding");
+		if (accept == null)
+			return false;
+
+		boolean wildcard = false;
+		for (String item : accept.split(",")) {
+			String[] parameters = item.split(";");
+			String name = parameters[0].trim();
+			double quality = 1;
+			for (int i = 1; i < parameters.length; i++) {
+				String parameter = parameters[i].trim();
+				if (parameter.startsWith("q=")) {
+					try {
+						quality = Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						quality = 0;
+					}
+				}
+			}
+			if (name.equalsIgnoreCase(coding))
+				return quality > 0;
+			if (name.equals("*"))
+				wildcard = quality > 0;
+		}
+		return wildcard;
+	}
+
+	/** Returns true if the connection stays open after the response */
+	public boolean isKeepAlive() {
+		return this.keepAlive;
+	}
+
+	/** Sets whether the connection stays open after the response */
+	public void setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Returns the Connection header line announcing the keep-alive decision.
+	 */
+	public String connectionHeader() {
+		return "Connection: " + (this.keepAlive ? "keep-alive" : "close");
+	}
+
+	// Returns true if the field name in [from, to) is the name, ignoring
+	// case.
+	//
+	private boolean nameEquals(int from, int to, String name) {
+		if (to - from != name.length())
+			return false;
+		for (int i = 0; i < name.length(); i++) {
+			if (toLowerCase(this.buffer[from + i]) != toLowerCase(name.charAt(i)))
+				return false;
+		}
+		return true;
+	}
+
+	private static int toLowerCase(int c) {
+		return (c >= 'A' && c <= 'Z') ? c + ('a' - 'A') : c;
+	}
+
+	// Returns the method, a shared instance if it is a known one.
+	//
+	private String decodeMethod(int from, int to) {
+		for (String known : METHODS) {
+			if (bytesEqual(from, to, known))
+				return known;
+		}
+		return decode(from, to);
+	}
+
+	// Returns the version, a shared instance for 1.0 and 1.1.
+	//
+	private String decodeVersion(int from, int to) {
+		if (bytesEqual(from, to, HTTP_1_1))
+			return HTTP_1_1;
+		if (bytesEqual(from, to, HTTP_1_0))
+			return HTTP_1_0;
+		return decode(from, to);
+	}
+
+	private boolean bytesEqual(int from, int to, String text) {
+		if (to - from != text.length())
+			return false;
+		for (int i = 0; i < text.length(); i++) {
+			if (this.buffer[from + i] != text.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	private String decode(int from, int to) {
+		return new String(this.buffer, from, to - from, StandardCharsets.ISO_8859_1);
+	}
+
+}// end class
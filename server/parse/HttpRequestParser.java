@@ -0,0 +1,296 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.parse;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+import util.*;
+
+/**
+ * HTTP Request Parser - reads request headers as bytes into a buffer that is
+ * reused for every request of a connection.
+ *
+ * The request line and the header fields are not decoded; the parser only
+ * records where they are in the buffer, and HttpRequest turns a field into a
+ * String when it is asked for. The buffer is scanned as the bytes arrive,
+ * without going over the bytes already scanned, and the bytes following a
+ * header, e.g. the next pipelined request, stay buffered for the next call.
+ *
+ * A line is limited to MAX_LINE_LENGTH bytes, a header to MAX_HEADERS
+ * fields and to MAX_HEADER_SIZE bytes. A header breaking a limit or the
+ * syntax is reported as a RequestParseException with the status to answer:
+ * 414 for a long request line, 431 for long or too many fields, 400 for a
+ * malformed line.
+ *
+ * A request is only valid until the next call of parse(), which reuses the
+ * buffer.
+ *
+ * Created: 2013.11.23
+ *
+ * @author haijunq
+ */
+public class HttpRequestParser {
+
+	// longest request line or header field, without the line end
+	public static final int MAX_LINE_LENGTH = Configuration.getReference()
+			.getInt("server.request.maxLine", Constants.DEFAULT_REQUEST_MAX_LINE);
+
+	// most header fields of a request
+	public static final int MAX_HEADERS = Configuration.getReference()
+			.getInt("server.request.maxHeaders", Constants.DEFAULT_REQUEST_MAX_HEADERS);
+
+	// largest request header, from the request line to the blank line
+	public static final int MAX_HEADER_SIZE = Configuration.getReference()
+			.getInt("server.request.maxHeaderSize", Constants.DEFAULT_REQUEST_MAX_HEADER_SIZE);
+
+	// offsets recorded per field: name start, name end, value start, value end
+	static final int FIELD_SLOTS = 4;
+
+	private final InputStream in; 									// the connection input, null if loaded
+	private final byte[] buffer = new byte[MAX_HEADER_SIZE]; 		// the request header bytes
+	private final int[] fields = new int[MAX_HEADERS * FIELD_SLOTS]; // field offsets of the current request
+	private int start = 0; 										// first byte not yet parsed
+	private int limit = 0; 										// end of the buffered bytes
+
+	/**
+	 * Constructs the parser
+	 *
+	 * @param in
+	 *            is the input of the connection, or null if the requests are
+	 *            given to load()
+	 */
+	public HttpRequestParser(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * Loads a complete request header received by the caller, taking length
+	 * bytes from the source; a header larger than the buffer is cut short,
+	 * which parse() reports.
+	 *
+	 * @param source
+	 *            holds the header, in read mode
+	 * @param length
+	 *            is the length of the header
+	 */
+	public void load(ByteBuffer source, int length) {
+		compact();
+		int count = Math.min(length, this.buffer.length - this.limit);
+		source.get(this.buffer, this.limit, count);
+		source.position(source.position() + length - count);
+		this.limit += count;
+	}
+
+	/**
+	 * Returns true if bytes of a further request are buffered or can be read
+	 * without blocking.
+	 */
+	public boolean hasBufferedInput() throws IOException {
+		return this.start < this.limit || (this.in != null && this.in.available() > 0);
+	}
+
+	/**
+	 * Waits until bytes of the next request are buffered, so a caller can
+	 * tell an idle connection from a request being served.
+	 *
+	 * @return false if the input ended first
+	 * @throws IOException
+	 *             if the input fails, e.g. the idle timeout expires
+	 */
+	public boolean awaitInput() throws IOException {
+		if (this.start < this.limit)
+			return true;
+		this.start = this.limit = 0;
+		return fill();
+	}
+
+	/**
+	 * Reads and parses the next request header.
+	 *
+	 * @return the request, or null if the input ended before a request
+	 * @throws RequestParseException
+	 *             if the header is malformed or too large
+	 * @throws IOException
+	 *             if the input fails or ends within the header
+	 */
+	public HttpRequest parse() throws IOException {
+		if (this.start == this.limit)
+			this.start = this.limit = 0;
+		int scan = this.start; 	// first byte not yet searched for a line end
+		int lineStart = scan; 		// first byte of the current line
+		int requestLineEnd = -1; // end of the request line, once found
+		int fieldCount = 0;
+
+		while (true) {
+			int lineFeed = indexOf((byte) '\n', scan, this.limit);
+			if (lineFeed < 0) {
+				if (this.limit - lineStart > MAX_LINE_LENGTH
+						|| this.limit - this.start == this.buffer.length)
+					throw tooLarge(requestLineEnd < 0);
+
+				// make room by moving the request to the start of the buffer
+				if (this.limit == this.buffer.length) {
+					int shift = this.start;
+					compact();
+					for (int i = 0; i < fieldCount * FIELD_SLOTS; i++)
+						this.fields[i] -= shift;
+					lineStart -= shift;
+					if (requestLineEnd >= 0)
+						requestLineEnd -= shift;
+				}
+				scan = this.limit;
+				if (!fill()) {
+					if (requestLineEnd < 0 && this.limit == lineStart)
+						return null;
+					throw new EOFException("request header cut short");
+				}
+				continue;
+			}
+
+			int lineEnd = (lineFeed > lineStart && this.buffer[lineFeed - 1] == '\r')
+					? lineFeed - 1 : lineFeed;
+			if (lineEnd - lineStart > MAX_LINE_LENGTH)
+				throw tooLarge(requestLineEnd < 0);
+			scan = lineFeed + 1;
+
+			if (requestLineEnd < 0) {
+				// blank lines before the request line are ignored
+				if (lineEnd > lineStart)
+					requestLineEnd = lineEnd;
+				else
+					this.start = scan;
+			} else if (lineEnd == lineStart) {
+				// the blank line ends the header
+				int requestLineStart = this.start;
+				this.start = scan;
+				return request(requestLineStart, requestLineEnd, fieldCount);
+			} else {
+				if (fieldCount == MAX_HEADERS)
+					throw new RequestParseException(431, "more than " + MAX_HEADERS + " header fields");
+				field(fieldCount++, lineStart, lineEnd);
+			}
+			lineStart = scan;
+		}
+	}
+
+	// Builds the request from the request line, e.g. GET /index.html HTTP/1.1,
+	// and the recorded fields. A line without a version is taken as
+	// HTTP/1.0.
+	//
+	private HttpRequest request(int lineStart, int lineEnd, int fieldCount)
+			throws RequestParseException {
+		int methodEnd = indexOf((byte) ' ', lineStart, lineEnd);
+		if (methodEnd <= lineStart)
+			throw new RequestParseException(400, "malformed request line");
+		for (int i = lineStart; i < methodEnd; i++) {
+			if (!isTokenByte(this.buffer[i]))
+				throw new RequestParseException(400, "malformed method");
+		}
+
+		int targetStart = methodEnd + 1;
+		int targetEnd = indexOf((byte) ' ', targetStart, lineEnd);
+		if (targetEnd < 0)
+			targetEnd = lineEnd;
+		if (targetEnd == targetStart)
+			throw new RequestParseException(400, "missing request target");
+
+		if (targetEnd < lineEnd && !isVersion(targetEnd + 1, lineEnd))
+			throw new RequestParseException(400, "malformed protocol version");
+
+		return new HttpRequest(this.buffer, this.fields, fieldCount,
+				lineStart, lineEnd, methodEnd, targetStart, targetEnd);
+	}
+
+	// Records the offsets of a header field, e.g. Connection: keep-alive;
+	// the value is stripped of the surrounding white space. A folded line
+	// or white space before the colon is rejected.
+	//
+	private void field(int index, int lineStart, int lineEnd)
+			throws RequestParseException {
+		int colon = indexOf((byte) ':', lineStart, lineEnd);
+		if (colon <= lineStart || isWhiteSpace(this.buffer[lineStart])
+				|| isWhiteSpace(this.buffer[colon - 1]))
+			throw new RequestParseException(400, "malformed header field");
+
+		int valueStart = colon + 1;
+		int valueEnd = lineEnd;
+		while (valueStart < valueEnd && isWhiteSpace(this.buffer[valueStart]))
+			valueStart++;
+		while (valueEnd > valueStart && isWhiteSpace(this.buffer[valueEnd - 1]))
+			valueEnd--;
+
+		int slot = index * FIELD_SLOTS;
+		this.fields[slot] = lineStart;
+		this.fields[slot + 1] = colon;
+		this.fields[slot + 2] = valueStart;
+		this.fields[slot + 3] = valueEnd;
+	}
+
+	// Returns the error for a header exceeding the limits: 414 while still in
+	// the request line, 431 in the header fields.
+	//
+	private static RequestParseException tooLarge(boolean inRequestLine) {
+		if (inRequestLine)
+			return new RequestParseException(414, "request line too long");
+		return new RequestParseException(431, "request header too large");
+	}
+
+	// Reads more bytes into the buffer; returns false at the end of the input.
+	//
+	private boolean fill() throws IOException {
+		if (this.in == null)
+			return false;
+		int read = this.in.read(this.buffer, this.limit, this.buffer.length - this.limit);
+		if (read < 0)
+			return false;
+		this.limit += read;
+		return true;
+	}
+
+	// Moves the unparsed bytes to the start of the buffer.
+	//
+	private void compact() {
+		if (this.start == 0)
+			return;
+		System.arraycopy(this.buffer, this.start, this.buffer, 0, this.limit - this.start);
+		this.limit -= this.start;
+		this.start = 0;
+	}
+
+	// Returns the index of the byte in [from, to), or -1.
+	//
+	private int indexOf(byte b, int from, int to) {
+		for (int i = from; i < to; i++) {
+			if (this.buffer[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	// Returns true if the bytes in [from, to) are a version, e.g. HTTP/1.1.
+	//
+	private boolean isVersion(int from, int to) {
+		return to - from == 8 && this.buffer[from] == 'H' && this.buffer[from + 1] == 'T'
+				&& this.buffer[from + 2] == 'T' && this.buffer[from + 3] == 'P'
+				&& this.buffer[from + 4] == '/' && isDigit(this.buffer[from + 5])
+				&& this.buffer[from + 6] == '.' && isDigit(this.buffer[from + 7]);
+	}
+
+	private static boolean isDigit(byte b) {
+		return b >= '0' && b <= '9';
+	}
+
+	private static boolean isWhiteSpace(byte b) {
+		return b == ' ' || b == '\t';
+	}
+
+	// Returns true for the characters of a method token.
+	//
+	private static boolean isTokenByte(byte b) {
+		return b > ' ' && b < 127 && "()<>@,;:\\\"/[]?={}".indexOf(b) < 0;
+	}
+
+}// end class
@@ -0,0 +1,40 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package server.parse;
+
+import java.io.IOException;
+
+/**
+ * Request Parse Exception - a request header that breaks the syntax or the
+ * limits of the request parser, with the status code to answer it with.
+ *
+ * Created: 2013.11.23
+ *
+ * @author haijunq
+ */
+public class RequestParseException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	private final int statusCode; 									// 400, 414 or 431
+
+	/**
+	 * Constructs the exception
+	 *
+	 * @param statusCode
+	 *            is the status code of the error response
+	 * @param message
+	 *            describes the error
+	 */
+	public RequestParseException(int statusCode, String message) {
+		super(message);
+		this.statusCode = statusCode;
+	}
+
+	/** Returns the status code of the error response */
+	public int getStatusCode() {
+		return this.statusCode;
+	}
+
+}// end class
@@ -9,8 +9,8 @@ import java.net.*;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 
-import HTTPClient.Request;
 import server.error.*;
+import server.handlers.connection.*;
 import server.handlers.resource.*;
 import server.log.LogManager;
 import server.parse.*;
@@ -34,90 +34,78 @@ import util.*;
  * @author Peter Brandt-Erichsen
  */
 public class ResourceParser {
-	// max numbers of readLines
-	private final int MAX_READ_LINES = 3; 
 
 	public ResourceParser() {
 	}
 
 	/**
 	 * Parses the HTTP header, see class level documentation for a full
-	 * description.
+	 * description, and serves the request.
 	 * 
 	 * @param clientSocket
-	 *            is a reference to the client socket.
+	 *            is a reference to the client connection.
+	 * @param allowKeepAlive
+	 *            is false if the connection must close after this request
+	 * @return true if the connection stays open for another request
 	 */
-	public void parse(Socket clientSocket) throws Exception {
+	public boolean parse(ClientConnection clientSocket, boolean allowKeepAlive) throws Exception {
 
-		// input stream
-		BufferedReader in = new BufferedReader(new InputStreamReader(
-				clientSocket.getInputStream()));
+		// request parser, shared by all requests of the connection
+		HttpRequestParser in = clientSocket.getRequestParser();
 		if (in == null) 
-			return;
+			return false;
 		
 		// retrieve the HTTP request header from the input stream
-		String request = null;
-		int readCount = 0; 
-				
-		// try 3 lines, if still can't find "GET", give up
-		while (readCount < MAX_READ_LINES) {
-			try{
-				request = in.readLine();
-			} catch (Exception e) {
-				// debug the exception
-//				e.printStackTrace();
-				return;
-			}
-			readCount++; 
-			if (request == null) return;
-			if (request.startsWith("GET")) {
-				break;
-			}
+		HttpRequest httpRequest = null;
+		try {
+			httpRequest = in.parse();
+		} catch (RequestParseException e) {
+			// the rest of the input cannot be trusted, answer and close
+			ErrorModule.getReference().requestError(clientSocket, null, e.getStatusCode());
+			return false;
+		} catch (IOException e) {
+			return false;
 		}
-		
-		// parse the resource identifier
-		String resourceIdentifier = null;
-		resourceIdentifier = parseResourceIdentifier(request);
+		if (httpRequest == null)
+			return false;
+
+		// the body of a request is not read, so the connection cannot be
+		// reused after one
+		httpRequest.setKeepAlive(allowKeepAlive && !httpRequest.hasBody()
+				&& httpRequest.wantsKeepAlive());
 
-		// error check the resource identifier
-		if (resourceIdentifier == null) {
-			// if it is parsed
-			ErrorModule.getReference().fileNotFoundError(clientSocket, request,
-					new FileNotFoundException());
+		// only GET and HEAD are served
+		String method = httpRequest.getMethod();
+		if (method == HttpRequest.HEAD) {
+			clientSocket = new HeadConnection(clientSocket);
+		} else if (method != HttpRequest.GET) {
+			ErrorModule.getReference().requestError(clientSocket, httpRequest,
+					httpRequest.isKnownMethod() ? 405 : 501);
+			return httpRequest.isKeepAlive();
 		}
+
+		// parse the resource identifier, the query is read from the request
+		// by the handler
+		String resourceIdentifier = httpRequest.getResourceIdentifier();
+		if (resourceIdentifier.indexOf('?') >= 0)
+			resourceIdentifier = resourceIdentifier.substring(0, resourceIdentifier.indexOf('?'));
+
 		// default resource request
-		else if (resourceIdentifier.equals("/")) {
-			new ResourceHandler().handleRequest(clientSocket, request,
+		if (resourceIdentifier.equals("/")) {
+			new ResourceHandler().handleRequest(clientSocket, httpRequest,
 					Constants.DEFAULT_RESOURCE_IDENTIFIER);
 		}
 		// if starts with //, direct to 404 not found
 		else if (resourceIdentifier.startsWith("//")) {
-			ErrorModule.getReference().fileNotFoundError(clientSocket, request,
+			ErrorModule.getReference().fileNotFoundError(clientSocket, httpRequest,
 					new FileNotFoundException(resourceIdentifier));			
 		}
 		// general resource request
 		else {
-			new ResourceHandler().handleRequest(clientSocket, request,
+			new ResourceHandler().handleRequest(clientSocket, httpRequest,
 					resourceIdentifier);
 		}
-	}
-
-	// Parses an HTTP request header for the resource identifier.
-	//
-	// Typical format: GET /index.html HTTP/1.0
-	//
-	// Returns: /index.html
-	//
-	private String parseResourceIdentifier(String request) {
-		if (request.isEmpty())
-			return null;
-
-		// split the String, return the second piece
-		String[] results = request.split(" ");
-		if (results.length >= 2)
-			return results[1];
-		else
-			return null;
+		return httpRequest.isKeepAlive();
 	}
 
 }// end class
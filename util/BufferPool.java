@@ -0,0 +1,64 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Buffer Pool - recycles byte arrays of one size, so large copy buffers are
+ * not allocated and collected for every request.
+ * 
+ * At most maxPooled buffers are kept; when the pool is empty a new buffer is
+ * allocated, when it is full a released buffer is dropped.
+ * 
+ * Created: 2013.11.14
+ * 
+ * @author haijunq
+ */
+public class BufferPool {
+	private final int bufferSize; 									// size of every buffer
+	private final int maxPooled; 									// upper bound of idle buffers
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>(); // idle buffers
+	private final AtomicInteger pooled = new AtomicInteger(); 		// number of idle buffers
+
+	/**
+	 * Constructs the pool
+	 * 
+	 * @param bufferSize
+	 *            is the size of the buffers
+	 * @param maxPooled
+	 *            is the maximum number of idle buffers kept
+	 */
+	public BufferPool(int bufferSize, int maxPooled) {
+		this.bufferSize = bufferSize;
+		this.maxPooled = maxPooled;
+	}
+
+	/**
+	 * Returns an idle buffer, or a new one if none is idle.
+	 */
+	public byte[] acquire() {
+		byte[] buffer = this.buffers.poll();
+		if (buffer == null)
+			return new byte[this.bufferSize];
+		this.pooled.decrementAndGet();
+		return buffer;
+	}
+
+	/**
+	 * Returns a buffer to the pool.
+	 */
+	public void release(byte[] buffer) {
+		if (buffer == null || buffer.length != this.bufferSize)
+			return;
+		if (this.pooled.incrementAndGet() <= this.maxPooled)
+			this.buffers.add(buffer);
+		else
+			this.pooled.decrementAndGet();
+	}
+
+}// end class
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package util;
+
+import java.io.*;
+import java.util.Properties;
+
+/**
+ * Configuration - server tuning parameters.
+ *
+ * Values are read from the server properties file (see
+ * Constants.CONFIG_FILE); a system property with the same key, e.g.
+ * -Dserver.dispatch=pool, overrides the value in the file. Keys that are not
+ * configured fall back to the supplied default.
+ *
+ * The singleton design pattern is implemented to ensure that only one instance
+ * of this class is instantiated.
+ *
+ * Created: 2013.11.02
+ *
+ * @author haijunq
+ */
+public class Configuration {
+
+	// singleton reference to this class
+	private static final Configuration singleton = new Configuration();
+
+	// stores the configured properties
+	private final Properties properties = new Properties();
+
+	// constructor is private to guarantee a singleton instance
+	private Configuration() {
+		File file = new File(Constants.CONFIG_FILE);
+		if (!file.exists())
+			return;
+
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			properties.load(in);
+		} catch (IOException e) {
+			System.out.println(this.getClass().getName()
+					+ ": cannot read " + Constants.CONFIG_FILE + ", using defaults");
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns a reference to this singleton class
+	 */
+	public static Configuration getReference() {
+		return singleton;
+	}
+
+	/**
+	 * Returns the configured value for the key, or the default value.
+	 */
+	public String getString(String key, String defaultValue) {
+		String value = System.getProperty(key);
+		if (value == null)
+			value = properties.getProperty(key);
+		if (value == null)
+			return defaultValue;
+		return value.trim();
+	}
+
+	/**
+	 * Returns the configured integer for the key, or the default value if it
+	 * is missing or malformed.
+	 */
+	public int getInt(String key, int defaultValue) {
+		return (int) getLong(key, defaultValue);
+	}
+
+	/**
+	 * Returns the configured long for the key, or the default value if it is
+	 * missing or malformed.
+	 */
+	public long getLong(String key, long defaultValue) {
+		String value = getString(key, null);
+		if (value == null || value.isEmpty())
+			return defaultValue;
+		try {
+			return Long.parseLong(value);
+		} catch (NumberFormatException e) {
+			System.out.println(this.getClass().getName() + ": malformed value for "
+					+ key + " [" + value + "], using " + defaultValue);
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * Returns the configured boolean for the key, or the default value.
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		String value = getString(key, null);
+		if (value == null || value.isEmpty())
+			return defaultValue;
+		return Boolean.parseBoolean(value);
+	}
+
+}// end class
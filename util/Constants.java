@@ -33,6 +33,98 @@ public class Constants {
 	// configuration constants
 	public static final int DEFAULT_PORT = 8443;
 	public static final int DEFAULT_BUFFER_SIZE = 2048;
+	public static final String CONFIG_FILE = "./etc/server.properties";
+
+	// connection dispatch modes and worker pool defaults
+	public static final String DISPATCH_THREAD = "thread";
+	public static final String DISPATCH_POOL = "pool";
+	public static final String DISPATCH_VIRTUAL = "virtual";
+
+	// server engines
+	public static final String ENGINE_BLOCKING = "blocking";
+	public static final String ENGINE_NIO = "nio";
+	public static final int DEFAULT_POOL_CORE_THREADS = 32;
+	public static final int DEFAULT_POOL_MAX_THREADS = 256;
+	public static final int DEFAULT_POOL_QUEUE_SIZE = 1024;
+	public static final int DEFAULT_POOL_KEEPALIVE = 60;
+	public static final int DEFAULT_STATS_INTERVAL = 30;
+
+	// keep-alive defaults, the timeout is in milliseconds
+	public static final int DEFAULT_KEEPALIVE_MAX_REQUESTS = 100;
+	public static final int DEFAULT_KEEPALIVE_TIMEOUT = 15000;
+	public static final int DEFAULT_PIPELINE_DEPTH = 16;
+	public static final int PIPELINE_BUFFER_SIZE = 16 * 1024;
+
+	// listener defaults: pending connections per socket, acceptor threads
+	// per listener
+	public static final int DEFAULT_LISTEN_BACKLOG = 1024;
+	public static final int DEFAULT_LISTEN_ACCEPTORS = 1;
+
+	// TLS defaults: the enabled protocols, the session cache entries and the
+	// session lifetime in seconds
+	public static final String DEFAULT_TLS_PROTOCOLS = "TLSv1.3,TLSv1.2";
+	public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 20480;
+	public static final int DEFAULT_TLS_SESSION_TIMEOUT = 3600;
+
+	// admission control defaults: slots, waiting callers, the wait in
+	// milliseconds and the Retry-After of a rejection in seconds
+	public static final int DEFAULT_ADMISSION_MAX_IN_FLIGHT = 256;
+	public static final int DEFAULT_ADMISSION_QUEUE = 256;
+	public static final long DEFAULT_ADMISSION_QUEUE_TIMEOUT = 1000;
+	public static final int DEFAULT_ADMISSION_RETRY_AFTER = 1;
+
+	// admission limits: a fixed number of slots, or one that follows the
+	// request latency, starting from the initial limit
+	public static final String LIMIT_FIXED = "fixed";
+	public static final String LIMIT_ADAPTIVE = "adaptive";
+	public static final int DEFAULT_ADMISSION_INITIAL_LIMIT = 32;
+	public static final int DEFAULT_ADMISSION_MIN_LIMIT = 8;
+
+	// the large lane: responses from this size in bytes, and how many are
+	// sent at a time
+	public static final long DEFAULT_ADMISSION_LARGE_THRESHOLD = 256 * 1024;
+	public static final int DEFAULT_ADMISSION_LARGE_MAX_IN_FLIGHT = 4;
+
+	// bandwidth shaping defaults, sizes in bytes: the burst of a token bucket
+	// and the smallest body shaped
+	public static final long DEFAULT_SHAPING_BURST = 256 * 1024;
+	public static final long DEFAULT_SHAPING_MIN_SIZE = 256 * 1024;
+
+	// request header limits, sizes in bytes
+	public static final int DEFAULT_REQUEST_MAX_LINE = 8 * 1024;
+	public static final int DEFAULT_REQUEST_MAX_HEADERS = 100;
+	public static final int DEFAULT_REQUEST_MAX_HEADER_SIZE = 16 * 1024;
+
+	// file transfer buffers used on TLS connections
+	public static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+	public static final int TRANSFER_BUFFER_POOL_SIZE = 64;
+
+	// memory-mapped file defaults, sizes in bytes
+	public static final long DEFAULT_MMAP_BUDGET = 512L * 1024 * 1024;
+	public static final long DEFAULT_MMAP_MIN_SIZE = 256 * 1024;
+	public static final int DEFAULT_MMAP_HITS = 2;
+
+	// content cache defaults, sizes in bytes, revalidation interval in
+	// milliseconds; files larger than the cache limit are left to the mapped
+	// file registry
+	public static final long DEFAULT_CACHE_BUDGET = 64L * 1024 * 1024;
+	public static final long DEFAULT_CACHE_MAX_FILE_SIZE = DEFAULT_MMAP_MIN_SIZE;
+	public static final long DEFAULT_CACHE_REVALIDATE = 1000;
+
+	// compressed variant cache defaults, sizes in bytes
+	public static final long DEFAULT_COMPRESS_BUDGET = 32L * 1024 * 1024;
+	public static final long DEFAULT_COMPRESS_MAX_FILE_SIZE = 4L * 1024 * 1024;
+	public static final int DEFAULT_COMPRESS_LEVEL = 6;
+
+	// directory listing cache defaults, the poll interval is in milliseconds
+	public static final int DEFAULT_LISTING_MAX_ENTRIES = 256;
+	public static final long DEFAULT_LISTING_POLL = 2000;
+
+	// access log defaults: ring buffer entries, flush interval and shutdown
+	// drain timeout in milliseconds
+	public static final int DEFAULT_LOG_BUFFER_SIZE = 8192;
+	public static final long DEFAULT_LOG_FLUSH_INTERVAL = 1000;
+	public static final long LOG_DRAIN_TIMEOUT = 5000;
 
 	// text formatting constants
 	public static final String CRLF = "\r\n";
@@ -41,7 +133,7 @@ public class Constants {
 	public static final String SERVER_IDENTIFICATION = "Haijun's HTTP server";
 	public static String SERVER_IDENTIFICATION_FOOTER = null;
 
-	public static final String HTTP_VERSION = "HTTP/1.0";
+	public static final String HTTP_VERSION = "HTTP/1.1";
 	public static String DEFAULT_DIRECTORY = null;
 	public static final String DEFAULT_RELATIVE_DIRECTORY = "./html";
 	public static final String DEFAULT_RESOURCE_IDENTIFIER = "/index.html";
@@ -49,10 +141,13 @@ public class Constants {
 
 	public static final String LOG_DIRECTORY = "./logs/";
 	public static final String LOG_FILENAME_POSTFIX = ".request.log";
+	public static final String BINARY_LOG_FILENAME_POSTFIX = ".request.bin";
 	
 	public static final String MIME_TYPE_FILE = "./docs/mime.types";
 
-	public static final int FILE_SIZE_404 = 102;
+	// interval in milliseconds at which the mime types file is checked for
+	// changes, 0 disables the reload
+	public static final long DEFAULT_MIME_RELOAD = 5000;
 
 	/** Constructs the server's footer identification string */
 	public static void setFooterIdentification(String footer) {
@@ -64,11 +159,18 @@ public class Constants {
 	 * @return
 	 */
 	public static String getLogFileName() {
+		return getLogFileName(LOG_FILENAME_POSTFIX);
+	}
+
+	/**
+	 * Get the name of the day's log file with the given postfix.
+	 */
+	public static String getLogFileName(String postfix) {
 		Calendar now = GregorianCalendar.getInstance();
 		return LOG_DIRECTORY + now.get(Calendar.YEAR) + "_"
 				+ String.format("%02d", now.get(Calendar.MONTH) + 1) + "_"
 				+ String.format("%02d", now.get(Calendar.DAY_OF_MONTH))
-				+ LOG_FILENAME_POSTFIX;
+				+ postfix;
 	}
 	
 	/**
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency Histogram - counts durations in power-of-two buckets of
+ * microseconds: bucket 0 holds durations below 1 us, bucket i durations
+ * from 2^(i-1) to 2^i us, and the last bucket everything longer.
+ *
+ * Recording is one atomic increment, without locks or allocation.
+ * Percentiles are reported as the upper bound of their bucket, so they are
+ * accurate to a factor of two.
+ *
+ * Created: 2013.11.24
+ *
+ * @author haijunq
+ */
+public class LatencyHistogram {
+
+	// buckets up to 2^30 us, about 18 minutes
+	private static final int BUCKETS = 32;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos
+	 *            is the duration in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(nanos / 1000, 0);
+		int bucket = (micros == 0) ? 0 : Math.min(64 - Long.numberOfLeadingZeros(micros), BUCKETS - 1);
+		this.counts.incrementAndGet(bucket);
+	}
+
+	/**
+	 * Returns the number of recorded durations.
+	 */
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++)
+			count += this.counts.get(i);
+		return count;
+	}
+
+	/**
+	 * Returns the upper bound in microseconds of the bucket holding the
+	 * percentile, e.g. 0.99, or 0 if nothing was recorded.
+	 */
+	public long getPercentileMicros(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long count = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = this.counts.get(i);
+			count += snapshot[i];
+		}
+		if (count == 0)
+			return 0;
+
+		long rank = (long) Math.ceil(percentile * count);
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank)
+				return 1L << i;
+		}
+		return 1L << (BUCKETS - 1);
+	}
+
+	/**
+	 * Returns the median, the 90th and the 99th percentile, e.g.
+	 * "p50<=512us p90<=2048us p99<=8192us".
+	 */
+	@Override
+	public String toString() {
+		return "p50<=" + getPercentileMicros(0.5) + "us p90<=" + getPercentileMicros(0.9)
+				+ "us p99<=" + getPercentileMicros(0.99) + "us";
+	}
+
+}// end class
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * MPSC Ring Buffer - a bounded, lock-free queue for many producer threads
+ * and a single consumer thread.
+ *
+ * Each slot carries a sequence number telling whose turn it is: a producer
+ * claims the next position with a compare-and-set on the tail and publishes
+ * its element by advancing the slot's sequence; the consumer takes the
+ * element once the sequence shows it is published and hands the slot back
+ * to the producers one lap later. Neither side takes a lock, and offer()
+ * fails instead of waiting when the buffer is full.
+ *
+ * Only one thread may call poll().
+ *
+ * Created: 2013.11.21
+ *
+ * @author haijunq
+ */
+public class MpscRingBuffer<E> {
+	private final int capacity; 									// number of slots, a power of two
+	private final int mask; 										// capacity - 1
+	private final Object[] elements; 								// the slots
+	private final AtomicLongArray sequences; 						// turn of each slot
+	private final AtomicLong tail = new AtomicLong(); 				// next position to claim
+	private volatile long head = 0; 								// next position to take, written by the consumer
+
+	/**
+	 * Constructs the buffer
+	 *
+	 * @param capacity
+	 *            is the minimum number of elements held, rounded up to a power
+	 *            of two
+	 */
+	public MpscRingBuffer(int capacity) {
+		int size = 1;
+		while (size < capacity)
+			size <<= 1;
+		this.capacity = size;
+		this.mask = size - 1;
+		this.elements = new Object[size];
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++)
+			this.sequences.set(i, i);
+	}
+
+	/**
+	 * Adds an element; returns false if the buffer is full.
+	 */
+	public boolean offer(E element) {
+		if (element == null)
+			throw new NullPointerException();
+		while (true) {
+			long position = this.tail.get();
+			int index = (int) (position & this.mask);
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					this.elements[index] = element;
+					this.sequences.set(index, position + 1); // publishes the element
+					return true;
+				}
+			} else if (difference < 0) {
+				return false; // the consumer has not freed the slot yet
+			}
+			// another producer claimed the position, try the next one
+		}
+	}
+
+	/**
+	 * Takes the oldest element, or returns null if none is published; called
+	 * by the consumer thread only.
+	 */
+	@SuppressWarnings("unchecked")
+	public E poll() {
+		long position = this.head;
+		int index = (int) (position & this.mask);
+		if (this.sequences.get(index) != position + 1)
+			return null;
+		E element = (E) this.elements[index];
+		this.elements[index] = null;
+		this.sequences.set(index, position + this.capacity); // free for the next lap
+		this.head = position + 1;
+		return element;
+	}
+
+	/**
+	 * Returns true if no element is waiting; exact only when the producers
+	 * are idle.
+	 */
+	public boolean isEmpty() {
+		return this.tail.get() == this.head;
+	}
+
+	/**
+	 * Returns the approximate number of waiting elements.
+	 */
+	public int size() {
+		return (int) Math.max(0, this.tail.get() - this.head);
+	}
+
+	/** Returns the number of slots */
+	public int capacity() {
+		return this.capacity;
+	}
+
+}// end class
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2002-2013 Peter Brandt-Erichsen, Brad Zdanivsky, Ardeshir Bagheri, All Rights Reserved.
+ */
+
+package util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token Bucket - a byte rate limit that allows bursts.
+ *
+ * The bucket fills with rate tokens a second up to burst tokens; sending a
+ * byte takes a token. Instead of a token count that a timer refills, the
+ * bucket keeps the time at which it was last empty, so a grant is one
+ * compare-and-set, without locks or threads, and the bucket can be shared.
+ *
+ * Created: 2013.11.25
+ *
+ * @author haijunq
+ */
+public class TokenBucket {
+	private static final long NANOS = 1000000000L;
+
+	private final long rate; 										// tokens per second
+	private final long burst; 										// most tokens the bucket holds
+	private final long burstNanos; 								// time to fill the bucket
+	private final AtomicLong emptyTime; 							// System.nanoTime() the bucket was empty at
+
+	/**
+	 * Constructs a full bucket
+	 *
+	 * @param rate
+	 *            is the number of bytes a second
+	 * @param burst
+	 *            is the number of bytes that may be sent at once
+	 */
+	public TokenBucket(long rate, long burst) {
+		if (rate <= 0 || burst <= 0) {
+			throw new IllegalArgumentException("rate and burst must be positive");
+		}
+		this.rate = rate;
+		this.burst = burst;
+		this.burstNanos = toNanos(burst);
+		this.emptyTime = new AtomicLong(System.nanoTime() - this.burstNanos);
+	}
+
+	/** Returns the most tokens the bucket holds */
+	public long getBurst() {
+		return this.burst;
+	}
+
+	/**
+	 * Takes up to max tokens, but only if at least min are there.
+	 *
+	 * @return the number of tokens taken, 0 if there were fewer than min
+	 */
+	public long grant(long min, long max) {
+		long now = System.nanoTime();
+		while (true) {
+			long empty = this.emptyTime.get();
+			long from = Math.max(empty, now - this.burstNanos);
+			long available = (now - from) * this.rate / NANOS;
+			if (available < Math.max(min, 1))
+				return 0;
+			long granted = Math.min(max, available);
+			if (this.emptyTime.compareAndSet(empty, from + toNanos(granted)))
+				return granted;
+		}
+	}
+
+	/**
+	 * Gives back tokens taken but not used.
+	 */
+	public void refund(long tokens) {
+		this.emptyTime.addAndGet(-toNanos(tokens));
+	}
+
+	/**
+	 * Returns the nanoseconds until the bucket holds the number of tokens,
+	 * at most its burst.
+	 */
+	public long delayNanos(long tokens) {
+		long now = System.nanoTime();
+		long from = Math.max(this.emptyTime.get(), now - this.burstNanos);
+		return Math.max(0, from + toNanos(Math.min(tokens, this.burst)) - now);
+	}
+
+	@Override
+	public String toString() {
+		return this.rate + "B/s";
+	}
+
+	// Returns the time the rate needs for the tokens, rounded up.
+	//
+	private long toNanos(long tokens) {
+		return (tokens * NANOS + this.rate - 1) / this.rate;
+	}
+
+}// end class
@@ -4,6 +4,13 @@
 package util;
 
 import java.io.*;
+import java.lang.reflect.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.time.*;
+import java.time.format.*;
+import java.time.temporal.ChronoField;
+import java.util.Locale;
 
 /**
  * Created: 2002.05.13
@@ -12,6 +19,37 @@ import java.io.*;
  */
 public class Utilities {
 
+	// the preferred HTTP-date format of RFC 1123, always in GMT
+	private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+			.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
+
+	// the obsolete formats that clients may still send: RFC 850 and asctime
+	private static final DateTimeFormatter[] OBSOLETE_HTTP_DATES = {
+			new DateTimeFormatterBuilder().appendPattern("EEEE, dd-MMM-")
+					.appendValueReduced(ChronoField.YEAR, 2, 2, 1970)
+					.appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US).withZone(ZoneOffset.UTC),
+			DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US).withZone(ZoneOffset.UTC) };
+
+	// unmaps a buffer without waiting for the garbage collector, if available
+	private static final Object unsafe;
+	private static final Method invokeCleaner;
+
+	static {
+		Object theUnsafe = null;
+		Method cleaner = null;
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			theUnsafe = field.get(null);
+			cleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+		} catch (Exception e) {
+			// before Java 9 the mappings are released by the garbage collector
+		}
+		unsafe = theUnsafe;
+		invokeCleaner = cleaner;
+	}
+
 	/**
 	 * Returns an exception stack trace as a string.
 	 * 
@@ -80,6 +118,51 @@ public class Utilities {
 		return sb.toString();
 	}
 
+	/**
+	 * Unmaps a buffer at once, without waiting for the garbage collector;
+	 * the buffer must not be used afterwards.
+	 */
+	public static void unmap(MappedByteBuffer buffer) {
+		if (invokeCleaner == null)
+			return;
+		try {
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Formats a time in milliseconds as an HTTP-date, e.g.
+	 * "Sun, 06 Nov 1994 08:49:37 GMT".
+	 */
+	public static String formatHttpDate(long millis) {
+		return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+	}
+
+	/**
+	 * Parses an HTTP-date in any of the three formats allowed by HTTP/1.1;
+	 * returns the time in milliseconds, or -1 if the date is malformed.
+	 */
+	public static long parseHttpDate(String date) {
+		if (date == null)
+			return -1;
+		date = date.trim();
+		try {
+			return Instant.from(HTTP_DATE.parse(date)).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			// try the obsolete formats
+		}
+		for (DateTimeFormatter format : OBSOLETE_HTTP_DATES) {
+			try {
+				return Instant.from(format.parse(date)).toEpochMilli();
+			} catch (DateTimeParseException e) {
+				// try the next format
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Returns the HTTP response message associated with the specified status
 	 * code.
@@ -89,6 +172,10 @@ public class Utilities {
 		switch (statusCode) {
 		case 200:
 			return "200 OK";
+		case 206:
+			return "206 Partial Content";
+		case 304:
+			return "304 Not Modified";
 		case 400:
 			return "400 Bad Request";
 		case 401:
@@ -97,6 +184,16 @@ public class Utilities {
 			return "403 Forbidden";
 		case 404:
 			return "404 Not Found";
+		case 405:
+			return "405 Method Not Allowed";
+		case 413:
+			return "413 Payload Too Large";
+		case 414:
+			return "414 URI Too Long";
+		case 416:
+			return "416 Range Not Satisfiable";
+		case 431:
+			return "431 Request Header Fields Too Large";
 		case 500:
 			return "500 Internal Server Error";
 		case 501: